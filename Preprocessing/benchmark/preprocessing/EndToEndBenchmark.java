@@ -0,0 +1,214 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end benchmarks running the whole processing of synthetic videos with the stubs of the media tools
+ * (see Stub), for a ladder of versions and for a grid of tiles: they measure the makespan, the throughput
+ * in jobs per second, the mean number of jobs running at the same time, the efficiency of the scheduler
+ * (this concurrency divided by the pool size) and the peak size of the temporary files.
+ * The preprocessing.* properties given to the benchmark (e.g. -Dpreprocessing.jobs=4) are given to the processing.
+ * The benchmarks are launched with Gradle (gradle endToEnd -Pe2e="grid_size duration") or from the shell as follow:
+ * java preprocessing.EndToEndBenchmark [grid_size] [duration]
+ */
+public class EndToEndBenchmark {
+	
+	//Versions of the synthetic videos, halving the resolution and the bitrate of a 1080p version
+	static final int versions = 4;
+	
+	//Default grid size, default duration in seconds of the synthetic video, sampling period in ms of the temporary files
+	private static final int defaultGrid = 4;
+	private static final double defaultDuration = 10;
+	private static final long sampleInterval = 100;
+	
+	public static void main(String[] args) throws Exception {
+		endToEnd(args.length>0 ? Integer.parseInt(args[0]) : defaultGrid,
+				args.length>1 ? Double.parseDouble(args[1]) : defaultDuration);
+	}
+	
+	/**
+	 * Writes an XML file with the versions and a grid of tiles
+	 * @param directory Directory in which the file is written
+	 * @param grid Number of tiles of each side of the grid
+	 * @return Path of the XML file
+	 * @throws IOException
+	 */
+	static String writeXml(File directory, int grid) throws IOException {
+		File xml = new File(directory, "video.xml");
+		PrintStream writer = new PrintStream(new FileOutputStream(xml), false, "UTF-8");
+		writer.println("<?xml version=\"1.0\"?>");
+		writer.println("<"+K.videoTag+">");
+		writer.println("<"+K.videoPathTag+">"+directory.getPath()+"/input.mp4</"+K.videoPathTag+">");
+		for(int v=0; v<versions; v++) {
+			writer.println("<"+K.versionTag+"><"+K.versionWidthTag+">"+(1920>>v)+"</"+K.versionWidthTag+">"
+					+"<"+K.versionHeightTag+">"+(1080>>v)+"</"+K.versionHeightTag+">"
+					+"<"+K.versionBitrateTag+">"+(4000>>v)+"</"+K.versionBitrateTag+"></"+K.versionTag+">");
+		}
+		writer.println("<"+K.bigWTag+">"+grid+"</"+K.bigWTag+">");
+		writer.println("<"+K.bigHTag+">"+grid+"</"+K.bigHTag+">");
+		for(int y=0; y<grid; y++) {
+			for(int x=0; x<grid; x++) {
+				writer.println("<"+K.tileTag+">"
+						+"<"+K.tileStartXPercTag+">"+(float) x/grid+"</"+K.tileStartXPercTag+">"
+						+"<"+K.tileStartYPercTag+">"+(float) y/grid+"</"+K.tileStartYPercTag+">"
+						+"<"+K.tileEndXPercTag+">"+(float) (x+1)/grid+"</"+K.tileEndXPercTag+">"
+						+"<"+K.tileEndYPercTag+">"+(float) (y+1)/grid+"</"+K.tileEndYPercTag+">"
+						+"<"+K.tileXTag+">"+x+"</"+K.tileXTag+"><"+K.tileYTag+">"+y+"</"+K.tileYTag+">"
+						+"<"+K.tileWTag+">1</"+K.tileWTag+"><"+K.tileHTag+">1</"+K.tileHTag+">"
+						+"</"+K.tileTag+">");
+			}
+		}
+		writer.println("<"+K.segmentTag+">1000</"+K.segmentTag+">");
+		writer.println("<"+K.outputTag+">"+directory.getPath()+"/output</"+K.outputTag+">");
+		writer.println("</"+K.videoTag+">");
+		writer.close();
+		return xml.getPath();
+	}
+	
+	/**
+	 * Runs the end-to-end benchmarks: a ladder of versions without tiles, then the same
+	 * versions cut in a grid of tiles
+	 * @param grid Number of tiles of each side of the grid
+	 * @param duration Duration in seconds of the synthetic video
+	 * @throws Exception
+	 */
+	private static void endToEnd(int grid, double duration) throws Exception {
+		File directory = Files.createTempDirectory("preprocessing-e2e").toFile();
+		try {
+			File bin = new File(directory, "bin");
+			Stub.install(bin);
+			runProcessing(new File(directory, "ladder"), bin, 1, duration,
+					"End-to-end ladder ("+versions+" versions, "+duration+"s)");
+			runProcessing(new File(directory, "grid"), bin, grid, duration,
+					"End-to-end grid ("+versions+" versions, "+grid+"x"+grid+" tiles, "+duration+"s)");
+		} finally {
+			delete(directory);
+		}
+	}
+	
+	/**
+	 * Processes a synthetic video in another JVM, with the stubs at the beginning of the PATH, and prints its measures
+	 * @param directory Directory of the input, output and metrics
+	 * @param bin Directory of the stubs
+	 * @param grid Number of tiles of each side of the grid
+	 * @param duration Duration in seconds of the synthetic video
+	 * @param name Name of the benchmark
+	 * @throws Exception
+	 */
+	private static void runProcessing(File directory, File bin, int grid, double duration, String name) throws Exception {
+		directory.mkdirs();
+		String xml = writeXml(directory, grid);
+		Stub.Track video = new Stub.Track();
+		video.width = 1920;
+		video.height = 1080;
+		video.frameRate = K.defaultFrameRate;
+		video.duration = duration;
+		Stub.writeVideo(new File(directory, "input.mp4"), video);
+		
+		ArrayList<String> command = new ArrayList<>();
+		command.add(System.getProperty("java.home")+"/bin/java");
+		for(String property : System.getProperties().stringPropertyNames()) {
+			if(property.startsWith("preprocessing."))
+				command.add("-D"+property+"="+System.getProperty(property));
+		}
+		File metrics = new File(directory, "metrics.prom");
+		command.add("-D"+K.metricsProperty+"="+metrics.getPath());
+		command.add("-D"+K.probeCacheProperty+"="+new File(directory, "probes").getPath());
+		if(System.getProperty(K.historyProperty)==null)
+			command.add("-D"+K.historyProperty+"="+new File(directory, "history.properties").getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add("preprocessing.Preprocess");
+		command.add(xml);
+		ProcessBuilder builder = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(new File(directory, "log.txt"));
+		builder.environment().put("PATH", bin.getAbsolutePath()+File.pathSeparator+System.getenv("PATH"));
+		
+		//Sampling the size of the temporary files until the processing terminates
+		File temp = new File(directory, "output/temp");
+		long peakTemp = 0;
+		long start = System.nanoTime();
+		Process process = builder.start();
+		while(!process.waitFor(sampleInterval, TimeUnit.MILLISECONDS)) {
+			peakTemp = Math.max(peakTemp, size(temp));
+		}
+		double makespan = (System.nanoTime()-start)/1e9;
+		if(process.exitValue()!=0) {
+			System.err.print(new String(Files.readAllBytes(new File(directory, "log.txt").toPath()), StandardCharsets.UTF_8));
+			throw new IOException(name+" failed with exit value "+process.exitValue()+"!");
+		}
+		
+		//Summing the executed jobs and their processing time of each phase written in the metrics file
+		int jobs = 0;
+		int failed = 0;
+		double busy = 0;
+		for(String line : Files.readAllLines(metrics.toPath(), StandardCharsets.UTF_8)) {
+			String value = line.substring(line.lastIndexOf(' ')+1);
+			if(line.startsWith("preprocessing_phase_jobs{")) {
+				if(line.contains("state=\"completed\"")) {
+					jobs += Integer.parseInt(value);
+				} else if(line.contains("state=\"failed\"")) {
+					jobs += Integer.parseInt(value);
+					failed += Integer.parseInt(value);
+				}
+			} else if(line.startsWith("preprocessing_phase_duration_seconds{")) {
+				busy += Double.parseDouble(value);
+			}
+		}
+		double concurrency = busy/makespan;
+		int size = JobPool.defaultSize();
+		System.out.println(String.format(Locale.US, "%s: makespan %.2f s, %d jobs (%d failed), %.2f jobs/s, concurrency %.2f of %d (efficiency %.0f%%), peak temp %.1f MB",
+				name, makespan, jobs, failed, jobs/makespan, concurrency, size, 100*concurrency/size, peakTemp/1e6));
+	}
+	
+	/**
+	 * @param file File or directory
+	 * @return Size in bytes of the file or of all the files of the directory (0 if it doesn't exist)
+	 */
+	private static long size(File file) {
+		File[] children = file.listFiles();
+		if(children==null)
+			return file.length();
+		long size = 0;
+		for(File child : children) {
+			size += size(child);
+		}
+		return size;
+	}
+	
+	/**
+	 * Deletes a file or a directory with all its files
+	 * @param file File or directory
+	 */
+	static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children!=null) {
+			for(File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
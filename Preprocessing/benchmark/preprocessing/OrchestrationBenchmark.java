@@ -0,0 +1,195 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xml.sax.SAXException;
+
+/**
+ * JMH benchmarks of the orchestration code, giving regression numbers without any media tool:
+ * parsing of a large XML file, generation of the commands of a large grid of tiles, assembly of the manifest
+ * of a large grid and dispatch of more than 10000 jobs by the job pool.
+ * The benchmarks are launched with Gradle, e.g. gradle jmh -Pjmh="-p grid=8,16 -p jobs=10000".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class OrchestrationBenchmark {
+	
+	//Segments of each representation in the manifest
+	private static final int segments = 8;
+	
+	@Param("16")
+	public int grid; //Number of tiles of each side of the grid
+	
+	@Param("10000")
+	public int jobs; //Number of jobs dispatched by the job pool
+	
+	private File directory;
+	private String xml;
+	private ArrayList<Version> versions;
+	private ArrayList<Tile> tiles;
+	private File dash;
+	
+	@Setup
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("preprocessing-benchmark").toFile();
+		xml = EndToEndBenchmark.writeXml(directory, grid);
+		versions = new ArrayList<>();
+		for(int v=0; v<EndToEndBenchmark.versions; v++) {
+			versions.add(new Version(1920>>v, 1080>>v, 4000>>v));
+		}
+		tiles = new ArrayList<>();
+		for(int t=0; t<grid*grid; t++) {
+			int x = t%grid;
+			int y = t/grid;
+			tiles.add(new Tile(x, y, 1, 1, (float) x/grid, (float) y/grid, (float) (x+1)/grid, (float) (y+1)/grid));
+		}
+		dash = new File(directory, "dashSRD");
+		writeSegments(dash, grid);
+	}
+	
+	@TearDown
+	public void tearDown() {
+		EndToEndBenchmark.delete(directory);
+	}
+	
+	@Benchmark
+	public Worklist parseXml() throws SAXException, IOException {
+		return new XmlParser(xml).parseXml();
+	}
+	
+	@Benchmark
+	public int generateCommandPortion() {
+		int length = 0;
+		for(Version version : versions) {
+			length += version.generateCommandPortion().length();
+			for(Tile tile : tiles) {
+				length += tile.generateCommandPortion(1920, 1080).length();
+				length += version.generateTileCommandPortion(tile.areaFraction()).length();
+			}
+		}
+		return length;
+	}
+	
+	@Benchmark
+	public void writeManifest() throws IOException {
+		MpdWriter mpd = new MpdWriter(dash.getPath(), 1000, segments);
+		for(int t=0; t<grid*grid; t++) {
+			mpd.addAdaptationSet("video/mp4", "0,"+(t%grid)+","+(t/grid)+",1,1,"+grid+","+grid);
+			for(int v=0; v<EndToEndBenchmark.versions; v++) {
+				mpd.addVideoRepresentation("v"+v+"-t"+t, 1920/grid, 1080/grid);
+			}
+		}
+		mpd.write("manifest.mpd");
+	}
+	
+	/**
+	 * Dispatches jobs shaped like the jobs of the videos: for each version a transcoding, then the tiles
+	 * depending on it. The jobs don't launch any command, so that only the overhead of the pool is measured.
+	 * @throws Exception
+	 */
+	@Benchmark
+	public void dispatch() throws Exception {
+		JobPool jobPool = new JobPool(Runtime.getRuntime().availableProcessors(), Integer.MAX_VALUE, Runtime.getRuntime().availableProcessors());
+		ArrayList<CompletableFuture<Integer>> futures = new ArrayList<>();
+		jobPool.hold();
+		int tileNumber = grid*grid; //Tiles depending on each transcoding
+		CompletableFuture<Integer> transcode = null;
+		for(int i=0; i<jobs; i++) {
+			Job job = new Job("true", "") {
+				@Override
+				public Integer run() {
+					return 0;
+				}
+			};
+			job.setPixels(i%(tileNumber+1)==0 ? 1920*1080 : 1920*1080/tileNumber, 1);
+			job.setWork(i%(tileNumber+1)==0 ? 1e9 : 1e9/tileNumber);
+			if(i%(tileNumber+1)==0) {
+				transcode = jobPool.submit(job);
+				futures.add(transcode);
+			} else {
+				futures.add(jobPool.submit(job, transcode));
+			}
+		}
+		jobPool.open();
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+		jobPool.shutdown();
+	}
+	
+	/**
+	 * Writes an initialization segment and the segments of each tile of each version
+	 * @param dash Directory in which the segments are written
+	 * @param grid Number of tiles of each side of the grid
+	 * @throws IOException
+	 */
+	private static void writeSegments(File dash, int grid) throws IOException {
+		dash.mkdirs();
+		//Minimal H.264 track: a timescale of 1000, then a sample entry of 78 bytes with the profile and level in avcC
+		byte[] init = IsoBmff.box("moov", IsoBmff.box("trak", IsoBmff.box("mdia",
+				IsoBmff.fullBox("mdhd", 0, 0, IsoBmff.int32(0), IsoBmff.int32(0), IsoBmff.int32(1000), IsoBmff.int32(segments*1000), IsoBmff.int32(0)),
+				IsoBmff.box("minf", IsoBmff.box("stbl",
+				IsoBmff.fullBox("stsd", 0, 0, IsoBmff.int32(1),
+						IsoBmff.box("avc1", new byte[78], IsoBmff.box("avcC", new byte[] {1, 0x42, (byte) 0xc0, 0x1e}))))))));
+		for(int t=0; t<grid*grid; t++) {
+			for(int v=0; v<EndToEndBenchmark.versions; v++) {
+				String id = "v"+v+"-t"+t;
+				Files.write(new File(dash, id+K.dashInitSuffix).toPath(), init);
+				for(int s=1; s<=segments; s++) {
+					//One fragment of 25 samples of 40 ms for each second, followed by its samples
+					ByteBuffer samples = ByteBuffer.allocate(4+25*4).putInt(25);
+					for(int i=0; i<25; i++) {
+						samples.putInt(40);
+					}
+					byte[] moof = IsoBmff.box("moof", IsoBmff.box("traf",
+							IsoBmff.fullBox("tfdt", 1, 0, IsoBmff.int64((s-1)*1000L)),
+							IsoBmff.fullBox("trun", 0, 0x000100, samples.array())));
+					Files.write(new File(dash, id+"_"+s+K.dashSegmentExtension).toPath(),
+							concat(moof, IsoBmff.box("mdat", new byte[s*16])));
+				}
+			}
+		}
+	}
+	
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] bytes = Arrays.copyOf(first, first.length+second.length);
+		System.arraycopy(second, 0, bytes, first.length, second.length);
+		return bytes;
+	}
+}
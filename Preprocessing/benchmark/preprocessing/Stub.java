@@ -0,0 +1,788 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Deterministic stand-ins of ffmpeg, ffprobe and MP4Box, executing the whole processing without
+ * the media tools nor real videos:
+ * ffmpeg burns cpuProperty milliseconds of CPU for each megapixel of each encoded second, shared among
+ * the threads of its -threads option (all the cores without it, as ffmpeg), writes its progress in the -progress
+ * file and writes MP4 files whose samples give the bitrate of the output (its -b:v option, or bitrateProperty
+ * kbit/s for each megapixel); the outputs written to a named pipe are fragmented.
+ * ffprobe describes the MP4 files written by the stubs in the flat format.
+ * MP4Box segments its inputs with the Segmenter.
+ * Every command whose arguments match the regular expression of failProperty fails.
+ * The stubs are installed in a directory, to be put at the beginning of the PATH, and the synthetic
+ * videos are written from the shell as follow:
+ * java preprocessing.Stub install directory
+ * java preprocessing.Stub video file width height duration [frame_rate]
+ */
+public class Stub {
+	
+	//System properties of the stubs, given to the installed stubs
+	public static final String cpuProperty = "preprocessing.stub.cpu"; //Milliseconds of CPU for each megapixel of each encoded second
+	public static final String cpuDefault = "100";
+	public static final String bitrateProperty = "preprocessing.stub.bitrate"; //kbit/s for each megapixel, without bitrate option
+	public static final String bitrateDefault = "2000";
+	public static final String failProperty = "preprocessing.stub.fail"; //Regular expression of the arguments of the failing commands
+	
+	//Sample flags of the fragments: sync samples depend on no other sample
+	private static final int syncSampleFlags = 0x02000000;
+	private static final int nonSyncSampleFlags = 0x01010000;
+	
+	//Options of ffmpeg without value
+	private static final List<String> flags = Arrays.asList("-y", "-n", "-vn", "-an", "-sn", "-nostats", "-hide_banner", "-rap");
+	
+	/**
+	 * Track of an MP4 file written or read by the stubs
+	 */
+	static class Track {
+		boolean audio;
+		int width;
+		int height;
+		double frameRate;
+		int sampleRate;
+		int channels;
+		double duration; //Seconds
+		long bitrate; //kbit/s
+		double keyFrameInterval; //Seconds, 0 for the default interval of the encoder
+		
+		int timescale() {
+			return audio ? sampleRate : (int) Math.round(frameRate*1000);
+		}
+		
+		int sampleDuration() {
+			return audio ? 1024 : 1000;
+		}
+		
+		int sampleCount() {
+			return (int) Math.max(1, Math.round(duration*timescale()/sampleDuration()));
+		}
+		
+		int sampleSize() {
+			return (int) Math.max(1, bitrate*125*duration/sampleCount());
+		}
+		
+		//Keyframe every half second, unless forced
+		int syncInterval() {
+			if(audio)
+				return 1;
+			if(keyFrameInterval>0)
+				return (int) Math.max(1, Math.ceil(frameRate*keyFrameInterval-1e-6));
+			return (int) Math.max(1, Math.round(frameRate/2));
+		}
+	}
+	
+	public static void main(String[] args) {
+		if(args.length<1) {
+			System.err.println("Usage: java preprocessing.Stub ffmpeg|ffprobe|MP4Box|install|video arguments...");
+			System.exit(2);
+		}
+		String[] arguments = Arrays.copyOfRange(args, 1, args.length);
+		String fail = System.getProperty(failProperty);
+		if(fail!=null && Pattern.compile(fail).matcher(String.join(" ", arguments)).find()) {
+			System.err.println("stub error: "+args[0]+" arguments matching '"+fail+"'");
+			System.exit(1);
+		}
+		try {
+			switch(args[0]) {
+				case "ffmpeg": ffmpeg(arguments); break;
+				case "ffprobe": ffprobe(arguments); break;
+				case "MP4Box": mp4box(arguments); break;
+				case "install": install(new File(arguments[0])); break;
+				case "video":
+					Track video = new Track();
+					video.width = Integer.parseInt(arguments[1]);
+					video.height = Integer.parseInt(arguments[2]);
+					video.duration = Double.parseDouble(arguments[3]);
+					video.frameRate = arguments.length>4 ? Double.parseDouble(arguments[4]) : K.defaultFrameRate;
+					writeVideo(new File(arguments[0]), video);
+					break;
+				default:
+					System.err.println("Unknown tool "+args[0]+"!");
+					System.exit(2);
+			}
+		} catch (IOException | RuntimeException e) {
+			System.err.println("stub error: "+e);
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Writes the ffmpeg, ffprobe and MP4Box scripts launching the stubs in their own JVM,
+	 * with the stub properties of this JVM
+	 * @param directory Directory to be put at the beginning of the PATH
+	 * @throws IOException
+	 */
+	public static void install(File directory) throws IOException {
+		directory.mkdirs();
+		String properties = "";
+		for(String property : new String[] {cpuProperty, bitrateProperty, failProperty}) {
+			if(System.getProperty(property)!=null)
+				properties += " "+ProcessRunner.quote("-D"+property+"="+System.getProperty(property));
+		}
+		for(String tool : new String[] {"ffmpeg", "ffprobe", "MP4Box"}) {
+			File script = new File(directory, tool);
+			Files.write(script.toPath(), ("#!/bin/sh\nexec "+ProcessRunner.quote(System.getProperty("java.home")+"/bin/java")
+					+" -Xmx"+K.segmenterMemory+"m -XX:TieredStopAtLevel=1"+properties
+					+" -cp "+ProcessRunner.quote(System.getProperty("java.class.path"))+" preprocessing.Stub "+tool+" \"$@\"\n")
+					.getBytes(StandardCharsets.UTF_8));
+			if(!script.setExecutable(true, false))
+				throw new IOException("Unable to make "+script.getPath()+" executable!");
+		}
+	}
+	
+	/**
+	 * Writes a synthetic video with a video track and a stereo audio track
+	 * @param file Video to be written
+	 * @param video Video track (width, height, frame rate and duration)
+	 * @throws IOException
+	 */
+	public static void writeVideo(File file, Track video) throws IOException {
+		video.bitrate = bitrate(video.width, video.height);
+		Track audio = new Track();
+		audio.audio = true;
+		audio.sampleRate = 48000;
+		audio.channels = 2;
+		audio.duration = video.duration;
+		audio.bitrate = 128;
+		writeMp4(file, Arrays.asList(video, audio));
+	}
+	
+	/**
+	 * Emulates an ffmpeg command encoding, cropping, extracting the audio or concatenating videos
+	 * @param args Arguments of ffmpeg
+	 * @throws IOException
+	 */
+	private static void ffmpeg(String[] args) throws IOException {
+		List<Track> input = null;
+		double start = 0;
+		double inputDuration = -1;
+		String progress = null;
+		String filterGraph = null;
+		//Options of the output being parsed
+		HashMap<String,String> options = new HashMap<>();
+		ArrayList<HashMap<String,String>> outputOptions = new ArrayList<>();
+		ArrayList<String> outputs = new ArrayList<>();
+		for(int i=0; i<args.length; i++) {
+			String arg = args[i];
+			if(!arg.startsWith("-") || arg.equals("-")) {
+				outputs.add(arg);
+				outputOptions.add(options);
+				options = new HashMap<>();
+			} else if(flags.contains(arg)) {
+				options.put(arg, "");
+			} else if(i+1<args.length) {
+				String value = args[++i];
+				if(arg.equals("-i")) {
+					input = options.containsKey("-f") && options.get("-f").equals("concat") ? readConcat(new File(value)) : readMp4(new File(value));
+					if(options.containsKey("-ss"))
+						start = Double.parseDouble(options.get("-ss"));
+					if(options.containsKey("-t"))
+						inputDuration = Double.parseDouble(options.get("-t"));
+					options = new HashMap<>();
+				} else if(arg.equals("-progress")) {
+					progress = value;
+				} else if(arg.equals("-filter_complex")) {
+					filterGraph = value;
+				} else {
+					options.put(arg, value);
+				}
+			}
+		}
+		if(input==null)
+			throw new IOException("No input!");
+		Track inputVideo = null;
+		Track inputAudio = null;
+		for(Track track : input) {
+			if(track.audio)
+				inputAudio = track;
+			else
+				inputVideo = track;
+		}
+		
+		//Deriving each output from the input and its options
+		ArrayList<Track> tracks = new ArrayList<>();
+		double cpu = 0;
+		int threads = 0;
+		for(int o=0; o<outputs.size(); o++) {
+			HashMap<String,String> output = outputOptions.get(o);
+			Track source = output.containsKey("-vn") || inputVideo==null ? inputAudio : inputVideo;
+			if(source==null)
+				throw new IOException("No stream for "+outputs.get(o)+"!");
+			Track track = new Track();
+			track.audio = source.audio;
+			track.width = source.width;
+			track.height = source.height;
+			track.frameRate = source.frameRate;
+			track.sampleRate = source.sampleRate;
+			track.channels = source.channels;
+			track.bitrate = source.bitrate;
+			track.duration = Math.max(0, source.duration-start);
+			if(inputDuration>=0)
+				track.duration = Math.min(track.duration, inputDuration);
+			if(output.containsKey("-t"))
+				track.duration = Math.min(track.duration, Double.parseDouble(output.get("-t")));
+			boolean copy = "copy".equals(output.get("-c")) || "copy".equals(output.get(track.audio ? "-c:a" : "-c:v"));
+			if(copy)
+				track.keyFrameInterval = source.keyFrameInterval;
+			//Only the expression forcing a keyframe at regular intervals is understood
+			Matcher forced = Pattern.compile("n_forced[*]([0-9.]+)").matcher(String.valueOf(output.get("-force_key_frames")));
+			if(!copy && forced.find())
+				track.keyFrameInterval = Double.parseDouble(forced.group(1));
+			if(!track.audio && !copy) {
+				String filters = output.containsKey("-vf") ? output.get("-vf") : output.get("-filter:v");
+				if(filterGraph!=null && output.containsKey("-map"))
+					filters = filterChain(filterGraph, output.get("-map"));
+				if(filters!=null)
+					applyFilters(track, filters);
+				track.bitrate = output.containsKey("-b:v") ? parseBitrate(output.get("-b:v")) : bitrate(track.width, track.height);
+				cpu += Double.parseDouble(System.getProperty(cpuProperty, cpuDefault))
+						*track.width*track.height/1e6*track.duration;
+				threads += output.containsKey("-threads") ? Integer.parseInt(output.get("-threads")) : Runtime.getRuntime().availableProcessors();
+			}
+			tracks.add(track);
+		}
+		
+		long launch = System.nanoTime();
+		if(progress!=null)
+			writeProgress(progress, tracks, 0, false);
+		burn(cpu, Math.max(1, threads));
+		for(int o=0; o<outputs.size(); o++) {
+			String movflags = outputOptions.get(o).get("-movflags");
+			if(movflags!=null && movflags.contains("empty_moov")) {
+				OutputStream stream = new BufferedOutputStream(new FileOutputStream(outputs.get(o)), K.streamBuffer);
+				try {
+					writeFragmented(stream, tracks.get(o));
+				} finally {
+					stream.close();
+				}
+			} else {
+				writeMp4(new File(outputs.get(o)), Arrays.asList(tracks.get(o)));
+			}
+		}
+		if(progress!=null)
+			writeProgress(progress, tracks, (System.nanoTime()-launch)/1e9, true);
+	}
+	
+	/**
+	 * Burns CPU time, as an encoder would do
+	 * @param milliseconds CPU time in milliseconds
+	 * @param threads Threads sharing the CPU time
+	 */
+	private static void burn(double milliseconds, int threads) {
+		if(milliseconds<=0)
+			return;
+		long perThread = (long) (milliseconds*1e6/threads);
+		Thread[] burners = new Thread[threads];
+		for(int t=0; t<threads; t++) {
+			burners[t] = new Thread(() -> {
+				ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+				long end = bean.getCurrentThreadCpuTime()+perThread;
+				long sink = 0;
+				while(bean.getCurrentThreadCpuTime()<end) {
+					for(int i=0; i<10000; i++) {
+						sink += i*31L^sink;
+					}
+				}
+				if(sink==42)
+					System.err.print("");
+			});
+			burners[t].start();
+		}
+		for(Thread burner : burners) {
+			try {
+				burner.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Finds the chain of filters of the filter graph producing a label: the filters of the chain producing
+	 * its input are applied first (e.g. [0:v]scale=W:H,split=2[s0][s1];[s0]crop=w:h:x:y[t0])
+	 * @param filterGraph Filter graph
+	 * @param label Label mapped to an output, with or without brackets
+	 * @return Filters separated by commas
+	 */
+	private static String filterChain(String filterGraph, String label) {
+		String wanted = label.startsWith("[") ? label : "["+label+"]";
+		for(String chain : filterGraph.split(";")) {
+			if(chain.endsWith(wanted) || chain.contains(wanted+"[") || chain.matches(".*\\]"+Pattern.quote(wanted)+".*") ) {
+				Matcher inputLabel = Pattern.compile("^\\[([^\\]]+)\\]").matcher(chain);
+				String filters = chain.replaceAll("\\[[^\\]]*\\]", "");
+				if(inputLabel.find() && !inputLabel.group(1).contains(":"))
+					return filterChain(filterGraph, inputLabel.group(1))+","+filters;
+				return filters;
+			}
+		}
+		return "";
+	}
+	
+	/**
+	 * Applies the scale and crop filters to the resolution of a track
+	 * @param track Track whose resolution is changed
+	 * @param filters Filters separated by commas
+	 */
+	private static void applyFilters(Track track, String filters) {
+		for(String filter : filters.split(",")) {
+			Matcher size = Pattern.compile("^(scale|crop)=(\\d+):(\\d+)").matcher(filter.trim());
+			if(size.find()) {
+				track.width = Integer.parseInt(size.group(2));
+				track.height = Integer.parseInt(size.group(3));
+			}
+		}
+	}
+	
+	/**
+	 * @param bitrate Bitrate option of ffmpeg (e.g. 500k or 2M)
+	 * @return Bitrate in kbit/s
+	 */
+	private static long parseBitrate(String bitrate) {
+		String value = bitrate.toLowerCase(Locale.US);
+		if(value.endsWith("k"))
+			return (long) Double.parseDouble(value.substring(0, value.length()-1));
+		if(value.endsWith("m"))
+			return (long) (Double.parseDouble(value.substring(0, value.length()-1))*1000);
+		return (long) (Double.parseDouble(value)/1000);
+	}
+	
+	/**
+	 * @param width Video width
+	 * @param height Video height
+	 * @return Bitrate in kbit/s of a video encoded without a bitrate option
+	 */
+	private static long bitrate(int width, int height) {
+		return Math.max(1, Math.round(Double.parseDouble(System.getProperty(bitrateProperty, bitrateDefault))
+				*width*height/1e6));
+	}
+	
+	/**
+	 * Writes a block of the progress file, in the format of the -progress option of ffmpeg
+	 * @param file Progress file
+	 * @param tracks Tracks being encoded
+	 * @param elapsed Seconds since the launch
+	 * @param end True if the encoding is terminated
+	 * @throws IOException
+	 */
+	private static void writeProgress(String file, List<Track> tracks, double elapsed, boolean end) throws IOException {
+		double duration = end ? tracks.get(0).duration : 0;
+		long frames = end && !tracks.get(0).audio ? tracks.get(0).sampleCount() : 0;
+		long bitrate = 0;
+		for(Track track : tracks) {
+			bitrate += track.bitrate;
+		}
+		PrintStream writer = new PrintStream(new FileOutputStream(file, true), false, "UTF-8");
+		writer.print("frame="+frames+"\n"
+				+String.format(Locale.US, "fps=%.2f\n", elapsed>0 ? frames/elapsed : 0)
+				+"bitrate="+bitrate+".0kbits/s\n"
+				+"out_time_us="+(long) (duration*1e6)+"\n"
+				+String.format(Locale.US, "speed=%.3gx\n", elapsed>0 ? duration/elapsed : 0)
+				+"progress="+(end ? "end" : "continue")+"\n");
+		writer.close();
+	}
+	
+	/**
+	 * Emulates ffprobe printing either the packets of the first video stream in the csv format
+	 * (with -select_streams), or the duration and the streams of a file in the flat format
+	 * @param args Arguments of ffprobe, the last one being the probed file
+	 * @throws IOException
+	 */
+	private static void ffprobe(String[] args) throws IOException {
+		List<Track> tracks = readMp4(new File(args[args.length-1]));
+		StringBuilder output = new StringBuilder();
+		if(Arrays.asList(args).contains("-select_streams")) {
+			for(Track track : tracks) {
+				if(track.audio)
+					continue;
+				for(int s=0; s<track.sampleCount(); s++) {
+					output.append(String.format(Locale.US, "%.6f", (double) s*track.sampleDuration()/track.timescale()))
+							.append(s%track.syncInterval()==0 ? ",K_\n" : ",__\n");
+				}
+				break;
+			}
+			System.out.print(output);
+			return;
+		}
+		double duration = 0;
+		for(Track track : tracks) {
+			duration = Math.max(duration, track.duration);
+		}
+		for(int index=0; index<tracks.size(); index++) {
+			Track track = tracks.get(index);
+			String prefix = "streams.stream."+index+".";
+			output.append(prefix).append("index=").append(index).append("\n");
+			if(track.audio) {
+				output.append(prefix).append("codec_name=\"aac\"\n").append(prefix).append("codec_type=\"audio\"\n")
+						.append(prefix).append("sample_rate=\"").append(track.sampleRate).append("\"\n")
+						.append(prefix).append("channels=").append(track.channels).append("\n");
+			} else {
+				output.append(prefix).append("codec_name=\"h264\"\n").append(prefix).append("codec_type=\"video\"\n")
+						.append(prefix).append("width=").append(track.width).append("\n")
+						.append(prefix).append("height=").append(track.height).append("\n")
+						.append(prefix).append("r_frame_rate=\"").append(track.timescale()).append("/").append(track.sampleDuration()).append("\"\n");
+			}
+		}
+		output.append(String.format(Locale.US, "format.duration=\"%.6f\"\n", duration));
+		System.out.print(output);
+	}
+	
+	/**
+	 * Emulates MP4Box segmenting its inputs: the segments are written by the Segmenter, with the same names,
+	 * and the manifest lists the representations without SRD
+	 * @param args Arguments of MP4Box
+	 * @throws IOException
+	 */
+	private static void mp4box(String[] args) throws IOException {
+		int segment = 0;
+		String manifest = null;
+		ArrayList<String> inputs = new ArrayList<>();
+		for(int i=0; i<args.length; i++) {
+			if(args[i].equals("-dash"))
+				segment = Integer.parseInt(args[++i]);
+			else if(args[i].equals("-out"))
+				manifest = args[++i];
+			else if(args[i].equals("-segment-name"))
+				i++;
+			else if(!args[i].startsWith("-"))
+				inputs.add(args[i]);
+		}
+		if(segment<=0 || manifest==null)
+			throw new IOException("Missing -dash or -out option!");
+		File directory = new File(manifest).getAbsoluteFile().getParentFile();
+		directory.mkdirs();
+		Segmenter segmenter = new Segmenter(segment, directory.getPath());
+		double duration = 0;
+		ArrayList<Track> tracks = new ArrayList<>();
+		for(String input : inputs) {
+			segmenter.segment(input);
+			boolean audio = input.matches(".*#audio[^#/]*");
+			Track track = null;
+			for(Track candidate : readMp4(new File(input.replaceFirst("#[^#/]*$", "")))) {
+				if(track==null || candidate.audio==audio && track.audio!=audio)
+					track = candidate;
+			}
+			duration = Math.max(duration, track.duration);
+			tracks.add(track);
+		}
+		MpdWriter mpd = new MpdWriter(directory.getPath(), segment, duration);
+		for(int i=0; i<inputs.size(); i++) {
+			Track track = tracks.get(i);
+			String id = new File(inputs.get(i).replaceFirst("#[^#/]*$", "")).getName().replaceFirst("[.][^.]+$", "");
+			mpd.addAdaptationSet(track.audio ? "audio/mp4" : "video/mp4", null);
+			if(track.audio)
+				mpd.addAudioRepresentation(id, track.sampleRate, track.channels);
+			else
+				mpd.addVideoRepresentation(id, track.width, track.height);
+		}
+		mpd.write(new File(manifest).getName());
+	}
+	
+	/**
+	 * Reads the tracks of an MP4 file written by the stubs
+	 * @param file MP4 file
+	 * @return Tracks of the file
+	 * @throws IOException
+	 */
+	static List<Track> readMp4(File file) throws IOException {
+		ArrayList<Track> tracks = new ArrayList<>();
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		MappedByteBuffer moov;
+		try {
+			moov = IsoBmff.map(randomAccessFile.getChannel(), "moov");
+		} finally {
+			randomAccessFile.close();
+		}
+		if(moov==null)
+			throw new IOException("Missing moov box in "+file.getPath()+"!");
+		long end = moov.limit();
+		long trak = IsoBmff.find(moov, IsoBmff.headerSize(moov, 0), end, "trak");
+		while(trak>=0) {
+			long trakEnd = trak+IsoBmff.size(moov, trak, end);
+			long hdlr = IsoBmff.child(moov, trak, "mdia", "hdlr");
+			long mdhd = IsoBmff.child(moov, trak, "mdia", "mdhd");
+			long stsd = IsoBmff.child(moov, trak, "mdia", "minf", "stbl", "stsd");
+			long stsz = IsoBmff.child(moov, trak, "mdia", "minf", "stbl", "stsz");
+			long stss = IsoBmff.child(moov, trak, "mdia", "minf", "stbl", "stss");
+			if(hdlr<0 || mdhd<0 || stsd<0 || stsz<0)
+				throw new IOException("Incomplete track in "+file.getPath()+"!");
+			Track track = new Track();
+			track.audio = IsoBmff.type(moov, hdlr+12).equals("soun");
+			long timescale = moov.getInt((int) mdhd+20) & 0xFFFFFFFFL;
+			long duration = moov.getInt((int) mdhd+24) & 0xFFFFFFFFL;
+			long entry = stsd+16;
+			if(track.audio) {
+				track.channels = moov.getShort((int) entry+24);
+				track.sampleRate = (int) timescale;
+			} else {
+				track.width = moov.getShort((int) entry+32) & 0xFFFF;
+				track.height = moov.getShort((int) entry+34) & 0xFFFF;
+				track.frameRate = timescale/1000.0;
+				//Keyframe interval given by the first two sync samples (every sample without stss box)
+				int interval = 1;
+				if(stss>=0 && moov.getInt((int) stss+12)>=2)
+					interval = moov.getInt((int) stss+20)-moov.getInt((int) stss+16);
+				track.keyFrameInterval = interval/track.frameRate;
+			}
+			track.duration = (double) duration/timescale;
+			long sampleSize = moov.getInt((int) stsz+12) & 0xFFFFFFFFL;
+			track.bitrate = Math.round(sampleSize*track.sampleCount()/track.duration/125);
+			tracks.add(track);
+			trak = IsoBmff.find(moov, trakEnd, end, "trak");
+		}
+		return tracks;
+	}
+	
+	/**
+	 * Reads the chunks listed in a file of the concat demuxer
+	 * @param list List of the chunks (file 'name' lines, relative to the list)
+	 * @return Track of the concatenated chunks
+	 * @throws IOException
+	 */
+	private static List<Track> readConcat(File list) throws IOException {
+		Track concatenated = null;
+		long bytes = 0;
+		for(String line : Files.readAllLines(list.toPath(), StandardCharsets.UTF_8)) {
+			if(!line.startsWith("file "))
+				continue;
+			String name = ProcessRunner.split(line.substring(5)).get(0);
+			File chunk = new File(name).isAbsolute() ? new File(name) : new File(list.getParentFile(), name);
+			Track track = readMp4(chunk).get(0);
+			bytes += (long) track.sampleSize()*track.sampleCount();
+			if(concatenated==null)
+				concatenated = track;
+			else
+				concatenated.duration += track.duration;
+		}
+		if(concatenated==null)
+			throw new IOException("No chunks in "+list.getPath()+"!");
+		concatenated.bitrate = Math.round(bytes/concatenated.duration/125);
+		return Arrays.asList(concatenated);
+	}
+	
+	/**
+	 * Writes an MP4 file: the samples of all the tracks in a single mdat box, followed by the moov box
+	 * @param file File to be written
+	 * @param tracks Tracks of the file
+	 * @throws IOException
+	 */
+	static void writeMp4(File file, List<Track> tracks) throws IOException {
+		byte[] ftyp = IsoBmff.box("ftyp", IsoBmff.fourcc("isom"), IsoBmff.int32(512), IsoBmff.fourcc("isom"), IsoBmff.fourcc("avc1"));
+		long dataSize = 0;
+		for(Track track : tracks) {
+			dataSize += (long) track.sampleSize()*track.sampleCount();
+		}
+		boolean large = dataSize+8>0xFFFFFFFFL;
+		long offset = ftyp.length+(large ? 16 : 8);
+		
+		ArrayList<byte[]> traks = new ArrayList<>();
+		double duration = 0;
+		for(int t=0; t<tracks.size(); t++) {
+			Track track = tracks.get(t);
+			traks.add(trak(track, t+1, sampleTables(track, offset)));
+			offset += (long) track.sampleSize()*track.sampleCount();
+			duration = Math.max(duration, track.duration);
+		}
+		byte[] moov = IsoBmff.box("moov", mvhd(duration, tracks.size()+1), concat(traks));
+		
+		OutputStream output = new BufferedOutputStream(new FileOutputStream(file), K.streamBuffer);
+		try {
+			output.write(ftyp);
+			if(large) {
+				output.write(IsoBmff.int32(1));
+				output.write(IsoBmff.fourcc("mdat"));
+				output.write(IsoBmff.int64(dataSize+16));
+			} else {
+				output.write(IsoBmff.int32(dataSize+8));
+				output.write(IsoBmff.fourcc("mdat"));
+			}
+			for(Track track : tracks) {
+				byte[] sample = new byte[track.sampleSize()];
+				for(int s=0; s<track.sampleCount(); s++) {
+					Arrays.fill(sample, (byte) s);
+					output.write(sample);
+				}
+			}
+			output.write(moov);
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Writes a fragmented MP4 stream with a single track and a fragment for each keyframe interval,
+	 * as written by ffmpeg with -movflags empty_moov+default_base_moof+frag_keyframe
+	 * @param output Stream to be written
+	 * @param track Track of the stream
+	 * @throws IOException
+	 */
+	static void writeFragmented(OutputStream output, Track track) throws IOException {
+		byte[] emptyTables = concat(Arrays.asList(
+				IsoBmff.fullBox("stts", 0, 0, IsoBmff.int32(0)),
+				IsoBmff.fullBox("stsc", 0, 0, IsoBmff.int32(0)),
+				IsoBmff.fullBox("stsz", 0, 0, IsoBmff.int32(0), IsoBmff.int32(0)),
+				IsoBmff.fullBox("stco", 0, 0, IsoBmff.int32(0))));
+		Track empty = new Track();
+		empty.audio = track.audio;
+		empty.sampleRate = track.sampleRate;
+		empty.frameRate = track.frameRate;
+		output.write(IsoBmff.box("ftyp", IsoBmff.fourcc("iso5"), IsoBmff.int32(512), IsoBmff.fourcc("iso5"), IsoBmff.fourcc("iso6")));
+		output.write(IsoBmff.box("moov", mvhd(0, 2), trak(track, 1, emptyTables),
+				IsoBmff.box("mvex", IsoBmff.fullBox("trex", 0, 0, IsoBmff.int32(1), IsoBmff.int32(1),
+						IsoBmff.int32(track.sampleDuration()), IsoBmff.int32(0), IsoBmff.int32(nonSyncSampleFlags)))));
+		int count = track.sampleCount();
+		int size = track.sampleSize();
+		int interval = track.syncInterval()*(track.audio ? Math.max(1, track.timescale()/track.sampleDuration()/2) : 1);
+		for(int first=0, sequence=1; first<count; first+=interval, sequence++) {
+			int samples = Math.min(interval, count-first);
+			byte[] sizes = new byte[samples*8];
+			ByteBuffer entries = ByteBuffer.wrap(sizes);
+			for(int s=0; s<samples; s++) {
+				entries.putInt(track.sampleDuration()).putInt(size);
+			}
+			byte[] moof = null;
+			for(int pass=0; pass<2; pass++) {
+				//The data offset depends on the size of the moof box itself
+				moof = IsoBmff.box("moof", IsoBmff.fullBox("mfhd", 0, 0, IsoBmff.int32(sequence)),
+						IsoBmff.box("traf", IsoBmff.fullBox("tfhd", 0, 0x020000, IsoBmff.int32(1)),
+								IsoBmff.fullBox("tfdt", 1, 0, IsoBmff.int64((long) first*track.sampleDuration())),
+								IsoBmff.fullBox("trun", 0, 0x305, IsoBmff.int32(samples),
+										IsoBmff.int32(moof!=null ? moof.length+8 : 0), IsoBmff.int32(syncSampleFlags), sizes)));
+			}
+			output.write(moof);
+			output.write(IsoBmff.int32((long) samples*size+8));
+			output.write(IsoBmff.fourcc("mdat"));
+			byte[] sample = new byte[size];
+			for(int s=first; s<first+samples; s++) {
+				Arrays.fill(sample, (byte) s);
+				output.write(sample);
+			}
+		}
+	}
+	
+	/**
+	 * Builds the sample tables of a track whose samples are contiguous
+	 * @param track Track
+	 * @param offset Offset of the first sample in the file
+	 * @return stts, stss, stsz, stsc and stco boxes
+	 */
+	private static byte[] sampleTables(Track track, long offset) {
+		int count = track.sampleCount();
+		ArrayList<byte[]> boxes = new ArrayList<>();
+		boxes.add(IsoBmff.fullBox("stts", 0, 0, IsoBmff.int32(1), IsoBmff.int32(count), IsoBmff.int32(track.sampleDuration())));
+		if(track.syncInterval()>1) {
+			int syncCount = (count+track.syncInterval()-1)/track.syncInterval();
+			ByteBuffer sync = ByteBuffer.allocate(4+4*syncCount).putInt(syncCount);
+			for(int s=0; s<count; s+=track.syncInterval()) {
+				sync.putInt(s+1);
+			}
+			boxes.add(IsoBmff.fullBox("stss", 0, 0, sync.array()));
+		}
+		boxes.add(IsoBmff.fullBox("stsz", 0, 0, IsoBmff.int32(track.sampleSize()), IsoBmff.int32(count)));
+		boxes.add(IsoBmff.fullBox("stsc", 0, 0, IsoBmff.int32(1), IsoBmff.int32(1), IsoBmff.int32(count), IsoBmff.int32(1)));
+		if(offset>0xFFFFFFFFL)
+			boxes.add(IsoBmff.fullBox("co64", 0, 0, IsoBmff.int32(1), IsoBmff.int64(offset)));
+		else
+			boxes.add(IsoBmff.fullBox("stco", 0, 0, IsoBmff.int32(1), IsoBmff.int32(offset)));
+		return concat(boxes);
+	}
+	
+	/**
+	 * Builds the trak box of a track
+	 * @param track Track
+	 * @param id Track identifier
+	 * @param tables Sample tables following the sample description
+	 * @return trak box
+	 */
+	private static byte[] trak(Track track, int id, byte[] tables) {
+		long duration = (long) track.sampleCount()*track.sampleDuration();
+		byte[] entry;
+		if(track.audio) {
+			//AAC-LC: the AudioSpecificConfig gives the audio object type, the sampling frequency index and the channels
+			int frequency = Arrays.asList(96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000).indexOf(track.sampleRate);
+			int config = 2<<11 | (frequency<0 ? 15 : frequency)<<7 | track.channels<<3;
+			byte[] esds = {3, 25, 0, 1, 0, 4, 17, 0x40, 0x15, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+					5, 2, (byte) (config>>8), (byte) config, 6, 1, 2};
+			entry = IsoBmff.box("mp4a", ByteBuffer.allocate(28).putShort(6, (short) 1).putShort(16, (short) track.channels)
+					.putShort(18, (short) 16).putInt(24, track.sampleRate<<16).array(), IsoBmff.fullBox("esds", 0, 0, esds));
+		} else {
+			//Baseline profile, level chosen from the frame size
+			long pixels = (long) track.width*track.height;
+			byte level = (byte) (pixels<=414720 ? 0x1e : pixels<=2097152 ? 0x28 : 0x33);
+			entry = IsoBmff.box("avc1", ByteBuffer.allocate(78).putShort(6, (short) 1).putShort(24, (short) track.width)
+					.putShort(26, (short) track.height).putInt(28, 0x00480000).putInt(32, 0x00480000).putShort(40, (short) 1)
+					.putShort(74, (short) 0x18).putShort(76, (short) -1).array(),
+					IsoBmff.box("avcC", new byte[] {1, 0x42, (byte) 0xc0, level, (byte) 0xff, (byte) 0xe0, 0}));
+		}
+		byte[] tkhd = IsoBmff.fullBox("tkhd", 0, 3, ByteBuffer.allocate(80).putInt(8, id)
+				.putInt(16, (int) Math.round(track.duration*1000)).putShort(32, (short) (track.audio ? 0x0100 : 0))
+				.putInt(36, 0x00010000).putInt(52, 0x00010000).putInt(68, 0x40000000).putInt(72, track.width<<16).putInt(76, track.height<<16).array());
+		byte[] mdhd = IsoBmff.fullBox("mdhd", 0, 0, IsoBmff.int32(0), IsoBmff.int32(0), IsoBmff.int32(track.timescale()),
+				IsoBmff.int32(duration), IsoBmff.int32(0x55c40000L));
+		byte[] hdlr = IsoBmff.fullBox("hdlr", 0, 0, IsoBmff.int32(0), IsoBmff.fourcc(track.audio ? "soun" : "vide"), new byte[13]);
+		byte[] header = track.audio ? IsoBmff.fullBox("smhd", 0, 0, new byte[4]) : IsoBmff.fullBox("vmhd", 0, 1, new byte[8]);
+		byte[] dinf = IsoBmff.box("dinf", IsoBmff.fullBox("dref", 0, 0, IsoBmff.int32(1), IsoBmff.fullBox("url ", 0, 1)));
+		byte[] stbl = IsoBmff.box("stbl", IsoBmff.fullBox("stsd", 0, 0, IsoBmff.int32(1), entry), tables);
+		return IsoBmff.box("trak", tkhd, IsoBmff.box("mdia", mdhd, hdlr, IsoBmff.box("minf", header, dinf, stbl)));
+	}
+	
+	/**
+	 * Builds the mvhd box, with a timescale of 1000
+	 * @param duration Duration in seconds
+	 * @param nextTrack Identifier of the next track
+	 * @return mvhd box
+	 */
+	private static byte[] mvhd(double duration, int nextTrack) {
+		return IsoBmff.fullBox("mvhd", 0, 0, ByteBuffer.allocate(96).putInt(8, 1000).putInt(12, (int) Math.round(duration*1000))
+				.putInt(16, 0x00010000).putShort(20, (short) 0x0100)
+				.putInt(32, 0x00010000).putInt(48, 0x00010000).putInt(64, 0x40000000).putInt(92, nextTrack).array());
+	}
+	
+	private static byte[] concat(List<byte[]> parts) {
+		int length = 0;
+		for(byte[] part : parts) {
+			length += part.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		for(byte[] part : parts) {
+			buffer.put(part);
+		}
+		return buffer.array();
+	}
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Coordinator of the distributed mode: the jobs are not executed locally but queued
+ * until a remote Worker pulls them over HTTP. The files are assumed to be on a storage
+ * shared by the coordinator and all the workers, with the same paths.
+ * The protocol is the following:
+ * GET /job?worker=ID returns 204 if no job is available, otherwise the job id on the first line and the command;
+ * POST /result?worker=ID&amp;job=JOB&amp;exit=VALUE reports the exit value of a job, the body giving the last lines
+ * of its standard error if it failed;
+ * POST /heartbeat?worker=ID is sent periodically by a worker while it runs jobs.
+ * The jobs of a worker not heard from for K.workerTimeout milliseconds are queued again: a job given again to
+ * another worker is recorded as started once in the metrics. A cancelled job is not given to a worker anymore.
+ */
+public class Coordinator {
+	
+	private HttpServer server;
+	private ScheduledExecutorService monitor;
+	private long workerTimeout; //Milliseconds after which a silent worker is considered lost
+	
+	private int nextId; //Id of the next submitted job
+	private LinkedList<RemoteJob> pending; //Jobs waiting for a worker
+	private HashMap<Integer,RemoteJob> running; //Jobs assigned to a worker, by id
+	private HashMap<String,Long> workers; //Time in milliseconds at which each worker has been heard from
+	
+	/**
+	 * A job waiting for a worker or running on a worker
+	 */
+	private static class RemoteJob {
+		int id;
+		Job job;
+		CompletableFuture<Integer> future; //Completed once the worker reports the exit value
+		String worker; //Worker running the job (null if pending)
+		boolean started; //True once the job has been given to a worker
+	}
+	
+	public Coordinator(int port) throws IOException {
+		this(port, K.workerTimeout);
+	}
+	
+	/**
+	 * @param port Port on which the jobs are given to the workers (0 for any free port)
+	 * @param workerTimeout Milliseconds after which a silent worker is considered lost
+	 * @throws IOException
+	 */
+	public Coordinator(int port, long workerTimeout) throws IOException {
+		this.workerTimeout = workerTimeout;
+		this.pending = new LinkedList<>();
+		this.running = new HashMap<>();
+		this.workers = new HashMap<>();
+		this.server = HttpServer.create(new InetSocketAddress(port), 0);
+		this.server.createContext("/job", this::handleJob);
+		this.server.createContext("/result", this::handleResult);
+		this.server.createContext("/heartbeat", this::handleHeartbeat);
+		this.server.setExecutor(Executors.newFixedThreadPool(K.coordinatorThreads));
+		this.server.start();
+		this.monitor = Executors.newSingleThreadScheduledExecutor();
+		this.monitor.scheduleWithFixedDelay(this::checkWorkers, workerTimeout, workerTimeout/2, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * @return Port on which the jobs are given to the workers
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+	
+	/**
+	 * Queues a job until a worker pulls it.
+	 * If the job has been already executed with the same fingerprint it is not queued.
+	 * @param job Job to be executed
+	 * @return Future holding the exit value of the command
+	 */
+	public CompletableFuture<Integer> submit(Job job) {
+		CompletableFuture<Integer> future = new CompletableFuture<>();
+		try {
+			if(job.alreadyDone()) {
+				future.complete(0);
+				return future;
+			}
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+		RemoteJob remoteJob = new RemoteJob();
+		remoteJob.job = job;
+		remoteJob.future = future;
+		synchronized (this) {
+			remoteJob.id = nextId++;
+			pending.add(remoteJob);
+		}
+		//A cancelled job is dropped (e.g. a job of a video whose planning failed)
+		future.whenComplete((v, e) -> {
+			if(future.isCancelled())
+				cancelled(remoteJob);
+		});
+		return future;
+	}
+	
+	/**
+	 * Drops a cancelled job if it is still pending. A cancelled job already running is kept until
+	 * its worker reports its result or is lost, so that its end is recorded in the metrics.
+	 * @param remoteJob Cancelled job
+	 */
+	private synchronized void cancelled(RemoteJob remoteJob) {
+		//A job queued again after the loss of a worker has been recorded as started
+		if(pending.remove(remoteJob) && remoteJob.started)
+			Metrics.finished(remoteJob.job, false);
+	}
+	
+	/**
+	 * Gives the pending job with the highest priority (the first one among equals) to the worker asking for it
+	 * @param exchange HTTP request
+	 * @throws IOException
+	 */
+	private void handleJob(HttpExchange exchange) throws IOException {
+		String worker = parseQuery(exchange).get("worker");
+		RemoteJob remoteJob = null;
+		synchronized (this) {
+			if(worker!=null) {
+				workers.put(worker, System.currentTimeMillis());
+				for(RemoteJob candidate : pending) {
+					if(remoteJob==null || candidate.job.getPriority()>remoteJob.job.getPriority())
+						remoteJob = candidate;
+				}
+			}
+			if(remoteJob!=null) {
+				pending.remove(remoteJob);
+				remoteJob.worker = worker;
+				running.put(remoteJob.id, remoteJob);
+				//A job queued again after the loss of a worker has already been counted
+				if(!remoteJob.started) {
+					remoteJob.started = true;
+					remoteJob.job.started();
+				}
+			}
+		}
+		if(worker==null) {
+			reply(exchange, 400, "");
+		} else if(remoteJob==null) {
+			reply(exchange, 204, null);
+		} else {
+			reply(exchange, 200, remoteJob.id+"\n"+remoteJob.job.getCommand());
+		}
+	}
+	
+	/**
+	 * Terminates the job whose exit value is reported by a worker, with the end of its standard error given in the body.
+	 * Results of jobs that have been given to another worker in the meantime are ignored.
+	 * @param exchange HTTP request
+	 * @throws IOException
+	 */
+	private void handleResult(HttpExchange exchange) throws IOException {
+		String errorTail = readBody(exchange);
+		Map<String,String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+		RemoteJob remoteJob;
+		try {
+			int id = Integer.parseInt(query.get("job"));
+			int exitValue = Integer.parseInt(query.get("exit"));
+			synchronized (this) {
+				workers.put(query.get("worker"), System.currentTimeMillis());
+				remoteJob = running.get(id);
+				if(remoteJob==null || !remoteJob.worker.equals(query.get("worker"))) {
+					remoteJob = null;
+				} else {
+					running.remove(id);
+				}
+			}
+			if(remoteJob!=null) {
+				try {
+					remoteJob.future.complete(remoteJob.job.complete(exitValue, errorTail));
+				} catch (IOException e) {
+					remoteJob.future.completeExceptionally(e);
+				}
+			}
+			reply(exchange, 200, "");
+		} catch (NumberFormatException e) {
+			reply(exchange, 400, "");
+		}
+	}
+	
+	/**
+	 * Records that a worker is still alive
+	 * @param exchange HTTP request
+	 * @throws IOException
+	 */
+	private void handleHeartbeat(HttpExchange exchange) throws IOException {
+		String worker = parseQuery(exchange).get("worker");
+		if(worker!=null) {
+			synchronized (this) {
+				workers.put(worker, System.currentTimeMillis());
+			}
+		}
+		reply(exchange, 200, "");
+	}
+	
+	/**
+	 * Queues again, in front of the pending jobs, the jobs of the workers
+	 * that have not been heard from for workerTimeout milliseconds (the cancelled jobs are dropped)
+	 */
+	private synchronized void checkWorkers() {
+		long now = System.currentTimeMillis();
+		Iterator<RemoteJob> iterator = running.values().iterator();
+		while(iterator.hasNext()) {
+			RemoteJob remoteJob = iterator.next();
+			Long lastSeen = workers.get(remoteJob.worker);
+			if(lastSeen==null || now-lastSeen>workerTimeout) {
+				iterator.remove();
+				if(remoteJob.future.isCancelled()) {
+					System.err.println("Worker "+remoteJob.worker+" lost: cancelled job "+remoteJob.id+" dropped");
+					Metrics.finished(remoteJob.job, false);
+					continue;
+				}
+				System.err.println("Worker "+remoteJob.worker+" lost: job "+remoteJob.id+" queued again");
+				remoteJob.worker = null;
+				pending.addFirst(remoteJob);
+			}
+		}
+	}
+	
+	/**
+	 * Reads the request body
+	 * @param exchange HTTP request
+	 * @return Body decoded as UTF-8 (empty if the request has no body)
+	 * @throws IOException
+	 */
+	private String readBody(HttpExchange exchange) throws IOException {
+		InputStream body = exchange.getRequestBody();
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while((read = body.read(buffer))!=-1) {
+			content.write(buffer, 0, read);
+		}
+		body.close();
+		return new String(content.toByteArray(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Drains the request body and parses the query string
+	 * @param exchange HTTP request
+	 * @return Parameters of the query string
+	 * @throws IOException
+	 */
+	private Map<String,String> parseQuery(HttpExchange exchange) throws IOException {
+		readBody(exchange);
+		return parseQuery(exchange.getRequestURI().getRawQuery());
+	}
+	
+	/**
+	 * Parses a query string
+	 * @param query Raw query string (can be null)
+	 * @return Parameters of the query string
+	 * @throws IOException
+	 */
+	private Map<String,String> parseQuery(String query) throws IOException {
+		HashMap<String,String> parameters = new HashMap<>();
+		if(query!=null) {
+			for(String parameter : query.split("&")) {
+				String[] pieces = parameter.split("=", 2);
+				if(pieces.length==2)
+					parameters.put(pieces[0], URLDecoder.decode(pieces[1], "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+	
+	/**
+	 * Sends the response
+	 * @param exchange HTTP request
+	 * @param status HTTP status
+	 * @param body Response body (null if the response has no body)
+	 * @throws IOException
+	 */
+	private void reply(HttpExchange exchange, int status, String body) throws IOException {
+		if(body==null) {
+			exchange.sendResponseHeaders(status, -1);
+		} else {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			content.write(body.getBytes(StandardCharsets.UTF_8));
+			exchange.sendResponseHeaders(status, content.size());
+			OutputStream output = exchange.getResponseBody();
+			content.writeTo(output);
+			output.close();
+		}
+		exchange.close();
+	}
+	
+	/**
+	 * Stops the HTTP server and the monitoring of the workers
+	 */
+	public void shutdown() {
+		server.stop(1);
+		monitor.shutdown();
+		((ExecutorService) server.getExecutor()).shutdown();
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Properties;
+
+/**
+ * Model estimating the cost of the jobs, so that the longest ones are launched first.
+ * The work of a job is given by the Worklist: pixels multiplied by frames, plus the encoded bits, for an encoding,
+ * and seconds of media for the other commands. The cost is the work multiplied by the seconds per unit of work
+ * of the phase of the job, measured on the jobs already executed on this machine: the measures are kept in a
+ * history file, one for each host, so that the estimates are refined at each run.
+ */
+public class CostModel {
+	
+	private String file; //History file (null if the history is not persisted)
+	private Properties history; //Seconds of a thread for each unit of work, by phase
+	
+	/**
+	 * Loads the history, if it exists
+	 * @param file Path of the history file (null if the history is not persisted)
+	 */
+	public CostModel(String file) {
+		this.file = file;
+		this.history = new Properties();
+		if(file!=null && new File(file).exists()) {
+			try (InputStream input = new FileInputStream(file)) {
+				history.load(input);
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("Unable to read the job history "+file+": "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Retrieves the history file from the system property K.historyProperty.
+	 * If the property is not set, a file named after the host inside the user home is used.
+	 * @return Path of the history file
+	 */
+	public static String defaultFile() {
+		String file = System.getProperty(K.historyProperty);
+		if(file!=null)
+			return file;
+		String host;
+		try {
+			host = InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			host = "localhost";
+		}
+		return System.getProperty("user.home")+"/"+K.historyDefault+"/"+host.replaceAll("[^A-Za-z0-9_.-]", "_")+".properties";
+	}
+	
+	/**
+	 * Estimates the seconds of a thread needed to execute a job
+	 * @param job Job to be executed
+	 * @return Estimated cost
+	 */
+	public synchronized double estimate(Job job) {
+		return job.getWork()*secondsPerWork(job);
+	}
+	
+	/**
+	 * Refines the seconds per unit of work of the phase of a job with the measured duration of its command.
+	 * The duration is multiplied by the threads of the job, so that the measure doesn't depend
+	 * on how many jobs were running at the same time.
+	 * @param job Job executed locally
+	 * @param duration Wall-clock duration in milliseconds
+	 */
+	public synchronized void record(Job job, long duration) {
+		if(job.getWork()<=0 || duration<=0)
+			return;
+		double measured = duration/1000.0*Math.max(1, job.getThreads())/job.getWork();
+		String phase = job.getPhase();
+		double secondsPerWork = history.containsKey(phase) ?
+				secondsPerWork(job)+K.historyWeight*(measured-secondsPerWork(job)) : measured;
+		history.setProperty(phase, Double.toString(secondsPerWork));
+	}
+	
+	/**
+	 * Writes the history, replacing the previous file at once
+	 */
+	public synchronized void save() {
+		if(file==null || history.isEmpty())
+			return;
+		File history = new File(file);
+		File partial = new File(file+".part");
+		if(history.getParentFile()!=null)
+			history.getParentFile().mkdirs();
+		try (OutputStream output = new FileOutputStream(partial)) {
+			this.history.store(output, "Seconds of a thread for each unit of work of the jobs, by phase");
+		} catch (IOException e) {
+			System.err.println("Unable to write the job history "+file+": "+e.getMessage());
+			return;
+		}
+		if(!partial.renameTo(history))
+			System.err.println("Unable to write the job history "+file+"!");
+	}
+	
+	/**
+	 * @param job Job whose phase is looked up in the history
+	 * @return Seconds of a thread for each unit of work of the phase, a default value if the phase has never been measured
+	 */
+	private double secondsPerWork(Job job) {
+		String measured = history.getProperty(job.getPhase());
+		if(measured!=null) {
+			try {
+				return Double.parseDouble(measured);
+			} catch (NumberFormatException e) {
+				//Falling back to the default value
+			}
+		}
+		return job.getPixels()>0 ? K.encodingSecondsPerWork : K.mediaSecondsPerWork;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Class of utilities computing the fingerprints used to recognize unchanged files and jobs.
+ */
+public abstract class Fingerprint {
+	
+	/**
+	 * Computes the fingerprint of a file according to its path, size and last modification time
+	 * @param file File to be fingerprinted
+	 * @return Hexadecimal string
+	 * @throws IOException
+	 */
+	public static String of(File file) throws IOException {
+		return hash(file.getCanonicalPath()+"|"+file.length()+"|"+file.lastModified());
+	}
+	
+	/**
+	 * Computes the fingerprint of a job according to its command and the fingerprints of its inputs
+	 * @param command Command launched by the job
+	 * @param inputs Fingerprints of the inputs
+	 * @return Hexadecimal string
+	 */
+	public static String of(String command, String... inputs) {
+		StringBuilder content = new StringBuilder(command);
+		for(String input : inputs) {
+			content.append("\n").append(input);
+		}
+		return hash(content.toString());
+	}
+	
+	/**
+	 * Computes the SHA-1 hash of a string
+	 * @param content String to be hashed
+	 * @return Hexadecimal string
+	 */
+	private static String hash(String content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder hex = new StringBuilder();
+			for(byte b : digest.digest(content.getBytes(StandardCharsets.UTF_8))) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			//SHA-1 is available on every Java platform
+			throw new IllegalStateException(e);
+		}
+	}
+}
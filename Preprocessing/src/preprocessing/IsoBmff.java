@@ -0,0 +1,391 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class of utilities to walk the boxes of ISO-BMFF (MP4) files mapped in memory.
+ * A box starts with its 32-bit size and its 4-character type; a size of 1 means
+ * that a 64-bit size follows the type, a size of 0 that the box extends to the end of its parent.
+ */
+public abstract class IsoBmff {
+	
+	/**
+	 * Maps a file in memory in read-only mode
+	 * @param file File to be mapped
+	 * @return Buffer containing the whole file
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer map(File file) throws IOException {
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = randomAccessFile.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			randomAccessFile.close();
+		}
+	}
+	
+	/**
+	 * Maps in memory a top-level box of a file, reading only the headers of the boxes preceding it:
+	 * the media data, which can be larger than a mapped buffer, is not mapped
+	 * @param channel Channel of the file
+	 * @param type 4-character type of the box to be mapped
+	 * @return Buffer containing the whole box or null if not found
+	 * @throws IOException
+	 */
+	public static MappedByteBuffer map(FileChannel channel, String type) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(16);
+		long offset = 0;
+		long end = channel.size();
+		while(offset+8<=end) {
+			header.clear();
+			channel.read(header, offset);
+			long size = size(header, 0, end-offset);
+			if(size<8)
+				return null;
+			if(type(header, 0).equals(type))
+				return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+			offset += size;
+		}
+		return null;
+	}
+	
+	/**
+	 * Builds a box
+	 * @param type 4-character type
+	 * @param payloads Content of the box
+	 * @return Box bytes, header included
+	 */
+	public static byte[] box(String type, byte[]... payloads) {
+		int size = 8;
+		for(byte[] payload : payloads) {
+			size += payload.length;
+		}
+		ByteBuffer box = ByteBuffer.allocate(size);
+		box.putInt(size);
+		box.put(fourcc(type));
+		for(byte[] payload : payloads) {
+			box.put(payload);
+		}
+		return box.array();
+	}
+	
+	/**
+	 * Builds a full box, whose content starts with a version and flags
+	 * @param type 4-character type
+	 * @param version Box version
+	 * @param flags 24-bit flags
+	 * @param payloads Content of the box following the version and flags
+	 * @return Box bytes, header included
+	 */
+	public static byte[] fullBox(String type, int version, int flags, byte[]... payloads) {
+		byte[][] all = new byte[payloads.length+1][];
+		all[0] = int32((version<<24)|(flags&0xFFFFFF));
+		System.arraycopy(payloads, 0, all, 1, payloads.length);
+		return box(type, all);
+	}
+	
+	/**
+	 * Copies a box
+	 * @param buffer Buffer containing the box
+	 * @param offset Position of the box
+	 * @param end End of the parent box
+	 * @return Box bytes, header included
+	 */
+	public static byte[] copy(ByteBuffer buffer, long offset, long end) {
+		byte[] box = new byte[(int) size(buffer, offset, end)];
+		ByteBuffer source = buffer.duplicate();
+		source.position((int) offset);
+		source.get(box);
+		return box;
+	}
+	
+	/**
+	 * Reads the type of the box
+	 * @param buffer Buffer containing the box
+	 * @param offset Position of the box
+	 * @return 4-character type
+	 */
+	public static String type(ByteBuffer buffer, long offset) {
+		byte[] type = new byte[4];
+		for(int i=0; i<4; i++) {
+			type[i] = buffer.get((int) offset+4+i);
+		}
+		return new String(type, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * Reads the size of the box, header included
+	 * @param buffer Buffer containing the box
+	 * @param offset Position of the box
+	 * @param end End of the parent box
+	 * @return Size in bytes
+	 */
+	public static long size(ByteBuffer buffer, long offset, long end) {
+		long size = buffer.getInt((int) offset) & 0xFFFFFFFFL;
+		if(size==1)
+			size = buffer.getLong((int) offset+8);
+		else if(size==0)
+			size = end-offset;
+		return size;
+	}
+	
+	/**
+	 * Computes the size of the box header
+	 * @param buffer Buffer containing the box
+	 * @param offset Position of the box
+	 * @return 16 if the box has a 64-bit size, 8 otherwise
+	 */
+	public static int headerSize(ByteBuffer buffer, long offset) {
+		return buffer.getInt((int) offset)==1 ? 16 : 8;
+	}
+	
+	/**
+	 * Looks for the first box of the given type among the boxes between start and end
+	 * @param buffer Buffer containing the boxes
+	 * @param start Position of the first box
+	 * @param end End of the last box
+	 * @param type 4-character type to look for
+	 * @return Position of the box or -1 if not found
+	 */
+	public static long find(ByteBuffer buffer, long start, long end, String type) {
+		long offset = start;
+		while(offset+8<=end) {
+			long size = size(buffer, offset, end);
+			if(size<8)
+				return -1;
+			if(type(buffer, offset).equals(type))
+				return offset;
+			offset += size;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Looks for a box following a path of types from the top level of the file
+	 * @param buffer Buffer containing the whole file
+	 * @param path Types of the nested boxes (e.g. moov, trak, mdia)
+	 * @return Position of the last box of the path or -1 if not found
+	 */
+	public static long find(ByteBuffer buffer, String... path) {
+		long start = 0;
+		long end = buffer.limit();
+		long offset = -1;
+		for(String type : path) {
+			offset = find(buffer, start, end, type);
+			if(offset<0)
+				return -1;
+			start = offset+headerSize(buffer, offset);
+			end = offset+size(buffer, offset, end);
+		}
+		return offset;
+	}
+	
+	/**
+	 * Looks for a box nested inside another box following a path of types
+	 * @param buffer Buffer containing the boxes
+	 * @param box Position of the box in which the path starts
+	 * @param path Types of the nested boxes
+	 * @return Position of the last box of the path or -1 if not found
+	 */
+	public static long child(ByteBuffer buffer, long box, String... path) {
+		long offset = box;
+		long end = buffer.limit();
+		for(String type : path) {
+			end = offset+size(buffer, offset, end);
+			offset = find(buffer, offset+headerSize(buffer, offset), end, type);
+			if(offset<0)
+				return -1;
+		}
+		return offset;
+	}
+	
+	/**
+	 * Reads the decoding time of the first sample of a fragment from its tfdt box
+	 * @param buffer Buffer containing the moof box
+	 * @param moof Position of the moof box
+	 * @return Decoding time in the track timescale or -1 if the fragment has no tfdt box
+	 */
+	public static long decodeTime(ByteBuffer buffer, long moof) {
+		long tfdt = child(buffer, moof, "traf", "tfdt");
+		if(tfdt<0)
+			return -1;
+		return buffer.get((int) tfdt+8)==1 ? buffer.getLong((int) tfdt+12) : buffer.getInt((int) tfdt+12) & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * Computes the duration of a fragment from its trun box
+	 * @param buffer Buffer containing the moof box
+	 * @param moof Position of the moof box
+	 * @param defaultDuration Default sample duration of the trex box
+	 * @return Duration in the track timescale
+	 */
+	public static long fragmentDuration(ByteBuffer buffer, long moof, long defaultDuration) {
+		long tfhd = child(buffer, moof, "traf", "tfhd");
+		long trun = child(buffer, moof, "traf", "trun");
+		if(trun<0)
+			return 0;
+		if(tfhd>=0) {
+			int tfhdFlags = buffer.getInt((int) tfhd+8) & 0xFFFFFF;
+			//Optional fields preceding the default sample duration: base data offset and sample description index
+			int position = (int) tfhd+16+((tfhdFlags&0x01)!=0 ? 8 : 0)+((tfhdFlags&0x02)!=0 ? 4 : 0);
+			if((tfhdFlags&0x08)!=0)
+				defaultDuration = buffer.getInt(position) & 0xFFFFFFFFL;
+		}
+		int trunFlags = buffer.getInt((int) trun+8) & 0xFFFFFF;
+		long sampleCount = buffer.getInt((int) trun+12) & 0xFFFFFFFFL;
+		if((trunFlags&0x100)==0)
+			return sampleCount*defaultDuration;
+		//Per-sample fields following the optional data offset and first sample flags
+		int position = (int) trun+16+((trunFlags&0x01)!=0 ? 4 : 0)+((trunFlags&0x04)!=0 ? 4 : 0);
+		int sampleSize = 4*Integer.bitCount(trunFlags&0xF00);
+		long duration = 0;
+		for(long i=0; i<sampleCount; i++) {
+			duration += buffer.getInt(position) & 0xFFFFFFFFL;
+			position += sampleSize;
+		}
+		return duration;
+	}
+	
+	/**
+	 * @param value 32-bit value
+	 * @return Big-endian bytes of the value
+	 */
+	public static byte[] int32(long value) {
+		return ByteBuffer.allocate(4).putInt((int) value).array();
+	}
+	
+	/**
+	 * @param value 64-bit value
+	 * @return Big-endian bytes of the value
+	 */
+	public static byte[] int64(long value) {
+		return ByteBuffer.allocate(8).putLong(value).array();
+	}
+	
+	/**
+	 * @param type 4-character code
+	 * @return Bytes of the code
+	 */
+	public static byte[] fourcc(String type) {
+		return type.getBytes(StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * Builds the RFC 6381 codecs string of the first track of an initialization segment
+	 * (e.g. avc1.42c01f for H.264 or mp4a.40.2 for AAC-LC)
+	 * @param init Initialization segment
+	 * @return Codecs string or null if the sample description cannot be found
+	 * @throws IOException
+	 */
+	public static String codecs(File init) throws IOException {
+		MappedByteBuffer buffer = map(init);
+		long stsd = find(buffer, "moov", "trak", "mdia", "minf", "stbl", "stsd");
+		if(stsd<0)
+			return null;
+		//Full box header (version and flags) and entry count precede the first sample entry
+		long entry = stsd+headerSize(buffer, stsd)+8;
+		String format = type(buffer, entry);
+		if(format.equals("avc1") || format.equals("avc3")) {
+			//Visual sample entry: 78 bytes before the child boxes
+			long entryEnd = entry+size(buffer, entry, buffer.limit());
+			long avcC = find(buffer, entry+8+78, entryEnd, "avcC");
+			if(avcC<0)
+				return format;
+			int position = (int) avcC+8;
+			return String.format("%s.%02x%02x%02x", format,
+					buffer.get(position+1), buffer.get(position+2), buffer.get(position+3));
+		} else if(format.equals("mp4a")) {
+			//Audio sample entry: 28 bytes before the child boxes, 16 or 36 more in the versions 1 and 2 of QuickTime
+			long entryEnd = entry+size(buffer, entry, buffer.limit());
+			int version = buffer.getShort((int) entry+16);
+			long esds = find(buffer, entry+8+28+(version==1 ? 16 : version==2 ? 36 : 0), entryEnd, "esds");
+			if(esds<0)
+				return format;
+			try {
+				return audioCodecs(buffer, esds+headerSize(buffer, esds)+4, esds+size(buffer, esds, entryEnd));
+			} catch (IndexOutOfBoundsException e) {
+				return format;
+			}
+		}
+		return format;
+	}
+	
+	/**
+	 * Builds the codecs string of an MPEG-4 audio track from the descriptors of its esds box: the object type
+	 * of the decoder configuration, followed for MPEG-4 Audio (0x40) by the audio object type read from the
+	 * AudioSpecificConfig (e.g. mp4a.40.2 for AAC-LC, mp4a.40.5 for HE-AAC or mp4a.6b for MP3)
+	 * @param buffer Buffer containing the box
+	 * @param start Position of the ES descriptor, after the full box header
+	 * @param end End of the esds box
+	 * @return Codecs string
+	 */
+	private static String audioCodecs(ByteBuffer buffer, long start, long end) {
+		int position = (int) start;
+		
+		//ES descriptor: ES_ID and flags, followed by the optional fields given by the flags
+		if(buffer.get(position)!=3)
+			return "mp4a";
+		position = descriptorBody(buffer, position);
+		int flags = buffer.get(position+2) & 0xFF;
+		position += 3;
+		if((flags & 0x80)!=0)
+			position += 2;
+		if((flags & 0x40)!=0)
+			position += 1+(buffer.get(position) & 0xFF);
+		if((flags & 0x20)!=0)
+			position += 2;
+		
+		//Decoder configuration descriptor: object type, stream type, buffer size and bitrates
+		if(position>=end || buffer.get(position)!=4)
+			return "mp4a";
+		position = descriptorBody(buffer, position);
+		int objectType = buffer.get(position) & 0xFF;
+		String codecs = String.format("mp4a.%02x", objectType);
+		position += 13;
+		
+		//Decoder specific information: the AudioSpecificConfig starts with 5 bits of audio object type (31 escaping to 6 more bits)
+		if(objectType!=0x40 || position>=end || buffer.get(position)!=5)
+			return codecs;
+		position = descriptorBody(buffer, position);
+		int audioObjectType = (buffer.get(position) & 0xFF)>>3;
+		if(audioObjectType==31)
+			audioObjectType = 32+(((buffer.get(position) & 0x07)<<3) | ((buffer.get(position+1) & 0xFF)>>5));
+		return codecs+"."+audioObjectType;
+	}
+	
+	/**
+	 * Skips the tag and the size of an MPEG-4 descriptor, the size being coded on 1 to 4 bytes of 7 bits
+	 * @param buffer Buffer containing the descriptor
+	 * @param position Position of the descriptor tag
+	 * @return Position of the descriptor body
+	 */
+	private static int descriptorBody(ByteBuffer buffer, int position) {
+		position++;
+		for(int i=1; i<4 && (buffer.get(position) & 0x80)!=0; i++) {
+			position++;
+		}
+		return position+1;
+	}
+}
@@ -0,0 +1,359 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A single external command (ffmpeg, MP4Box...) to be executed by the JobPool.
+ * When the command terminates the log message is printed followed by the completion status.
+ * A command terminating with a non-zero exit value makes the job fail, so that
+ * the jobs depending on its outputs are not launched.
+ * A job can be fingerprinted from its command and the fingerprints of its inputs:
+ * the fingerprint is recorded once the command succeeds and, if a later run finds the same
+ * fingerprint and all the outputs, the command is not launched again. An output deleted once read is not needed
+ * either if all the jobs reading it don't need to be executed again.
+ */
+public class Job {
+	
+	private String command; //Command to be launched
+	private String log; //Message printed once the command terminates
+	private String[] outputs; //Files produced by the command
+	private String fingerprint; //Fingerprint of the command and its inputs (null if the job must always run)
+	private String fingerprintFile; //File in which the fingerprint is recorded
+	private String logFile; //File receiving the standard error of the command (null for a temporary file)
+	private String progressFile; //File receiving the progress of an ffmpeg command (null if not fingerprinted)
+	private String phase; //Phase of the job in the metrics
+	private int memory; //Memory in MB estimated for the command
+	private long pixels; //Pixels of a frame encoded by the command, for all its outputs (0 if the command doesn't encode)
+	private int encoders = 1; //Number of encoders of the command, each of them with the thread options
+	private int threads; //Threads given to the encoders of the command (0 if not decided yet)
+	private double work; //Work of the command in the cost model
+	private double priority; //Estimated cost of the longest chain of jobs starting with this one
+	private long runTime; //Wall-clock duration in milliseconds of the command (0 if it has not been executed locally)
+	private long outputBytes; //Estimated size in bytes of all the outputs
+	private ArrayList<Job> consumers = new ArrayList<>(); //Jobs reading the outputs of this one
+	
+	public Job(String command, String log) {
+		this.command = command;
+		this.log = log;
+		this.phase = "other";
+	}
+	
+	/**
+	 * Creates a fingerprinted job
+	 * @param command Command to be launched
+	 * @param log Message printed once the command terminates
+	 * @param fingerprintDirectory Directory in which the fingerprint is recorded
+	 * @param outputs Files produced by the command
+	 * @param inputs Fingerprints of the files or jobs the command depends on
+	 */
+	public Job(String command, String log, String fingerprintDirectory, String[] outputs, String... inputs) {
+		this(command, log);
+		this.outputs = outputs;
+		this.fingerprint = Fingerprint.of(command, inputs);
+		this.fingerprintFile = fingerprintDirectory+"/"+new File(outputs[0]).getName()+K.fingerprintExtension;
+		this.logFile = fingerprintDirectory+"/"+new File(outputs[0]).getName()+K.logExtension;
+		this.progressFile = progressFile(fingerprintDirectory, outputs[0]);
+	}
+	
+	/**
+	 * @param fingerprintDirectory Directory in which the fingerprint of the job is recorded
+	 * @param output First output of the job
+	 * @return Path of the file receiving the progress of the job
+	 */
+	public static String progressFile(String fingerprintDirectory, String output) {
+		return fingerprintDirectory+"/"+new File(output).getName()+K.progressExtension;
+	}
+	
+	/**
+	 * Adds the -progress option to an ffmpeg command, so that ffmpeg periodically writes
+	 * its progress (frames, fps, bitrate, encoded time, speed) in a file
+	 * @param command Command to be launched
+	 * @param progressFile File receiving the progress
+	 * @return Command with the progress option, or the same command if it is not an ffmpeg command
+	 */
+	public static String progressCommand(String command, String progressFile) {
+		if(progressFile==null || !command.startsWith("ffmpeg "))
+			return command;
+		return "ffmpeg -progress "+ProcessRunner.quote(progressFile)+" -nostats "+command.substring("ffmpeg ".length());
+	}
+	
+	/**
+	 * @return Name of the first output of the job, or the command name if the job has no outputs
+	 */
+	public String getName() {
+		if(outputs!=null)
+			return new File(outputs[0]).getName();
+		return ProcessRunner.split(command).get(0);
+	}
+	
+	/**
+	 * Replaces the placeholders of the thread options in a command
+	 * @param command Command with a placeholder before each encoded output
+	 * @param threads Threads of each encoder (0 to remove the options, letting ffmpeg decide)
+	 * @return Command with the thread options
+	 */
+	public static String threadsCommand(String command, int threads) {
+		if(!command.contains(K.threadsPlaceholder))
+			return command;
+		String options = "";
+		if(threads>0) {
+			options = "-threads "+threads;
+			if(Boolean.getBoolean(K.slicesProperty))
+				options += " -slices "+threads;
+		}
+		return command.replace(K.threadsPlaceholder, options);
+	}
+	
+	public String getPhase() {
+		return phase;
+	}
+	
+	public void setPhase(String phase) {
+		this.phase = phase;
+	}
+	
+	public String getProgressFile() {
+		return progressFile;
+	}
+	
+	public long getPixels() {
+		return pixels;
+	}
+	
+	/**
+	 * Sets the size of the frames encoded by the command, used to give it a share of the threads
+	 * @param pixels Pixels of a frame, for all the outputs
+	 * @param encoders Number of outputs encoded by the command
+	 */
+	public void setPixels(long pixels, int encoders) {
+		this.pixels = pixels;
+		this.encoders = encoders;
+	}
+	
+	public int getEncoders() {
+		return encoders;
+	}
+	
+	public int getThreads() {
+		return threads;
+	}
+	
+	/**
+	 * @param threads Threads shared by the encoders of the command
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	public double getWork() {
+		return work;
+	}
+	
+	/**
+	 * @param work Pixels multiplied by frames, plus the encoded bits, for an encoding; seconds of media otherwise
+	 */
+	public void setWork(double work) {
+		this.work = work;
+	}
+	
+	public double getPriority() {
+		return priority;
+	}
+	
+	public void setPriority(double priority) {
+		this.priority = priority;
+	}
+	
+	public long getRunTime() {
+		return runTime;
+	}
+	
+	public String getFingerprint() {
+		return fingerprint;
+	}
+	
+	public String[] getOutputs() {
+		return outputs;
+	}
+	
+	/**
+	 * @return Outputs written in the directory of the fingerprint, read by the next jobs but not part of the result
+	 */
+	public List<String> getTemporaryOutputs() {
+		ArrayList<String> temporary = new ArrayList<>();
+		if(fingerprintFile==null)
+			return temporary;
+		File directory = new File(fingerprintFile).getParentFile();
+		for(String output : outputs) {
+			if(directory.equals(new File(output).getParentFile()))
+				temporary.add(output);
+		}
+		return temporary;
+	}
+	
+	public long getOutputBytes() {
+		return outputBytes;
+	}
+	
+	/**
+	 * @param outputBytes Estimated size in bytes of all the outputs, used to place them in the temporary storage
+	 */
+	public void setOutputBytes(long outputBytes) {
+		this.outputBytes = outputBytes;
+	}
+	
+	/**
+	 * @param consumer Job reading the outputs of this one
+	 */
+	public synchronized void addConsumer(Job consumer) {
+		consumers.add(consumer);
+	}
+	
+	/**
+	 * Checks whether the outputs of the job are no more needed: all the jobs reading them don't need
+	 * to be executed again, so the outputs can have been deleted once read
+	 * @return true if the job has consumers and all of them are done
+	 * @throws IOException
+	 */
+	private boolean isConsumed() throws IOException {
+		ArrayList<Job> readers;
+		synchronized (this) {
+			readers = new ArrayList<>(consumers);
+		}
+		if(readers.isEmpty())
+			return false;
+		for(Job reader : readers) {
+			if(reader.fingerprint==null || !reader.isDone())
+				return false;
+		}
+		return true;
+	}
+	
+	public int getMemory() {
+		return memory;
+	}
+	
+	public void setMemory(int memory) {
+		this.memory = memory;
+	}
+	
+	/**
+	 * Checks whether the job has been already executed with the same fingerprint
+	 * and all its outputs are still available or no more needed
+	 * @return true if the command doesn't need to be launched again
+	 * @throws IOException
+	 */
+	private boolean isDone() throws IOException {
+		File recorded = new File(fingerprintFile);
+		if(!recorded.exists())
+			return false;
+		for(String output : outputs) {
+			if(!new File(output).exists() && !isConsumed())
+				return false;
+		}
+		String content = new String(Files.readAllBytes(recorded.toPath()), StandardCharsets.UTF_8);
+		return content.trim().equals(fingerprint);
+	}
+	
+	/**
+	 * The thread options are not part of the fingerprint: they only change how fast the outputs are encoded.
+	 * If no threads have been given to the job (remote jobs), the placeholders are left to the worker.
+	 * @return Command to be launched, with the progress option if it is an ffmpeg command and the thread options
+	 */
+	public String getCommand() {
+		String launched = progressCommand(command, progressFile);
+		if(threads>0)
+			launched = threadsCommand(launched, Math.max(1, threads/encoders));
+		return launched;
+	}
+	
+	/**
+	 * Records the launch of the command (locally or by a remote worker) in the metrics
+	 */
+	public void started() {
+		Metrics.started(this);
+	}
+	
+	/**
+	 * Launches the command and waits for its termination, once checked with alreadyDone() that it must be executed
+	 * @return Exit value of the process
+	 * @throws IOException if the command cannot be launched or terminates with a non-zero exit value
+	 * @throws Exception
+	 */
+	public Integer run() throws Exception {
+		ProcessResult result;
+		started();
+		try {
+			result = ProcessRunner.run(getCommand(), null, logFile!=null ? new File(logFile) : null).get();
+		} catch (ExecutionException e) {
+			Metrics.finished(this, false);
+			throw new IOException(log.trim()+" failed: "+e.getCause().getMessage(), e.getCause());
+		}
+		runTime = result.duration;
+		return complete(result.exitValue, result.errorTail);
+	}
+	
+	/**
+	 * Checks whether the command can be skipped because the job has been already executed
+	 * with the same fingerprint. Otherwise the previous fingerprint is removed:
+	 * an interrupted command must not look completed.
+	 * @return true if the command doesn't need to be launched
+	 * @throws IOException
+	 */
+	public boolean alreadyDone() throws IOException {
+		if(fingerprint==null)
+			return false;
+		if(isDone()) {
+			Metrics.skipped(this);
+			System.out.println(log+"... already done!");
+			return true;
+		}
+		new File(fingerprintFile).delete();
+		return false;
+	}
+	
+	/**
+	 * Terminates the job once the command has been executed (locally or by a remote worker):
+	 * the fingerprint is recorded if the command succeeded.
+	 * @param exitValue Exit value of the command
+	 * @param errorTail Last lines of the standard error of the command, reported if it failed (can be null)
+	 * @return Exit value of the command
+	 * @throws IOException if the command terminated with a non-zero exit value
+	 */
+	public Integer complete(int exitValue, String errorTail) throws IOException {
+		String details = Metrics.finished(this, exitValue==0);
+		if(exitValue!=0)
+			throw new IOException(log.trim()+" failed with exit value "+exitValue+"!"
+					+(errorTail!=null && !errorTail.isEmpty() ? "\n"+errorTail : ""));
+		if(fingerprint!=null) {
+			PrintStream writer = new PrintStream(new FileOutputStream(fingerprintFile));
+			writer.println(fingerprint);
+			writer.close();
+		}
+		System.out.println(log+"... completed!"+details);
+		return exitValue;
+	}
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.lang.management.ManagementFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded pool of workers in which the external commands are executed.
+ * The number of commands running at the same time never exceeds the pool size.
+ * Each job can depend on other jobs: it is launched only once all of them are successfully terminated,
+ * so that the jobs form a graph and no global barrier is needed between the phases.
+ * A single pool is shared by all the videos being processed: the memory estimated for the running jobs
+ * never exceeds the memory budget (a job bigger than the whole budget runs alone).
+ * The encoding jobs share a thread budget: when a job is launched it gets a share of the threads
+ * proportional to the size of its frames among the encoders running or about to run.
+ * Among the jobs ready to be launched, the one with the longest chain of estimated costs (the job itself
+ * and the jobs depending on it) is launched first, so that the longest jobs don't end up setting the makespan.
+ * The intermediate files written by the jobs executed locally are placed by the temporary storage,
+ * which deletes them once all the jobs depending on their producer are successfully terminated.
+ * A job whose intermediate files don't fit the disk budget is set aside without taking a worker, and admitted again
+ * once some space is freed, the jobs reading intermediate files (which let them be deleted) first.
+ */
+public class JobPool {
+	
+	private int size; //Maximum number of commands running at the same time
+	private int memoryBudget; //Maximum memory in MB used by the commands running at the same time
+	private ExecutorService executor;
+	private Semaphore memory; //One permit for each MB of the budget
+	private int threadBudget; //Threads shared by the encoders running at the same time
+	private int allocatedThreads; //Threads given to the running encoders
+	private long runningPixels; //Pixels of a frame of all the running encoders
+	private int runningEncoders; //Encoding jobs running
+	private int readyEncoders; //Encoding jobs whose dependencies are terminated, waiting for a worker or for memory
+	private CompletableFuture<Void> gate; //Future holding back the jobs while they are being queued
+	private CostModel costModel; //Model estimating the cost of the jobs
+	private HashMap<CompletableFuture<?>,Node> nodes; //Queued jobs not forgotten yet, by the future returned for them
+	private PriorityQueue<Node> launchable; //Jobs whose dependencies are terminated, the highest priority first
+	private PriorityQueue<Node> waiting; //Jobs waiting for the disk budget, the readers of intermediate files first
+	private int launching; //Jobs taken from the launchable ones and not terminated or set aside yet
+	private boolean exceeded; //True once the disk budget has been exceeded
+	private long nextSequence; //Order of the next queued job, among jobs with the same priority
+	private Coordinator coordinator; //Coordinator giving the jobs to remote workers (null if the jobs are executed locally)
+	private TempStorage tempStorage; //Storage of the intermediate files
+	
+	public JobPool(int size, int memoryBudget, int threadBudget) {
+		if(size<1)
+			throw new IllegalArgumentException("The job pool size must be positive!");
+		if(memoryBudget<1)
+			throw new IllegalArgumentException("The memory budget must be positive!");
+		if(threadBudget<1)
+			throw new IllegalArgumentException("The thread budget must be positive!");
+		this.size = size;
+		this.memoryBudget = memoryBudget;
+		this.threadBudget = threadBudget;
+		this.executor = Executors.newFixedThreadPool(size);
+		this.memory = new Semaphore(memoryBudget, true);
+		this.gate = CompletableFuture.completedFuture(null);
+		this.costModel = new CostModel(null);
+		try {
+			this.tempStorage = new TempStorage(null, 0, 0, false);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		this.nodes = new HashMap<>();
+		this.launchable = new PriorityQueue<>((a, b) -> a.job.getPriority()!=b.job.getPriority() ?
+				Double.compare(b.job.getPriority(), a.job.getPriority()) : Long.compare(a.sequence, b.sequence));
+		this.waiting = new PriorityQueue<>((a, b) -> a.reader!=b.reader ? (a.reader ? -1 : 1) :
+				a.job.getPriority()!=b.job.getPriority() ? Double.compare(b.job.getPriority(), a.job.getPriority())
+				: Long.compare(a.sequence, b.sequence));
+	}
+	
+	/**
+	 * A queued job in the graph of the jobs
+	 */
+	private static class Node {
+		Job job;
+		double cost; //Estimated cost of the job alone
+		long sequence; //Order in which the job has been queued
+		ArrayList<Node> dependencies = new ArrayList<>(); //Queued jobs this job depends on
+		CompletableFuture<Integer> future; //Future holding the exit value of the command
+		int dependents; //Queued jobs depending on this one
+		int pendingDependents; //Jobs depending on this one not terminated yet
+		boolean planned; //True once all the jobs depending on this one are queued
+		boolean kept; //True if a job depending on this one failed: its outputs are kept for a later run
+		boolean reader; //True if the job reads intermediate files of the jobs it depends on
+		boolean admitted; //True once the intermediate files of the job have been placed by the temporary storage
+	}
+	
+	/**
+	 * Retrieves the pool size from the system property K.jobsProperty.
+	 * If the property is not set, the number of available cores is used.
+	 * @return Number of commands that can run at the same time
+	 */
+	public static int defaultSize() {
+		String jobs = System.getProperty(K.jobsProperty);
+		if(jobs!=null)
+			return Integer.parseInt(jobs);
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Retrieves the memory budget in MB from the system property K.memoryProperty.
+	 * If the property is not set, the physical memory of the machine is used.
+	 * @return Memory budget in MB
+	 */
+	public static int defaultMemoryBudget() {
+		String memory = System.getProperty(K.memoryProperty);
+		if(memory!=null)
+			return Integer.parseInt(memory);
+		java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+			return (int) (((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize()/(1024*1024));
+		return Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * Retrieves the thread budget from the system property K.threadsProperty.
+	 * If the property is not set, the number of available cores is used.
+	 * @return Number of threads shared by the encoders
+	 */
+	public static int defaultThreadBudget() {
+		String threads = System.getProperty(K.threadsProperty);
+		if(threads!=null)
+			return Integer.parseInt(threads);
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public int getMemoryBudget() {
+		return memoryBudget;
+	}
+	
+	public int getThreadBudget() {
+		return threadBudget;
+	}
+	
+	/**
+	 * Switches to the distributed mode: the jobs are no more executed locally
+	 * but given to the remote workers by the coordinator
+	 * @param coordinator Coordinator of the workers
+	 */
+	public void setCoordinator(Coordinator coordinator) {
+		this.coordinator = coordinator;
+	}
+	
+	/**
+	 * Sets the model estimating the cost of the jobs, refined with the durations of the jobs executed locally
+	 * @param costModel Cost model
+	 */
+	public void setCostModel(CostModel costModel) {
+		this.costModel = costModel;
+	}
+	
+	/**
+	 * Sets the storage placing and deleting the intermediate files of the jobs
+	 * @param tempStorage Storage of the intermediate files
+	 */
+	public void setTempStorage(TempStorage tempStorage) {
+		this.tempStorage = tempStorage;
+		tempStorage.setFreed(this::admitWaiting);
+	}
+	
+	/**
+	 * Holds back the jobs queued from now on until open() is called, so that the threads are shared
+	 * knowing all the jobs that can run at the same time, instead of being taken by the first queued job
+	 */
+	public synchronized void hold() {
+		if(gate.isDone())
+			gate = new CompletableFuture<>();
+	}
+	
+	/**
+	 * Launches the jobs held back since hold() was called
+	 */
+	public synchronized void open() {
+		gate.complete(null);
+	}
+	
+	/**
+	 * Queues a job: it will be launched as soon as all its dependencies are terminated
+	 * and a worker is free. If a dependency fails, the job is not launched and fails too.
+	 * @param job Job to be executed
+	 * @param dependencies Jobs that must terminate before launching this one
+	 * @return Future holding the exit value of the command
+	 */
+	public CompletableFuture<Integer> submit(Job job, CompletableFuture<?>... dependencies) {
+		Node node = new Node();
+		node.job = job;
+		CompletableFuture<Void> ready;
+		synchronized (this) {
+			prioritize(node, dependencies);
+			ready = CompletableFuture.allOf(dependencies).thenCombine(gate, (a, b) -> null);
+		}
+		if(coordinator!=null) {
+			node.future = new CompletableFuture<>();
+			ready.whenComplete((v, e) -> {
+				if(e!=null) {
+					node.future.completeExceptionally(e);
+				} else if(!node.future.isDone()) {
+					//Cancelling the job also drops it from the coordinator
+					CompletableFuture<Integer> remote = coordinator.submit(job);
+					node.future.whenComplete((r, x) -> remote.cancel(false));
+					remote.whenComplete((r, x) -> {
+						if(x!=null)
+							node.future.completeExceptionally(x);
+						else
+							node.future.complete(r);
+					});
+				}
+			});
+		} else {
+			node.future = new CompletableFuture<>();
+			ready.whenComplete((v, e) -> {
+				if(e!=null)
+					node.future.completeExceptionally(e);
+				else
+					ready(node);
+			});
+		}
+		synchronized (this) {
+			nodes.put(node.future, node);
+		}
+		node.future.whenComplete((v, e) -> terminated(node, e==null));
+		return node.future;
+	}
+	
+	/**
+	 * Records that all the jobs depending on some queued jobs have been queued too (e.g. once a video is planned):
+	 * the intermediate files of each of these jobs can be deleted as soon as the jobs depending on it are terminated
+	 * @param futures Futures returned for the queued jobs
+	 */
+	public void planned(Collection<? extends CompletableFuture<?>> futures) {
+		ArrayList<Node> consumed = new ArrayList<>();
+		synchronized (this) {
+			for(CompletableFuture<?> future : futures) {
+				Node node = nodes.get(future);
+				if(node==null)
+					continue;
+				node.planned = true;
+				if(isConsumed(node))
+					consumed.add(node);
+				forget(node);
+			}
+		}
+		for(Node node : consumed)
+			tempStorage.delete(node.job);
+	}
+	
+	/**
+	 * Cancels queued jobs not launched yet (e.g. the jobs of a video whose planning failed):
+	 * the jobs depending on them fail and no job depending on them is queued anymore
+	 * @param futures Futures returned for the queued jobs
+	 */
+	public void cancel(Collection<? extends CompletableFuture<?>> futures) {
+		for(CompletableFuture<?> future : futures)
+			future.cancel(false);
+		planned(futures);
+	}
+	
+	/**
+	 * Records the termination of a job: the intermediate files of the jobs it depends on are deleted
+	 * once all the jobs depending on them are successfully terminated
+	 * @param node Terminated job
+	 * @param success True if the job succeeded
+	 */
+	private void terminated(Node node, boolean success) {
+		ArrayList<Node> consumed = new ArrayList<>();
+		synchronized (this) {
+			for(Node dependency : node.dependencies) {
+				dependency.pendingDependents--;
+				if(!success)
+					dependency.kept = true;
+				if(isConsumed(dependency))
+					consumed.add(dependency);
+				forget(dependency);
+			}
+			forget(node);
+		}
+		for(Node dependency : consumed)
+			tempStorage.delete(dependency.job);
+	}
+	
+	/**
+	 * Removes a job from the queued ones once it is terminated and no job depending on it can be queued
+	 * or is pending, so that the graph doesn't grow with the number of processed videos
+	 * @param node Queued job
+	 */
+	private synchronized void forget(Node node) {
+		if(node.planned && node.pendingDependents==0 && node.future.isDone())
+			nodes.remove(node.future);
+	}
+	
+	/**
+	 * @param node Queued job
+	 * @return true if the outputs of the job have been read by all the jobs depending on it
+	 */
+	private boolean isConsumed(Node node) {
+		return node.planned && !node.kept && node.dependents>0 && node.pendingDependents==0;
+	}
+	
+	/**
+	 * Estimates the cost of a job being queued and raises the priority of the jobs it depends on:
+	 * the priority of a job is the estimated cost of the longest chain of jobs starting with it
+	 * @param node Job being queued
+	 * @param dependencies Jobs that must terminate before launching this one
+	 */
+	private synchronized void prioritize(Node node, CompletableFuture<?>... dependencies) {
+		node.cost = costModel.estimate(node.job);
+		node.sequence = nextSequence++;
+		node.job.setPriority(node.cost);
+		for(CompletableFuture<?> dependency : dependencies) {
+			Node dependencyNode = nodes.get(dependency);
+			if(dependencyNode!=null) {
+				node.dependencies.add(dependencyNode);
+				dependencyNode.dependents++;
+				dependencyNode.pendingDependents++;
+				dependencyNode.job.addConsumer(node.job);
+				if(!dependencyNode.job.getTemporaryOutputs().isEmpty())
+					node.reader = true;
+				raisePriority(dependencyNode, node.cost);
+			}
+		}
+	}
+	
+	/**
+	 * Raises the priority of a job and of the jobs it depends on
+	 * @param node Queued job
+	 * @param followingCost Estimated cost of a chain of jobs depending on this one
+	 */
+	private void raisePriority(Node node, double followingCost) {
+		if(node.cost+followingCost<=node.job.getPriority())
+			return;
+		node.job.setPriority(node.cost+followingCost);
+		for(Node dependency : node.dependencies) {
+			raisePriority(dependency, node.job.getPriority());
+		}
+	}
+	
+	/**
+	 * Records that the dependencies of a job are terminated: the job waits for a worker among the other
+	 * launchable jobs, and an encoding job will soon share the threads
+	 * @param node Job ready to be launched
+	 */
+	private void ready(Node node) {
+		synchronized (this) {
+			//A cancelled job is never launched
+			if(node.future.isDone())
+				return;
+			if(node.job.getPixels()>0)
+				readyEncoders++;
+			launchable.add(node);
+		}
+		executor.execute(this::launchNext);
+	}
+	
+	/**
+	 * Executes the launchable job with the highest priority: each ready job triggers one execution,
+	 * so that every launchable job is executed once.
+	 * A job already executed with the same fingerprint is skipped without waiting for memory or storage.
+	 */
+	private void launchNext() {
+		Node node;
+		synchronized (this) {
+			node = launchable.poll();
+			launching++;
+		}
+		Job job = node.job;
+		try {
+			if(!node.admitted) {
+				if(job.alreadyDone()) {
+					unready(job);
+					tempStorage.register(job);
+					complete(node, 0, null);
+					return;
+				}
+				if(!admitLaunched(node)) {
+					setAside(node);
+					return;
+				}
+			}
+			tempStorage.stage(job);
+		} catch (IOException | RuntimeException e) {
+			//The job fails instead of being lost with the thread (e.g. a path that cannot be encoded)
+			unready(job);
+			tempStorage.release(job);
+			complete(node, null, e);
+			return;
+		}
+		int permits = Math.min(job.getMemory(), memoryBudget);
+		try {
+			memory.acquire(permits);
+		} catch (InterruptedException e) {
+			unready(job);
+			tempStorage.release(job);
+			complete(node, null, e);
+			return;
+		}
+		Integer exitValue = null;
+		Exception failure = null;
+		try {
+			job.setThreads(allocateThreads(job));
+			try {
+				exitValue = job.run();
+			} finally {
+				//The actual sizes of the outputs replace the estimated ones before the next jobs are launched
+				tempStorage.release(job);
+			}
+			costModel.record(job, job.getRunTime());
+		} catch (Exception e) {
+			failure = e;
+		} finally {
+			releaseThreads(job);
+			memory.release(permits);
+		}
+		if(failure!=null && tempStorage.spill(job)) {
+			//The RAM disk may have been filled by files bigger than estimated: executing the job again on disk
+			System.out.println(job.getName()+" failed on the RAM disk, executed again on disk");
+			Metrics.retried(job);
+			synchronized (this) {
+				launching--;
+				node.admitted = false;
+			}
+			ready(node);
+			return;
+		}
+		complete(node, exitValue, failure);
+	}
+	
+	/**
+	 * Terminates a job taken from the launchable ones
+	 * @param node Terminated job
+	 * @param exitValue Exit value of the command (null if the job failed)
+	 * @param failure Exception making the job fail (null if the job succeeded)
+	 */
+	private void complete(Node node, Integer exitValue, Exception failure) {
+		synchronized (this) {
+			launching--;
+		}
+		if(failure!=null)
+			node.future.completeExceptionally(failure);
+		else
+			node.future.complete(exitValue);
+		admitStalled();
+	}
+	
+	/**
+	 * Places the intermediate files of a job taken from the launchable ones. While some jobs wait for the disk budget,
+	 * a job writing intermediate files without reading any is set aside too, so that it doesn't take the space freed
+	 * for the waiting readers
+	 * @param node Job about to be launched
+	 * @return true if the job has been admitted
+	 */
+	private synchronized boolean admitLaunched(Node node) {
+		if(!node.reader && !waiting.isEmpty() && !node.job.getTemporaryOutputs().isEmpty())
+			return false;
+		return admit(node, false);
+	}
+	
+	/**
+	 * Places the intermediate files of a job in the temporary storage
+	 * @param node Job about to be launched
+	 * @param force True to exceed the disk budget
+	 * @return true if the job has been admitted
+	 */
+	private synchronized boolean admit(Node node, boolean force) {
+		node.admitted = tempStorage.tryAcquire(node.job, force);
+		return node.admitted;
+	}
+	
+	/**
+	 * Sets aside a job whose intermediate files don't fit the disk budget, freeing its worker
+	 * @param node Job waiting for some space
+	 */
+	private void setAside(Node node) {
+		synchronized (this) {
+			unready(node.job);
+			launching--;
+			waiting.add(node);
+		}
+		admitStalled();
+	}
+	
+	/**
+	 * Admits again the jobs waiting for the disk budget whose intermediate files now fit it,
+	 * the readers of intermediate files first
+	 */
+	private void admitWaiting() {
+		ArrayList<Node> admitted = new ArrayList<>();
+		synchronized (this) {
+			while(!waiting.isEmpty() && admit(waiting.peek(), false))
+				admitted.add(waiting.poll());
+		}
+		for(Node node : admitted)
+			ready(node);
+	}
+	
+	/**
+	 * Admits the first waiting job over the disk budget if no job could free any space
+	 * (none is running nor launchable): the budget is smaller than the files needed by the next job
+	 */
+	private void admitStalled() {
+		Node node;
+		boolean warned;
+		synchronized (this) {
+			if(launching>0 || !launchable.isEmpty() || waiting.isEmpty())
+				return;
+			node = waiting.poll();
+			admit(node, true);
+			warned = exceeded;
+			exceeded = true;
+		}
+		if(!warned)
+			System.err.println("The disk budget is too small for the intermediate files of "+node.job.getName()
+					+": exceeded each time no job can free any space");
+		ready(node);
+	}
+	
+	/**
+	 * Records that a ready job is not launched: an encoding job no more shares the threads
+	 * @param job Job terminated or set aside without being launched
+	 */
+	private synchronized void unready(Job job) {
+		if(job.getPixels()>0)
+			readyEncoders--;
+	}
+	
+	/**
+	 * Gives a share of the thread budget to an encoding job being launched. The other encoders expected to run
+	 * at the same time are the running ones and the ready ones (which take the place of the running ones as soon as
+	 * they terminate, up to the pool size), the latter being assumed as big as this job: the share is proportional
+	 * to the pixels of the job among all of them.
+	 * The share never exceeds the threads left by the running encoders (at least one thread is given) nor one thread
+	 * for each K.pixelsPerThread pixels, since the encoders don't scale on small frames.
+	 * @param job Job being launched
+	 * @return Threads of the job (0 if the job doesn't encode)
+	 */
+	private synchronized int allocateThreads(Job job) {
+		long pixels = job.getPixels();
+		if(pixels<=0)
+			return 0;
+		readyEncoders--;
+		int others = Math.min(readyEncoders, size-1);
+		double share = (double) threadBudget*pixels/(runningPixels+pixels*(1+others));
+		long useful = Math.max(job.getEncoders(), pixels/K.pixelsPerThread);
+		int threads = (int) Math.max(1, Math.min(Math.round(share), Math.min(useful, threadBudget-allocatedThreads)));
+		allocatedThreads += threads;
+		runningPixels += pixels;
+		runningEncoders++;
+		return threads;
+	}
+	
+	/**
+	 * Gives back the threads of a terminated job
+	 * @param job Terminated job
+	 */
+	private synchronized void releaseThreads(Job job) {
+		if(job.getPixels()<=0)
+			return;
+		allocatedThreads -= job.getThreads();
+		runningPixels -= job.getPixels();
+		runningEncoders--;
+	}
+	
+	/**
+	 * Stops the workers once all the queued jobs are terminated
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		costModel.save();
+		tempStorage.shutdown();
+		if(coordinator!=null)
+			coordinator.shutdown();
+	}
+}
@@ -26,6 +26,7 @@ public abstract class K {
 	
 	//XML tags
 	public static final String videoTag = "video";
+	public static final String videosTag = "videos"; //Root of a catalogue of videos
 	
 	public static final String videoPathTag = "path";
 	
@@ -54,33 +55,107 @@ public abstract class K {
 	
 	public static final String outputTag = "output";
 	
+	//System properties
+	public static final String jobsProperty = "preprocessing.jobs"; //Number of commands running at the same time
+	public static final String cropModeProperty = "preprocessing.cropMode"; //How the tiles are cropped
+	public static final String memoryProperty = "preprocessing.memory"; //Memory budget in MB of the commands running at the same time
+	public static final String threadsProperty = "preprocessing.threads"; //Threads shared by the encoders running at the same time
+	public static final String slicesProperty = "preprocessing.slices"; //True to encode each frame in as many slices as threads
+	public static final String historyProperty = "preprocessing.history"; //File in which the measured job durations are kept
+	public static final String chunkProperty = "preprocessing.chunk"; //Duration in seconds of the chunks encoded in parallel
+	public static final String coordinatorProperty = "preprocessing.coordinator"; //Port on which the jobs are given to remote workers
+	public static final String probeCacheProperty = "preprocessing.probeCache"; //Directory in which the probes are cached
+	public static final String segmenterProperty = "preprocessing.segmenter"; //Tool segmenting the videos
+	public static final String metricsProperty = "preprocessing.metrics"; //File in which the metrics are written in the Prometheus text format
+	public static final String streamProperty = "preprocessing.stream"; //True to stream the encoded videos to the segmenter
+	public static final String ramTempProperty = "preprocessing.ramTemp"; //Directory on a RAM disk (e.g. /dev/shm) in which the intermediate files are staged
+	public static final String ramTempBudgetProperty = "preprocessing.ramTempBudget"; //MB of intermediate files staged on the RAM disk
+	public static final String diskBudgetProperty = "preprocessing.diskBudget"; //MB of intermediate files kept on disk at the same time
+	public static final String cleanupProperty = "preprocessing.cleanup"; //True to delete each intermediate file once read by all the jobs
+	public static final String probeCacheDefault = ".preprocessing/probe"; //Relative to the user home
+	public static final String historyDefault = ".preprocessing/history"; //Relative to the user home, one file for each host
 	
-	//Default objects for regular tiling
-	//2x2
-	public static final String[] twoByTwo = {
-		"0,0,1,1,0,0,0.5,0.5",
-		"1,0,1,1,0.5,0,1,0.5",
-		"0,1,1,1,0,0.5,0.5,1",
-		"1,1,1,1,0.5,0.5,1,1"
-	};
-	
-	//3x3
-	public static final String[] threeByThree = {
-		"0,0,1,1,0,0,0.33,0.33",
-		"1,0,1,1,0.33,0,0.66,0.33",
-		"2,0,1,1,0.66,0,1,0.33",
-		"0,1,1,1,0,0.33,0.33,0.66",
-		"1,1,1,1,0.33,0.33,0.66,0.66",
-		"2,1,1,1,0.66,0.33,1,0.66",
-		"0,2,1,1,0,0.66,0.33,1",
-		"1,2,1,1,0.33,0.66,0.66,1",
-		"2,2,1,1,0.66,0.66,1,1"
-	};
-	
-	public static final HashMap<String,String[]> defaultTiling = new HashMap<String,String[]>();
+	//Crop modes
+	public static final String cropModeSeparate = "separate"; //One ffmpeg process for each tile of each version
+	public static final String cropModeFused = "fused"; //One ffmpeg process for each version emitting all the tiles
+	public static final String cropModeDirect = "direct"; //Tiles scaled and cropped from the original video, no intermediate version
+	
+	//Segmenters
+	public static final String segmenterBuiltin = "builtin"; //Segmenter class, no external tool
+	public static final String segmenterMP4Box = "mp4box"; //MP4Box of GPAC 0.5.2-426
+	
+	//Memory estimation of an encoding process: fixed part in MB and number of buffered frames
+	public static final int encoderBaseMemory = 64;
+	public static final int encoderBufferedFrames = 64;
+	
+	//Thread budgeting: placeholder replaced by the thread options of each encoder when the job is launched,
+	//and minimum number of pixels of a frame for each encoder thread
+	public static final String threadsPlaceholder = "{threads}";
+	public static final long pixelsPerThread = 256*256;
+	
+	//Cost model: work of an encoded bit relative to an encoded pixel, default frame rate,
+	//default seconds of a thread for each unit of work (pixel of a frame or second of media)
+	//and weight of a new measure in the history
+	public static final double bitWork = 4;
+	public static final double defaultFrameRate = 25;
+	public static final double encodingSecondsPerWork = 2e-8;
+	public static final double mediaSecondsPerWork = 0.01;
+	public static final double historyWeight = 0.3;
+	
+	//External processes
+	public static final long processPoll = 20; //Milliseconds between two checks of the running processes
+	public static final int processTail = 2048; //Bytes of the standard error kept to report a failure
+	public static final String logExtension = ".log"; //Extension of the files receiving the standard error of the jobs
+	
+	//Metrics
+	public static final long metricsInterval = 5000; //Milliseconds between two summaries of the running jobs
+	public static final int progressTail = 4096; //Bytes read from the end of a progress file
+	public static final String progressExtension = ".progress"; //Extension of the files receiving the progress of ffmpeg
+	
+	//Phases of the jobs
+	public static final String phaseAudio = "audio";
+	public static final String phaseTranscode = "transcode";
+	public static final String phaseTile = "tile";
+	public static final String phaseConcat = "concat";
+	public static final String phaseSegment = "segment";
+	
+	//Size estimation of the intermediate files: bits of an encoded pixel without bitrate option, kbit/s of the audio
+	public static final double bitsPerPixel = 0.1;
+	public static final int audioBitrate = 128;
+	
+	//Memory in MB of a segmenter, given as maximum heap size to its JVM
+	public static final int segmenterMemory = 64;
+	
+	//Distributed mode
+	public static final int coordinatorThreads = 4; //Threads answering the workers
+	public static final long workerTimeout = 30000; //Milliseconds after which a silent worker is considered lost
+	public static final long workerHeartbeat = 5000; //Milliseconds between two heartbeats of a worker
+	public static final long workerPoll = 1000; //Milliseconds waited by a worker when no job is available
+	
+	//Extension of the files in which the job fingerprints are recorded
+	public static final String fingerprintExtension = ".fingerprint";
+	
+	//Audio codec that can be put in the DASH segments without transcoding
+	public static final String dashAudioCodec = "aac";
+	
+	//DASH segments and manifest, named as MP4Box does with -segment-name %s_
+	public static final String dashInitSuffix = "_init.mp4";
+	public static final String dashSegmentExtension = ".m4s";
+	public static final String dashSRDScheme = "urn:mpeg:dash:srd:2014";
+	public static final String dashProfile = "urn:mpeg:dash:profile:full:2011";
+	public static final int streamBuffer = 1<<16; //Bytes read at once from a fragmented MP4 stream
+	
+	//Default tilings: columns and rows of the regular grid, the tilings named K.gridTiling and K.equirectangularTiling
+	//using the W and H of the video (the second one with fewer, downscaled tiles near the poles of a 360° video)
+	public static final String gridTiling = "grid";
+	public static final String equirectangularTiling = "equirectangular";
+	public static final HashMap<String,int[]> defaultTiling = new HashMap<String,int[]>();
 	
 	static {
-		defaultTiling.put("twoByTwo",twoByTwo);
-		defaultTiling.put("threeByThree",threeByThree);
+		defaultTiling.put("twoByTwo",new int[] {2,2});
+		defaultTiling.put("threeByThree",new int[] {3,3});
 	}
+	
+	//Pixels of the blocks of the encoders, on which the tile edges are aligned
+	public static final int tileAlignment = 16;
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+/**
+ * Structured information about a video file obtained by the MediaProbe.
+ */
+public class MediaInfo {
+	
+	public final int width; //Video width
+	public final int height; //Video height
+	public final double duration; //Duration in seconds
+	public final double frameRate; //Frames per second
+	public final String videoCodec; //Codec of the first video stream
+	public final double[] keyframes; //Timestamps in seconds of the keyframes of the first video stream
+	public final String audioCodec; //Codec of the first audio stream (null if the video has no audio)
+	public final int audioSampleRate; //Sample rate of the first audio stream (0 if the video has no audio)
+	public final int audioChannels; //Channels of the first audio stream (0 if the video has no audio)
+	
+	public MediaInfo(int width, int height, double duration, double frameRate, String videoCodec, double[] keyframes,
+			String audioCodec, int audioSampleRate, int audioChannels) {
+		this.width = width;
+		this.height = height;
+		this.duration = duration;
+		this.frameRate = frameRate;
+		this.videoCodec = videoCodec;
+		this.keyframes = keyframes;
+		this.audioCodec = audioCodec;
+		this.audioSampleRate = audioSampleRate;
+		this.audioChannels = audioChannels;
+	}
+	
+	public boolean hasAudio() {
+		return audioCodec!=null;
+	}
+}
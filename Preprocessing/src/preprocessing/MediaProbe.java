@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Retrieves the information about a video file with ffprobe: one call for the streams and the format,
+ * one for the packets of the video stream, of which only the keyframe times are kept (they place the
+ * boundaries of the chunks encoded in parallel).
+ * The two calls are not merged: the first one only reads the headers and returns at once, while the second one
+ * demuxes the whole file and lists every packet of the video stream (without decoding it), so that it reads
+ * the whole file from the disk and lasts in proportion to its size, and its output grows with the number of
+ * frames. Restricting it to the video stream keeps the packets of the other streams out of the output, which is
+ * written in a temporary file and read line by line rather than held in memory.
+ * The probe is cached on disk, in a file whose name is obtained from the video path,
+ * size and last modification time: probing again the same unchanged video doesn't launch ffprobe,
+ * so the cost of reading the packets is paid once for each video.
+ */
+public class MediaProbe {
+	
+	private String cacheDirectory;
+	
+	public MediaProbe(String cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+	
+	/**
+	 * Retrieves the cache directory from the system property K.probeCacheProperty.
+	 * If the property is not set, a directory inside the user home is used.
+	 * @return Path of the cache directory
+	 */
+	public static String defaultCacheDirectory() {
+		return System.getProperty(K.probeCacheProperty, System.getProperty("user.home")+"/"+K.probeCacheDefault);
+	}
+	
+	/**
+	 * Retrieves the information about the video, from the cache if available
+	 * @param videoPath Path of the video to be probed
+	 * @return MediaInfo object
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public MediaInfo probe(String videoPath) throws IOException, InterruptedException {
+		File video = new File(videoPath);
+		File cacheDir = new File(cacheDirectory);
+		//The suffix changes with the content of the probe: the probes cached by an older version are not read
+		File cached = new File(cacheDir, Fingerprint.of(video)+".v2.probe");
+		if(!cached.exists()) {
+			//Not probed yet: launching ffprobe and storing its output
+			if(!cacheDir.exists())
+				cacheDir.mkdirs();
+			File partial = new File(cacheDir, cached.getName()+".part");
+			runProbe(videoPath, partial);
+			if(!partial.renameTo(cached))
+				throw new IOException("Unable to store the probe of the file "+videoPath+"!");
+		}
+		return parse(cached);
+	}
+	
+	/**
+	 * Launches ffprobe: streams and format are printed in the flat format, followed by a keyframe=time line
+	 * for each keyframe of the first video stream. The packets of the other streams are never listed
+	 * and the packets of the video stream are read in a temporary file, deleted once the keyframes are kept.
+	 * @param videoPath Path of the video to be probed
+	 * @param destination File in which the probe is written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void runProbe(String videoPath, File destination) throws IOException, InterruptedException {
+		runFfprobe(Arrays.asList("ffprobe", "-v", "error", "-of", "flat", "-show_entries",
+				"format=duration"
+				+":stream=index,codec_type,codec_name,width,height,r_frame_rate,sample_rate,channels", videoPath),
+				videoPath, destination);
+		File packets = new File(destination.getPath()+".packets");
+		try {
+			runFfprobe(Arrays.asList("ffprobe", "-v", "error", "-select_streams", "v:0", "-of", "csv=p=0",
+					"-show_entries", "packet=pts_time,flags", videoPath), videoPath, packets);
+			
+			//Keeping the times of the packets flagged as keyframes (e.g. 4.004000,K_)
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(packets), StandardCharsets.UTF_8));
+			PrintStream writer = new PrintStream(new FileOutputStream(destination, true), false, "UTF-8");
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					String[] fields = line.trim().split(",");
+					if(fields.length>=2 && fields[1].startsWith("K") && !fields[0].equals("N/A"))
+						writer.println("keyframe="+fields[0]);
+				}
+			} finally {
+				reader.close();
+				writer.close();
+			}
+		} finally {
+			packets.delete();
+		}
+	}
+	
+	/**
+	 * Launches ffprobe writing its output in a file
+	 * @param command ffprobe and its arguments
+	 * @param videoPath Path of the video to be probed
+	 * @param destination File in which the ffprobe output is written
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void runFfprobe(List<String> command, String videoPath, File destination) throws IOException, InterruptedException {
+		ProcessResult result;
+		try {
+			result = ProcessRunner.run(command, destination, null).get();
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to probe the file "+videoPath+": "+e.getCause().getMessage(), e.getCause());
+		}
+		if(!result.succeeded())
+			throw new IOException("Unable to probe the file "+videoPath+"! "+result.errorTail);
+	}
+	
+	/**
+	 * Parses the probe, printed with the flat format (e.g. streams.stream.0.width=1920) followed by the keyframes
+	 * @param probe File containing the probe
+	 * @return MediaInfo object
+	 * @throws IOException
+	 */
+	private MediaInfo parse(File probe) throws IOException {
+		HashMap<Integer,HashMap<String,String>> streams = new HashMap<>();
+		ArrayList<Double> keyframes = new ArrayList<>();
+		double duration = 0;
+		
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(probe), StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			int equal = line.indexOf('=');
+			if(equal<0)
+				continue;
+			String[] key = line.substring(0, equal).split("\\.");
+			String value = line.substring(equal+1).replace("\"", "");
+			if(key[0].equals("keyframe") && key.length==1) {
+				keyframes.add(Double.parseDouble(value));
+			} else if(key[0].equals("streams") && key.length==4) {
+				int index = Integer.parseInt(key[2]);
+				if(!streams.containsKey(index))
+					streams.put(index, new HashMap<String,String>());
+				streams.get(index).put(key[3], value);
+			} else if(key[0].equals("format") && key.length==2 && key[1].equals("duration") && !value.equals("N/A")) {
+				duration = Double.parseDouble(value);
+			}
+		}
+		reader.close();
+		
+		//Looking for the first video and the first audio streams
+		HashMap<String,String> video = null;
+		HashMap<String,String> audio = null;
+		for(int i=0; i<streams.size(); i++) {
+			HashMap<String,String> stream = streams.get(i);
+			if(stream==null)
+				continue;
+			if(video==null && "video".equals(stream.get("codec_type"))) {
+				video = stream;
+			} else if(audio==null && "audio".equals(stream.get("codec_type"))) {
+				audio = stream;
+			}
+		}
+		if(video==null)
+			throw new IOException("The file "+probe.getName()+" doesn't describe any video stream!");
+		
+		//The keyframes are the ones of the first video stream
+		double[] videoKeyframes = new double[keyframes.size()];
+		for(int i=0; i<videoKeyframes.length; i++) {
+			videoKeyframes[i] = keyframes.get(i);
+		}
+		
+		return new MediaInfo(parseInt(video.get("width")), parseInt(video.get("height")), duration,
+				parseRate(video.get("r_frame_rate")), video.get("codec_name"), videoKeyframes,
+				audio!=null ? audio.get("codec_name") : null,
+				audio!=null ? parseInt(audio.get("sample_rate")) : 0,
+				audio!=null ? parseInt(audio.get("channels")) : 0);
+	}
+	
+	private int parseInt(String value) {
+		if(value==null || value.equals("N/A"))
+			return 0;
+		return Integer.parseInt(value);
+	}
+	
+	/**
+	 * Parses a rate expressed as a fraction (e.g. 30000/1001)
+	 * @param value Rate to be parsed
+	 * @return Rate value or 0 if not available
+	 */
+	private double parseRate(String value) {
+		if(value==null || value.equals("N/A"))
+			return 0;
+		String[] parts = value.split("/");
+		if(parts.length==1)
+			return Double.parseDouble(parts[0]);
+		double denominator = Double.parseDouble(parts[1]);
+		return denominator==0 ? 0 : Double.parseDouble(parts[0])/denominator;
+	}
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Class of utilities collecting the metrics of the jobs.
+ * The ffmpeg commands are launched with the -progress option, writing the frames, fps, bitrate,
+ * encoded time and speed in a file: a single daemon thread reads the last block of the progress file
+ * of each running job, prints a summary of the running phases and, if a file is given, writes the
+ * metrics of each phase in the Prometheus text format.
+ * Only the running jobs are followed one by one: the terminated jobs are added up by phase, and the series of the
+ * Prometheus file are labelled by phase and state only, so that their number doesn't grow with the jobs.
+ * The counters only add up the terminated jobs, so that they never decrease; the progress of the running jobs
+ * is exported as gauges.
+ * The detail of each job stays in its progress file and in the line logged once it is completed.
+ */
+public abstract class Metrics {
+	
+	private static final LinkedHashMap<Job,JobMetrics> jobs = new LinkedHashMap<>(); //Running jobs
+	private static final LinkedHashMap<String,PhaseMetrics> totals = new LinkedHashMap<>(); //Terminated jobs, by phase
+	private static String prometheusFile;
+	private static Thread monitor;
+	
+	/**
+	 * Starts the thread printing the summary and writing the metrics file
+	 * @param file Path of the Prometheus text file (null if the metrics are only printed)
+	 */
+	public static synchronized void start(String file) {
+		prometheusFile = file;
+		if(monitor!=null)
+			return;
+		monitor = new Thread(Metrics::monitor, "Metrics");
+		monitor.setDaemon(true);
+		monitor.start();
+	}
+	
+	/**
+	 * Stops the monitor thread, writes the metrics file for the last time and prints the summary of each phase
+	 */
+	public static void stop() {
+		Thread thread;
+		synchronized (Metrics.class) {
+			thread = monitor;
+			monitor = null;
+		}
+		if(thread!=null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		writePrometheus();
+		for(String line : phaseSummary()) {
+			System.out.println(line);
+		}
+	}
+	
+	/**
+	 * Records the launch of a job
+	 * @param job Job being launched
+	 */
+	public static synchronized void started(Job job) {
+		JobMetrics jobMetrics = new JobMetrics();
+		jobMetrics.phase = job.getPhase();
+		jobMetrics.start = System.currentTimeMillis();
+		total(jobMetrics.phase);
+		jobs.put(job, jobMetrics);
+	}
+	
+	/**
+	 * Records the termination of a job, reading its progress for the last time
+	 * @param job Terminated job
+	 * @param succeeded True if the command succeeded
+	 * @return Detail of the job to be logged: duration, frames and speed (empty if the job has not been launched)
+	 */
+	public static String finished(Job job, boolean succeeded) {
+		String[] progress = readProgress(job.getProgressFile());
+		synchronized (Metrics.class) {
+			JobMetrics jobMetrics = jobs.remove(job);
+			if(jobMetrics==null) {
+				jobMetrics = new JobMetrics();
+				jobMetrics.phase = job.getPhase();
+			}
+			jobMetrics.update(progress);
+			PhaseMetrics total = total(jobMetrics.phase);
+			total.jobs++;
+			if(succeeded)
+				total.completed++;
+			else
+				total.failed++;
+			long duration = jobMetrics.start>0 ? System.currentTimeMillis()-jobMetrics.start : 0;
+			total.duration += duration;
+			total.frames += jobMetrics.frames;
+			total.outTime += jobMetrics.outTime;
+			if(jobMetrics.start<=0)
+				return "";
+			return String.format(Locale.US, " (%.1fs", duration/1000.0)
+					+(jobMetrics.frames>0 ? String.format(Locale.US, ", %d frames at %.2fx", jobMetrics.frames, jobMetrics.speed) : "")+")";
+		}
+	}
+	
+	/**
+	 * Records that a failed job is executed again (e.g. on disk after filling the RAM disk): the failed attempt
+	 * is not counted as a failed job, the job being counted once it terminates again.
+	 * The processing time and the frames of the attempt stay in the totals of the phase.
+	 * @param job Job executed again
+	 */
+	public static synchronized void retried(Job job) {
+		PhaseMetrics total = total(job.getPhase());
+		total.jobs--;
+		total.failed--;
+	}
+	
+	/**
+	 * Records a job skipped because it has been already executed
+	 * @param job Skipped job
+	 */
+	public static synchronized void skipped(Job job) {
+		PhaseMetrics total = total(job.getPhase());
+		total.jobs++;
+		total.skipped++;
+	}
+	
+	/**
+	 * @param phase Phase of a job
+	 * @return Metrics of the terminated jobs of the phase
+	 */
+	private static PhaseMetrics total(String phase) {
+		PhaseMetrics total = totals.get(phase);
+		if(total==null) {
+			total = new PhaseMetrics();
+			totals.put(phase, total);
+		}
+		return total;
+	}
+	
+	/**
+	 * Periodically updates the progress of the running jobs, prints the summary and writes the metrics file
+	 */
+	private static void monitor() {
+		while(true) {
+			try {
+				Thread.sleep(K.metricsInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			ArrayList<Job> running;
+			synchronized (Metrics.class) {
+				running = new ArrayList<>(jobs.keySet());
+			}
+			for(Job job : running) {
+				String[] progress = readProgress(job.getProgressFile());
+				synchronized (Metrics.class) {
+					JobMetrics jobMetrics = jobs.get(job);
+					if(jobMetrics!=null)
+						jobMetrics.update(progress);
+				}
+			}
+			String summary = runningSummary();
+			if(summary!=null)
+				System.out.println(summary);
+			writePrometheus();
+		}
+	}
+	
+	/**
+	 * Builds a line with, for each phase with running jobs, the number of running jobs and their mean speed
+	 * @return Summary line or null if no job is running
+	 */
+	private static synchronized String runningSummary() {
+		LinkedHashMap<String,PhaseMetrics> phases = phases();
+		String summary = "";
+		for(Map.Entry<String,PhaseMetrics> entry : phases.entrySet()) {
+			PhaseMetrics phase = entry.getValue();
+			if(phase.running==0)
+				continue;
+			summary += (summary.isEmpty() ? "" : " | ")+entry.getKey()+": "+phase.running+" running"
+					+(phase.runningSpeed>0 ? String.format(Locale.US, " at %.2fx", phase.runningSpeed/phase.running) : "")
+					+", "+(phase.completed+phase.skipped)+"/"+phase.jobs+" done";
+		}
+		return summary.isEmpty() ? null : "Progress: "+summary;
+	}
+	
+	/**
+	 * Builds a line for each phase with the number of jobs, the processing time and the encoded time
+	 * @return Summary lines
+	 */
+	private static synchronized ArrayList<String> phaseSummary() {
+		ArrayList<String> lines = new ArrayList<>();
+		for(Map.Entry<String,PhaseMetrics> entry : phases().entrySet()) {
+			PhaseMetrics phase = entry.getValue();
+			String line = String.format(Locale.US, "Phase %s: %d jobs (%d already done, %d failed), %.1fs of processing",
+					entry.getKey(), phase.jobs, phase.skipped, phase.failed, phase.duration/1000.0);
+			if(phase.outTime>0)
+				line += String.format(Locale.US, ", %.1fs of video encoded at %.2fx", phase.outTime, phase.outTime*1000/Math.max(1, phase.duration));
+			lines.add(line);
+		}
+		return lines;
+	}
+	
+	/**
+	 * Aggregates the metrics of the jobs by phase: the running jobs are added to the terminated ones
+	 * @return Metrics of each phase
+	 */
+	private static LinkedHashMap<String,PhaseMetrics> phases() {
+		LinkedHashMap<String,PhaseMetrics> phases = new LinkedHashMap<>();
+		for(Map.Entry<String,PhaseMetrics> entry : totals.entrySet()) {
+			phases.put(entry.getKey(), entry.getValue().copy());
+		}
+		for(JobMetrics jobMetrics : jobs.values()) {
+			PhaseMetrics phase = phases.get(jobMetrics.phase);
+			phase.jobs++;
+			phase.running++;
+			phase.runningSpeed += jobMetrics.speed;
+			phase.runningFps += jobMetrics.fps;
+			phase.runningBitrate += jobMetrics.bitrate;
+			phase.runningFrames += jobMetrics.frames;
+		}
+		return phases;
+	}
+	
+	/**
+	 * Writes the metrics in the Prometheus text format, replacing the previous file at once
+	 */
+	private static void writePrometheus() {
+		String file = prometheusFile;
+		if(file==null)
+			return;
+		StringBuilder text = new StringBuilder();
+		synchronized (Metrics.class) {
+			text.append("# HELP preprocessing_phase_jobs Jobs of each phase by state\n");
+			text.append("# TYPE preprocessing_phase_jobs gauge\n");
+			LinkedHashMap<String,PhaseMetrics> phases = phases();
+			for(Map.Entry<String,PhaseMetrics> entry : phases.entrySet()) {
+				PhaseMetrics phase = entry.getValue();
+				String label = "phase=\""+escape(entry.getKey())+"\"";
+				text.append("preprocessing_phase_jobs{"+label+",state=\"running\"} "+phase.running+"\n");
+				text.append("preprocessing_phase_jobs{"+label+",state=\"completed\"} "+phase.completed+"\n");
+				text.append("preprocessing_phase_jobs{"+label+",state=\"failed\"} "+phase.failed+"\n");
+				text.append("preprocessing_phase_jobs{"+label+",state=\"skipped\"} "+phase.skipped+"\n");
+			}
+			String[][] phaseMetrics = {
+				{"duration_seconds", "counter", "Processing time of the terminated jobs of each phase"},
+				{"out_time_seconds", "counter", "Video time encoded by the terminated jobs of each phase"},
+				{"frames", "counter", "Frames encoded by the terminated jobs of each phase"},
+				{"running_frames", "gauge", "Frames encoded so far by the running jobs of each phase"},
+				{"running_fps", "gauge", "Frames encoded per second by the running jobs of each phase"},
+				{"running_speed", "gauge", "Mean encoding speed of the running jobs of each phase, as a multiple of real time"},
+				{"running_bitrate_kbps", "gauge", "Mean bitrate of the videos encoded by the running jobs of each phase"}
+			};
+			for(String[] metric : phaseMetrics) {
+				text.append("# HELP preprocessing_phase_"+metric[0]+" "+metric[2]+"\n");
+				text.append("# TYPE preprocessing_phase_"+metric[0]+" "+metric[1]+"\n");
+				for(Map.Entry<String,PhaseMetrics> entry : phases.entrySet()) {
+					PhaseMetrics phase = entry.getValue();
+					double value;
+					switch(metric[0]) {
+						case "duration_seconds": value = phase.duration/1000.0; break;
+						case "out_time_seconds": value = phase.outTime; break;
+						case "frames": value = phase.frames; break;
+						case "running_frames": value = phase.runningFrames; break;
+						case "running_fps": value = phase.runningFps; break;
+						case "running_speed": value = phase.running>0 ? phase.runningSpeed/phase.running : 0; break;
+						default: value = phase.running>0 ? phase.runningBitrate/phase.running : 0;
+					}
+					text.append("preprocessing_phase_"+metric[0]+"{phase=\""+escape(entry.getKey())+"\"} "+format(value)+"\n");
+				}
+			}
+		}
+		try {
+			File metrics = new File(file);
+			File partial = new File(file+".part");
+			PrintStream writer = new PrintStream(partial, "UTF-8");
+			writer.print(text);
+			writer.close();
+			if(!partial.renameTo(metrics))
+				System.err.println("Unable to write the metrics file "+file+"!");
+		} catch (IOException e) {
+			System.err.println("Unable to write the metrics file "+file+": "+e.getMessage());
+		}
+	}
+	
+	private static String escape(String label) {
+		return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	private static String format(double value) {
+		return String.format(Locale.US, "%.3f", value);
+	}
+	
+	/**
+	 * Reads the last block of a progress file written by ffmpeg: each block is a list of key=value lines
+	 * terminated by a progress=continue or progress=end line
+	 * @param path Path of the progress file (can be null)
+	 * @return Lines of the last complete block (empty if the file is not available)
+	 */
+	private static String[] readProgress(String path) {
+		if(path==null || !new File(path).exists())
+			return new String[0];
+		try {
+			RandomAccessFile file = new RandomAccessFile(path, "r");
+			try {
+				long length = file.length();
+				byte[] content = new byte[(int) Math.min(length, K.progressTail)];
+				file.seek(length-content.length);
+				file.readFully(content);
+				String[] lines = new String(content, StandardCharsets.UTF_8).split("\n");
+				int end = lines.length-1;
+				while(end>=0 && !lines[end].startsWith("progress="))
+					end--;
+				int begin = end-1;
+				while(begin>=0 && !lines[begin].startsWith("progress="))
+					begin--;
+				if(end<0 || (begin<0 && content.length<length))
+					return new String[0];
+				String[] block = new String[end-begin-1];
+				System.arraycopy(lines, begin+1, block, 0, block.length);
+				return block;
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return new String[0];
+		}
+	}
+	
+	private static class JobMetrics {
+		String phase;
+		long start;
+		long frames;
+		double fps;
+		double speed;
+		double bitrate; //kbit/s
+		double outTime; //seconds
+		
+		/**
+		 * Updates the metrics from a block of the progress file
+		 * @param progress key=value lines
+		 */
+		void update(String[] progress) {
+			for(String line : progress) {
+				String[] pieces = line.trim().split("=", 2);
+				if(pieces.length<2)
+					continue;
+				String value = pieces[1].trim();
+				try {
+					switch(pieces[0]) {
+						case "frame": frames = Long.parseLong(value); break;
+						case "fps": fps = Double.parseDouble(value); break;
+						case "speed": speed = Double.parseDouble(value.replace("x", "")); break;
+						case "bitrate": bitrate = Double.parseDouble(value.replace("kbits/s", "")); break;
+						case "out_time_us": outTime = Long.parseLong(value)/1000000.0; break;
+						default: break;
+					}
+				} catch (NumberFormatException e) {
+					//N/A values are left unchanged
+				}
+			}
+		}
+	}
+	
+	private static class PhaseMetrics {
+		int jobs;
+		int running;
+		int completed;
+		int failed;
+		int skipped;
+		double runningSpeed; //Sum of the speeds of the running jobs
+		double runningFps; //Sum of the frames per second of the running jobs
+		double runningBitrate; //Sum of the bitrates in kbit/s of the running jobs
+		long runningFrames; //Frames encoded so far by the running jobs
+		long frames; //Frames encoded by the terminated jobs
+		long duration; //Milliseconds
+		double outTime; //Seconds
+		
+		/**
+		 * @return Copy of the metrics
+		 */
+		PhaseMetrics copy() {
+			PhaseMetrics copy = new PhaseMetrics();
+			copy.jobs = jobs;
+			copy.running = running;
+			copy.completed = completed;
+			copy.failed = failed;
+			copy.skipped = skipped;
+			copy.runningSpeed = runningSpeed;
+			copy.runningFps = runningFps;
+			copy.runningBitrate = runningBitrate;
+			copy.runningFrames = runningFrames;
+			copy.frames = frames;
+			copy.duration = duration;
+			copy.outTime = outTime;
+			return copy;
+		}
+	}
+}
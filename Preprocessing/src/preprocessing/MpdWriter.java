@@ -0,0 +1,330 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Writes the DASH-SRD manifest of the segments, produced by the built-in segmenter (the default one) or by MP4Box.
+ * The segments start on keyframes, so their durations are read from their fragments instead of being assumed
+ * equal to the segment duration: each representation is addressed with a SegmentTemplate and a SegmentTimeline
+ * giving the actual start time and duration of its segments. The manifest only needs the codecs, read from the
+ * initialization segments, and the bandwidth, computed from the size and the duration of the segments.
+ * The representation ids are the names of the segmented files, percent-encoded so that the segment URLs built
+ * from them reach the files whatever their names; the attribute values are escaped.
+ */
+public class MpdWriter {
+	
+	private String directory;
+	private int segment;
+	private double duration;
+	private StringBuilder adaptationSets;
+	private String adaptationSet; //Opening of the current adaptation set (null if no adaptation set is open)
+	private StringBuilder representations; //Representations of the current adaptation set
+	private long[] boundaries; //Start times in milliseconds of the segments of the first representation of the current adaptation set
+	private boolean aligned; //True while the segments of the representations of the current adaptation set start at the same times
+	private double maxSegmentDuration; //Seconds
+	
+	/**
+	 * @param directory Directory containing the segments, in which the manifest is written
+	 * @param segment Segment duration in milliseconds
+	 * @param duration Duration of the video in seconds
+	 */
+	public MpdWriter(String directory, int segment, double duration) {
+		this.directory = directory;
+		this.segment = segment;
+		this.duration = duration;
+		this.adaptationSets = new StringBuilder();
+	}
+	
+	/**
+	 * Starts a new adaptation set: the following representations are added to it
+	 * @param mimeType video/mp4 or audio/mp4
+	 * @param srd SRD value (source,x,y,w,h,W,H) or null if the adaptation set is not a tile
+	 */
+	public void addAdaptationSet(String mimeType, String srd) {
+		closeAdaptationSet();
+		String opening = " mimeType=\""+escape(mimeType)+"\">\n";
+		if(srd!=null)
+			opening += "   <SupplementalProperty schemeIdUri=\""+K.dashSRDScheme+"\" value=\""+escape(srd)+"\"/>\n";
+		adaptationSet = opening;
+		representations = new StringBuilder();
+		boundaries = null;
+		aligned = true;
+	}
+	
+	/**
+	 * Adds a video representation to the current adaptation set
+	 * @param id Name of the segmented file without extension, prefix of its segments
+	 * @param width Video width
+	 * @param height Video height
+	 * @throws IOException if the segments of the representation are missing
+	 */
+	public void addVideoRepresentation(String id, int width, int height) throws IOException {
+		Timeline timeline = timeline(id);
+		representations.append("   <Representation id=\"").append(encodeId(id)).append("\" codecs=\"").append(escape(codecs(id)))
+				.append("\" width=\"").append(width).append("\" height=\"").append(height)
+				.append("\" bandwidth=\"").append(timeline.bandwidth()).append("\">\n");
+		appendSegmentTemplate(timeline);
+		representations.append("   </Representation>\n");
+	}
+	
+	/**
+	 * Adds an audio representation to the current adaptation set
+	 * @param id Name of the segmented file without extension, prefix of its segments
+	 * @param sampleRate Audio sample rate
+	 * @param channels Number of audio channels
+	 * @throws IOException if the segments of the representation are missing
+	 */
+	public void addAudioRepresentation(String id, int sampleRate, int channels) throws IOException {
+		Timeline timeline = timeline(id);
+		representations.append("   <Representation id=\"").append(encodeId(id)).append("\" codecs=\"").append(escape(codecs(id)))
+				.append("\" audioSamplingRate=\"").append(sampleRate)
+				.append("\" bandwidth=\"").append(timeline.bandwidth()).append("\">\n")
+				.append("    <AudioChannelConfiguration schemeIdUri=\"urn:mpeg:dash:23003:3:audio_channel_configuration:2011\" value=\"")
+				.append(channels).append("\"/>\n");
+		appendSegmentTemplate(timeline);
+		representations.append("   </Representation>\n");
+	}
+	
+	/**
+	 * Appends the SegmentTemplate of a representation: consecutive segments with the same duration
+	 * are grouped in a single S element, the start time being given only after a gap
+	 * @param timeline Segments of the representation
+	 */
+	private void appendSegmentTemplate(Timeline timeline) {
+		representations.append("    <SegmentTemplate timescale=\"").append(timeline.timescale)
+				.append("\" startNumber=\"1\" media=\"$RepresentationID$_$Number$").append(K.dashSegmentExtension)
+				.append("\" initialization=\"$RepresentationID$").append(K.dashInitSuffix).append("\">\n")
+				.append("     <SegmentTimeline>\n");
+		int count = timeline.starts.length;
+		int s = 0;
+		while(s<count) {
+			int repeat = 0;
+			while(s+repeat+1<count && timeline.durations[s+repeat+1]==timeline.durations[s]
+					&& timeline.starts[s+repeat+1]==timeline.starts[s+repeat]+timeline.durations[s])
+				repeat++;
+			representations.append("      <S");
+			if(s==0 || timeline.starts[s]!=timeline.starts[s-1]+timeline.durations[s-1])
+				representations.append(" t=\"").append(timeline.starts[s]).append("\"");
+			representations.append(" d=\"").append(timeline.durations[s]).append("\"");
+			if(repeat>0)
+				representations.append(" r=\"").append(repeat).append("\"");
+			representations.append("/>\n");
+			s += repeat+1;
+		}
+		representations.append("     </SegmentTimeline>\n")
+				.append("    </SegmentTemplate>\n");
+		
+		//The segments of the adaptation set are aligned if they start at the same times in all the representations
+		long[] starts = new long[count];
+		for(int i=0; i<count; i++) {
+			starts[i] = Math.round(timeline.starts[i]*1000.0/timeline.timescale);
+			maxSegmentDuration = Math.max(maxSegmentDuration, (double) timeline.durations[i]/timeline.timescale);
+		}
+		if(boundaries==null)
+			boundaries = starts;
+		else if(!Arrays.equals(boundaries, starts))
+			aligned = false;
+	}
+	
+	/**
+	 * Writes the manifest: it is written in a temporary file first, so that an existing
+	 * manifest is replaced only by a complete one
+	 * @param name Name of the manifest inside the directory
+	 * @throws IOException
+	 */
+	public void write(String name) throws IOException {
+		closeAdaptationSet();
+		String time = String.format(Locale.US, "PT%.3fS", duration);
+		//Without any segment, the segment duration is the best guess
+		String segmentTime = String.format(Locale.US, "PT%.3fS", maxSegmentDuration>0 ? maxSegmentDuration : segment/1000.0);
+		File manifest = new File(directory, name);
+		File partial = new File(directory, name+".part");
+		PrintStream writer = new PrintStream(partial, "UTF-8");
+		writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+		writer.println("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\" profiles=\""+K.dashProfile+"\""
+				+" minBufferTime=\""+segmentTime+"\" maxSegmentDuration=\""+segmentTime+"\""
+				+" mediaPresentationDuration=\""+time+"\">");
+		writer.println(" <Period duration=\""+time+"\">");
+		writer.print(adaptationSets);
+		writer.println(" </Period>");
+		writer.println("</MPD>");
+		writer.close();
+		if(!partial.renameTo(manifest))
+			throw new IOException("Unable to write the manifest "+manifest.getPath()+"!");
+	}
+	
+	private void closeAdaptationSet() {
+		if(adaptationSet!=null)
+			adaptationSets.append("  <AdaptationSet segmentAlignment=\"").append(aligned).append("\"").append(adaptationSet)
+					.append(representations).append("  </AdaptationSet>\n");
+		adaptationSet = null;
+	}
+	
+	/**
+	 * Percent-encodes the name of a segmented file (as UTF-8) to be used as representation id: the id then
+	 * contains no whitespace, and the URLs built with $RepresentationID$ resolve to the files named after it
+	 * @param id Name of the segmented file without extension
+	 * @return Representation id made only of unreserved URL characters and percent-encoded octets
+	 */
+	private static String encodeId(String id) {
+		StringBuilder encoded = new StringBuilder();
+		for(byte b : id.getBytes(StandardCharsets.UTF_8)) {
+			char c = (char) (b & 0xFF);
+			if((c>='A' && c<='Z') || (c>='a' && c<='z') || (c>='0' && c<='9') || c=='-' || c=='.' || c=='_' || c=='~')
+				encoded.append(c);
+			else
+				encoded.append(String.format("%%%02X", b & 0xFF));
+		}
+		return encoded.toString();
+	}
+	
+	/**
+	 * Escapes the characters that cannot appear as such in an XML attribute value
+	 * @param value Attribute value
+	 * @return Escaped value
+	 */
+	private static String escape(String value) {
+		return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;").replace("'", "&apos;");
+	}
+	
+	/**
+	 * Reads the codecs of a representation from its initialization segment
+	 * @param id Representation identifier
+	 * @return RFC 6381 codecs string
+	 * @throws IOException
+	 */
+	private String codecs(String id) throws IOException {
+		File init = new File(directory, id+K.dashInitSuffix);
+		if(!init.exists())
+			throw new IOException("Missing initialization segment "+init.getPath()+"!");
+		String codecs = IsoBmff.codecs(init);
+		if(codecs==null)
+			throw new IOException("Unable to read the codecs of "+init.getPath()+"!");
+		return codecs;
+	}
+	
+	/**
+	 * Reads the start time, the duration and the size of the segments of a representation: the timescale and
+	 * the default sample duration come from the initialization segment, the times from the moof boxes of the
+	 * segments (only the headers of the mdat boxes are read)
+	 * @param id Representation identifier
+	 * @return Segments of the representation
+	 * @throws IOException if the initialization segment or the segments are missing
+	 */
+	private Timeline timeline(String id) throws IOException {
+		File init = new File(directory, id+K.dashInitSuffix);
+		if(!init.exists())
+			throw new IOException("Missing initialization segment "+init.getPath()+"!");
+		ByteBuffer moov = IsoBmff.map(init);
+		long mdhd = IsoBmff.find(moov, "moov", "trak", "mdia", "mdhd");
+		if(mdhd<0)
+			throw new IOException("Unable to read the timescale of "+init.getPath()+"!");
+		long timescale = moov.getInt((int) mdhd+12+(moov.get((int) mdhd+8)==1 ? 16 : 8)) & 0xFFFFFFFFL;
+		long trex = IsoBmff.find(moov, "moov", "mvex", "trex");
+		long defaultDuration = trex>=0 ? moov.getInt((int) trex+20) & 0xFFFFFFFFL : 0;
+		
+		ArrayList<long[]> segments = new ArrayList<>(); //Start time, duration and size of each segment
+		long time = 0;
+		int number = 1;
+		File media;
+		while((media = new File(directory, id+"_"+number+K.dashSegmentExtension)).exists()) {
+			long start = -1;
+			long end = time;
+			RandomAccessFile file = new RandomAccessFile(media, "r");
+			try {
+				long length = file.length();
+				long offset = 0;
+				byte[] header = new byte[16];
+				while(offset+8<=length) {
+					file.seek(offset);
+					file.readFully(header, 0, (int) Math.min(16, length-offset));
+					ByteBuffer box = ByteBuffer.wrap(header);
+					long size = IsoBmff.size(box, 0, length-offset);
+					if(size<8)
+						break;
+					if(IsoBmff.type(box, 0).equals("moof") && size<=Integer.MAX_VALUE) {
+						ByteBuffer moof = ByteBuffer.allocate((int) size);
+						file.seek(offset);
+						file.readFully(moof.array());
+						long decodeTime = IsoBmff.decodeTime(moof, 0);
+						if(decodeTime>=0)
+							end = decodeTime;
+						if(start<0)
+							start = end;
+						end += IsoBmff.fragmentDuration(moof, 0, defaultDuration);
+					}
+					offset += size;
+				}
+			} finally {
+				file.close();
+			}
+			if(start<0)
+				throw new IOException("Unable to read the fragments of "+media.getPath()+"!");
+			segments.add(new long[] {start, end-start, media.length()});
+			time = end;
+			number++;
+		}
+		if(segments.isEmpty())
+			throw new IOException("Missing segments of "+id+" in "+directory+"!");
+		
+		Timeline timeline = new Timeline();
+		timeline.timescale = timescale;
+		timeline.starts = new long[segments.size()];
+		timeline.durations = new long[segments.size()];
+		timeline.sizes = new long[segments.size()];
+		for(int s=0; s<segments.size(); s++) {
+			timeline.starts[s] = segments.get(s)[0];
+			timeline.durations[s] = segments.get(s)[1];
+			timeline.sizes[s] = segments.get(s)[2];
+		}
+		return timeline;
+	}
+	
+	/**
+	 * Segments of a representation, in the timescale of its track
+	 */
+	private class Timeline {
+		long timescale;
+		long[] starts;
+		long[] durations;
+		long[] sizes; //Bytes
+		
+		/**
+		 * Computes the bandwidth as the peak bitrate among the segments. A segment shorter than the segment
+		 * duration (e.g. the last one) is assumed to last the segment duration, so that a few bytes
+		 * don't look like a high bitrate.
+		 * @return Bandwidth in bits per second
+		 */
+		long bandwidth() {
+			double peak = 0;
+			for(int s=0; s<sizes.length; s++) {
+				double seconds = Math.max((double) durations[s]/timescale, segment/1000.0);
+				peak = Math.max(peak, sizes[s]*8/seconds);
+			}
+			return (long) Math.ceil(peak);
+		}
+	}
+}
@@ -16,31 +16,155 @@
 package preprocessing;
 
 import java.io.IOException;
-
-import javax.xml.parsers.ParserConfigurationException;
+import java.util.HashSet;
+import java.util.concurrent.CompletionException;
 
 import org.xml.sax.SAXException;
 
 public class Preprocess {
 	public static void main(String[] args) {
 		
-		for(String arg : args) {
-			Worklist worklist;
+		//Pool in which the ffmpeg processes of all the videos are executed
+		JobPool jobPool = new JobPool(JobPool.defaultSize(), JobPool.defaultMemoryBudget(), JobPool.defaultThreadBudget());
+		
+		//Distributed mode: the jobs are given to remote workers
+		String coordinatorPort = System.getProperty(K.coordinatorProperty);
+		if(coordinatorPort!=null) {
+			try {
+				jobPool.setCoordinator(new Coordinator(Integer.parseInt(coordinatorPort)));
+				System.out.println("Waiting for workers on port "+coordinatorPort);
+			} catch (IOException e) {
+				System.err.println("Unable to start the coordinator: "+e.getMessage());
+				jobPool.shutdown();
+				return;
+			}
+		}
+		
+		//Model estimating the cost of the jobs, refined with the history of the jobs executed on this machine
+		jobPool.setCostModel(new CostModel(CostModel.defaultFile()));
+		
+		//Crop mode used in the tiling phase
+		String cropMode = System.getProperty(K.cropModeProperty, K.cropModeSeparate);
+		if(!cropMode.equals(K.cropModeSeparate) && !cropMode.equals(K.cropModeFused) && !cropMode.equals(K.cropModeDirect)) {
+			System.err.println("Unknown crop mode '"+cropMode+"'!");
+			jobPool.shutdown();
+			return;
+		}
+		
+		//Tool segmenting the videos
+		String segmenter = System.getProperty(K.segmenterProperty, K.segmenterBuiltin);
+		if(!segmenter.equals(K.segmenterBuiltin) && !segmenter.equals(K.segmenterMP4Box)) {
+			System.err.println("Unknown segmenter '"+segmenter+"'!");
+			jobPool.shutdown();
+			return;
+		}
+		
+		//Streaming the encoded videos to the segmenter instead of storing them in the temp folder
+		boolean stream = Boolean.getBoolean(K.streamProperty);
+		if(stream && segmenter.equals(K.segmenterMP4Box)) {
+			System.err.println("The encoded videos cannot be streamed to MP4Box!");
+			jobPool.shutdown();
+			return;
+		}
+		
+		//Duration of the chunks encoded in parallel (0 if a video is encoded by a single process)
+		double chunkDuration = Double.parseDouble(System.getProperty(K.chunkProperty, "0"));
+		
+		//Storage of the intermediate files: RAM disk staging, disk budget and cleanup
+		TempStorage tempStorage;
+		try {
+			tempStorage = TempStorage.fromProperties();
+		} catch (IOException | IllegalArgumentException e) {
+			System.err.println("Unable to set the temporary storage: "+e.getMessage());
+			jobPool.shutdown();
+			return;
+		}
+		jobPool.setTempStorage(tempStorage);
+		
+		//Metrics of the jobs, optionally written in a Prometheus text file
+		Metrics.start(System.getProperty(K.metricsProperty));
+		
+		System.out.println("Start processing ("+jobPool.getSize()+" parallel jobs, "+jobPool.getMemoryBudget()+"MB memory budget, "
+				+jobPool.getThreadBudget()+" encoder threads"+tempStorage.describe()+"):");
+		
+		//The videos are planned as soon as they are read and their jobs are queued in the shared pool:
+		//the jobs are held back until enough videos are planned to fill the pool, so that the threads are shared
+		//among them, then launched while the next videos (e.g. of a large catalogue) are read
+		//The pool is shut down whatever happens, otherwise its threads would keep the JVM alive
+		try {
+			Planner planner = new Planner(jobPool, cropMode, chunkDuration, segmenter, stream);
+			jobPool.hold();
+			for(String arg : args) {
+				try {
+					new XmlParser(arg).parse(planner);
+				} catch (SAXException | IOException e) {
+					System.err.println("Process failed with file "+arg+": "+e.getMessage());
+				} catch (RuntimeException e) {
+					//An unexpected error in a file doesn't stop the next files
+					System.err.println("Process failed with file "+arg+": "+e);
+				}
+			}
+			jobPool.open();
 			
+			//Waiting for all the files: each one is reported as soon as it terminates, a failure doesn't stop the other files
+			try {
+				planner.waitCompletion();
+			} catch (InterruptedException e) {
+				System.err.println("Process interrupted: "+e.getMessage());
+			}
+		} finally {
+			Metrics.stop();
+			jobPool.shutdown();
+		}
+	}
+	
+	/**
+	 * Plans each video given by the XML parser, queueing all the jobs needed to process it in the job pool:
+	 * each job is launched as soon as the jobs it depends on are terminated.
+	 */
+	private static class Planner implements XmlParser.VideoHandler {
+		
+		private JobPool jobPool;
+		private String cropMode;
+		private double chunkDuration;
+		private String segmenter;
+		private boolean stream;
+		//Worklists whose jobs have been queued and are not terminated yet
+		private HashSet<Worklist> worklists = new HashSet<>();
+		private int planned; //Videos whose jobs have been queued
+		
+		/**
+		 * @param jobPool Pool in which the jobs are queued
+		 * @param cropMode Crop mode used in the tiling phase
+		 * @param chunkDuration Duration in seconds of the chunks encoded in parallel
+		 * @param segmenter Tool segmenting the videos
+		 * @param stream True if the encoded videos are streamed to the segmenter
+		 */
+		Planner(JobPool jobPool, String cropMode, double chunkDuration, String segmenter, boolean stream) {
+			this.jobPool = jobPool;
+			this.cropMode = cropMode;
+			this.chunkDuration = chunkDuration;
+			this.segmenter = segmenter;
+			this.stream = stream;
+		}
+		
+		@Override
+		public void video(String name, Worklist worklist) {
 			try {
-				//Building the parser object
-				XmlParser xmlParser = new XmlParser(arg);
-				
 				//Starting process
-				System.out.println("Process Started with file "+arg+"...");
+				System.out.println("Process Started with file "+name+"...");
+				
+				//The jobs of the video are held back until all of them are queued, so that the jobs reading
+				//each intermediate file are known before it is produced
+				jobPool.hold();
+				
+				worklist.setJobPool(jobPool);
+				worklist.setCropMode(cropMode);
+				worklist.setChunkDuration(chunkDuration);
+				worklist.setSegmenter(segmenter);
+				worklist.setStream(stream);
 				
-				//Parsing the file
-				System.out.print("Parsing the XML file...");
-				worklist = xmlParser.parseXml();
-				System.out.println(" completed!");
-			
 				//Preliminary actions
-				System.out.print("Preliminary actions...");
 				
 				//Checking if the video file exists
 				worklist.videoExists();
@@ -48,36 +172,71 @@ public class Preprocess {
 				//Checking if the output folder exists
 				worklist.outputDirectory();
 				
-				//Acquiring video dimensions
-				worklist.videoDimensions();
-				System.out.println(" completed!");
+				//Acquiring video dimensions, duration, keyframes and audio codec
+				worklist.probe();
+				
+				//Checking that the tiles cover the blocks of the encoder, before queueing any job
+				worklist.checkTiling();
 				
-				//PHASE 1 - Audio Extraction
-				System.out.print("Start audio extraction:");
+				//Audio extraction (overlapping all the video jobs)
 				worklist.extractAudio();
-				System.out.println(" complete!");
 				
-				//PHASE 2 - Transcoding videos
-				System.out.println("Start transcoding:");
+				//Transcoding videos
 				worklist.transcode();
-				System.out.println("Transcoding complete!");
 				
-				//PHASE 3 - Cropping videos
-				System.out.println("Start cropping:");
+				//Cropping videos (each version as soon as it is transcoded)
 				worklist.tile();
-				System.out.println("Cropping complete!");
 				
-				//PHASE 4 - Segmenting videos
-				System.out.println("Start Segmenting:");
+				//Segmenting videos (once all the tiles are available)
 				worklist.segment();
-				System.out.println("Segmenting complete!");
 				
-				System.out.println("Process completed with file "+args+"!");
+				synchronized (this) {
+					worklists.add(worklist);
+				}
+				worklist.getCompletion().whenComplete((v, e) -> completed(name, worklist, e));
+				if(++planned>=jobPool.getSize())
+					jobPool.open();
 				
-			} catch (ParserConfigurationException | SAXException | InterruptedException | IOException e) {
-				System.err.println(e.getMessage());
+			} catch (InterruptedException | IOException e) {
+				//The jobs already queued for the video are not launched
+				worklist.cancel();
+				System.err.println("Process failed with file "+name+": "+e.getMessage());
+			} catch (RuntimeException e) {
+				//Unexpected error (e.g. an invalid value): the next videos are still planned
+				worklist.cancel();
+				System.err.println("Process failed with file "+name+": "+e);
 			}
 		}
-			
+		
+		/**
+		 * Reports the termination of the jobs of a video and forgets its worklist
+		 * @param name Name of the video
+		 * @param worklist Worklist of the video
+		 * @param failure Exception making a job fail (null if the video has been processed)
+		 */
+		private synchronized void completed(String name, Worklist worklist, Throwable failure) {
+			if(failure==null) {
+				System.out.println("Process completed with file "+name+"!");
+			} else {
+				Throwable cause = failure instanceof CompletionException && failure.getCause()!=null ? failure.getCause() : failure;
+				System.err.println("Process failed with file "+name+": "+cause.getMessage());
+			}
+			worklists.remove(worklist);
+			notifyAll();
+		}
+		
+		/**
+		 * Waits for the termination of the jobs of all the planned videos
+		 * @throws InterruptedException
+		 */
+		synchronized void waitCompletion() throws InterruptedException {
+			while(!worklists.isEmpty())
+				wait();
+		}
+		
+		@Override
+		public void invalid(String name, SAXException e) {
+			System.err.println("Process failed with file "+name+": "+e.getMessage());
+		}
 	}
 }
@@ -0,0 +1,42 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.util.List;
+
+/**
+ * Outcome of an external command launched by the ProcessRunner.
+ */
+public class ProcessResult {
+	
+	public final List<String> arguments; //Command and its arguments
+	public final int exitValue; //Exit value of the process
+	public final long startTime; //Launch time in milliseconds since the epoch
+	public final long duration; //Wall-clock duration in milliseconds
+	public final String errorTail; //Last lines written by the process on its standard error
+	
+	public ProcessResult(List<String> arguments, int exitValue, long startTime, long duration, String errorTail) {
+		this.arguments = arguments;
+		this.exitValue = exitValue;
+		this.startTime = startTime;
+		this.duration = duration;
+		this.errorTail = errorTail;
+	}
+	
+	public boolean succeeded() {
+		return exitValue==0;
+	}
+}
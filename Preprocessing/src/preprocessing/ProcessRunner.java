@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Class of utilities to launch external commands.
+ * A command is a string whose arguments are separated by whitespaces; an argument containing whitespaces
+ * or special characters is enclosed in single quotes, as in a POSIX shell (see quote()), so that the same
+ * command can be launched directly or written in a shell script.
+ * The standard error of a process is redirected to a file instead of being drained by a thread, and
+ * a single daemon thread polls all the running processes to complete their futures: running hundreds
+ * of processes doesn't need hundreds of threads. The futures are completed by that thread, so the actions
+ * attached to them should be asynchronous (or the futures simply waited for).
+ */
+public abstract class ProcessRunner {
+	
+	//Processes waiting to be reaped
+	private static final ArrayList<RunningProcess> running = new ArrayList<>();
+	private static Thread reaper;
+	
+	/**
+	 * Launches a command
+	 * @param command Command whose arguments are quoted as in a POSIX shell
+	 * @param output File receiving the standard output (null to put it in the error file)
+	 * @param errors File receiving the standard error (null for a temporary file deleted once the process terminates)
+	 * @return Future completed once the process terminates
+	 */
+	public static CompletableFuture<ProcessResult> run(String command, File output, File errors) {
+		return run(split(command), output, errors);
+	}
+	
+	/**
+	 * Launches a command
+	 * @param arguments Command and its arguments
+	 * @param output File receiving the standard output (null to put it in the error file)
+	 * @param errors File receiving the standard error (null for a temporary file deleted once the process terminates)
+	 * @return Future completed once the process terminates
+	 */
+	public static CompletableFuture<ProcessResult> run(List<String> arguments, File output, File errors) {
+		CompletableFuture<ProcessResult> future = new CompletableFuture<>();
+		try {
+			RunningProcess runningProcess = new RunningProcess();
+			runningProcess.arguments = arguments;
+			runningProcess.future = future;
+			runningProcess.temporary = errors==null;
+			runningProcess.errors = errors!=null ? errors : File.createTempFile("process", ".log");
+			ProcessBuilder builder = new ProcessBuilder(arguments);
+			if(output!=null) {
+				builder.redirectOutput(output);
+				builder.redirectError(runningProcess.errors);
+			} else {
+				builder.redirectOutput(runningProcess.errors);
+				builder.redirectErrorStream(true);
+			}
+			runningProcess.startTime = System.currentTimeMillis();
+			runningProcess.start = System.nanoTime();
+			try {
+				runningProcess.process = builder.start();
+			} catch (IOException e) {
+				if(runningProcess.temporary)
+					runningProcess.errors.delete();
+				throw e;
+			}
+			//Nothing is written to the process: ffmpeg would otherwise wait for commands on its standard input
+			runningProcess.process.getOutputStream().close();
+			synchronized (running) {
+				running.add(runningProcess);
+				if(reaper==null) {
+					reaper = new Thread(ProcessRunner::reap, "ProcessRunner");
+					reaper.setDaemon(true);
+					reaper.start();
+				}
+				running.notify();
+			}
+		} catch (IOException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+	
+	/**
+	 * Polls the running processes, completing the future of each terminated process
+	 */
+	private static void reap() {
+		ArrayList<RunningProcess> terminated = new ArrayList<>();
+		while(true) {
+			synchronized (running) {
+				while(running.isEmpty()) {
+					try {
+						running.wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				Iterator<RunningProcess> iterator = running.iterator();
+				while(iterator.hasNext()) {
+					RunningProcess runningProcess = iterator.next();
+					if(!runningProcess.process.isAlive()) {
+						iterator.remove();
+						terminated.add(runningProcess);
+					}
+				}
+			}
+			for(RunningProcess runningProcess : terminated) {
+				long duration = (System.nanoTime()-runningProcess.start)/1000000;
+				String errorTail = tail(runningProcess.errors);
+				if(runningProcess.temporary)
+					runningProcess.errors.delete();
+				runningProcess.future.complete(new ProcessResult(runningProcess.arguments,
+						runningProcess.process.exitValue(), runningProcess.startTime, duration, errorTail));
+			}
+			terminated.clear();
+			try {
+				Thread.sleep(K.processPoll);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Reads the last lines of a file
+	 * @param file File to be read
+	 * @return At most K.processTail bytes, starting at the beginning of a line
+	 */
+	private static String tail(File file) {
+		try {
+			RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+			try {
+				long length = randomAccessFile.length();
+				byte[] content = new byte[(int) Math.min(length, K.processTail)];
+				randomAccessFile.seek(length-content.length);
+				randomAccessFile.readFully(content);
+				String tail = new String(content, StandardCharsets.UTF_8);
+				if(content.length<length && tail.indexOf('\n')>=0)
+					tail = tail.substring(tail.indexOf('\n')+1);
+				return tail.trim();
+			} finally {
+				randomAccessFile.close();
+			}
+		} catch (IOException e) {
+			return "";
+		}
+	}
+	
+	/**
+	 * Quotes an argument, if needed, so that it is kept as a single argument by split() and by a POSIX shell
+	 * @param argument Argument to be quoted
+	 * @return The argument, enclosed in single quotes if it contains characters other than letters, digits and _./:=+,@%-
+	 */
+	public static String quote(String argument) {
+		if(argument.matches("[A-Za-z0-9_./:=+,@%-]+"))
+			return argument;
+		return "'"+argument.replace("'", "'\\''")+"'";
+	}
+	
+	/**
+	 * Quotes all the arguments of a command, so that a POSIX shell doesn't interpret the characters
+	 * that are not special for split() (e.g. ; and [ of the ffmpeg filter graphs)
+	 * @param command Command whose arguments are quoted as in a POSIX shell
+	 * @return Command to be written in a shell script
+	 */
+	public static String shellCommand(String command) {
+		String quoted = "";
+		for(String argument : split(command)) {
+			quoted += (quoted.isEmpty() ? "" : " ")+quote(argument);
+		}
+		return quoted;
+	}
+	
+	/**
+	 * Splits a command in its arguments: the arguments are separated by whitespaces, single quotes
+	 * enclose characters taken literally and a backslash outside quotes escapes the next character
+	 * @param command Command to be split
+	 * @return Command and its arguments
+	 */
+	public static List<String> split(String command) {
+		ArrayList<String> arguments = new ArrayList<>();
+		StringBuilder argument = new StringBuilder();
+		boolean inArgument = false;
+		boolean quoted = false;
+		for(int i=0; i<command.length(); i++) {
+			char c = command.charAt(i);
+			if(quoted) {
+				if(c=='\'')
+					quoted = false;
+				else
+					argument.append(c);
+			} else if(c=='\'') {
+				quoted = true;
+				inArgument = true;
+			} else if(c=='\\' && i+1<command.length()) {
+				argument.append(command.charAt(++i));
+				inArgument = true;
+			} else if(Character.isWhitespace(c)) {
+				if(inArgument)
+					arguments.add(argument.toString());
+				argument.setLength(0);
+				inArgument = false;
+			} else {
+				argument.append(c);
+				inArgument = true;
+			}
+		}
+		if(inArgument)
+			arguments.add(argument.toString());
+		return arguments;
+	}
+	
+	private static class RunningProcess {
+		List<String> arguments;
+		Process process;
+		CompletableFuture<ProcessResult> future;
+		File errors;
+		boolean temporary;
+		long startTime;
+		long start;
+	}
+}
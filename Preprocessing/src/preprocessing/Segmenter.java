@@ -0,0 +1,570 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * Segments MP4 files in DASH segments without external tools.
+ * The moov box of each file is mapped in memory to read the sample tables of the requested track,
+ * then an initialization segment without samples and one fragment (moof+mdat) for each segment are written.
+ * A segment starts on a random access point once the segment duration is reached; the samples are
+ * copied from the file to the segments with FileChannel.transferTo, without passing through the heap.
+ * The segments thus follow the keyframes of the file: segments longer than the segment duration by more
+ * than a sample are reported, the keyframes having to be forced on the segment boundaries when encoding.
+ * The files are named as MP4Box does with -segment-name %s_: name_init.mp4 and name_N.m4s.
+ * A fragmented MP4 stream (e.g. written by ffmpeg to a named pipe) can also be segmented while it is
+ * being written: its fragments are grouped in segments without being stored whole on disk.
+ */
+public class Segmenter {
+	
+	//Sample flags of the fragments: sync samples depend on no other sample
+	private static final int syncSampleFlags = 0x02000000;
+	private static final int nonSyncSampleFlags = 0x01010000;
+	
+	private int segment;
+	private String directory;
+	
+	/**
+	 * @param segment Segment duration in milliseconds
+	 * @param directory Directory in which the segments are written
+	 */
+	public Segmenter(int segment, String directory) {
+		this.segment = segment;
+		this.directory = directory;
+	}
+	
+	/**
+	 * Segments the files given on the command line
+	 * @param args Segment duration in milliseconds, output directory and the files to be segmented,
+	 * each optionally followed by #video or #audio to choose the track (as with MP4Box).
+	 * With -stream as first argument, the files are fragmented MP4 streams read sequentially.
+	 */
+	public static void main(String[] args) {
+		boolean stream = args.length>0 && args[0].equals("-stream");
+		int first = stream ? 1 : 0;
+		if(args.length<first+3) {
+			System.err.println("Usage: java preprocessing.Segmenter [-stream] segment_duration output_directory file[#video|#audio]...");
+			System.exit(2);
+		}
+		Segmenter segmenter = new Segmenter(Integer.parseInt(args[first]), args[first+1]);
+		try {
+			for(int i=first+2; i<args.length; i++) {
+				if(stream)
+					segmenter.segmentStream(args[i]);
+				else
+					segmenter.segment(args[i]);
+			}
+		} catch (IOException e) {
+			System.err.println("Segmentation failed: "+e.getMessage());
+			System.exit(1);
+		}
+	}
+	
+	/**
+	 * Segments a file
+	 * @param input Path of the file, optionally followed by #video or #audio
+	 * @throws IOException
+	 */
+	public void segment(String input) throws IOException {
+		String path = input;
+		String handler = null;
+		int selector = input.lastIndexOf('#');
+		if(selector>=0) {
+			path = input.substring(0, selector);
+			handler = input.substring(selector+1).startsWith("audio") ? "soun" : "vide";
+		}
+		String id = new File(path).getName().replaceFirst("[.][^.]+$", "");
+		
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			MappedByteBuffer moov = IsoBmff.map(channel, "moov");
+			if(moov==null)
+				throw new IOException("Missing moov box in "+path+"!");
+			long trak = findTrack(moov, handler);
+			if(trak<0)
+				throw new IOException("Missing "+(handler!=null ? input.substring(selector+1)+" " : "")+"track in "+path+"!");
+			Track track = new Track(moov, trak);
+			if(track.sizes.length==0)
+				throw new IOException("No samples in "+path+" (fragmented files are not supported)!");
+			writeInit(moov, trak, track, id);
+			writeSegments(channel, track, id);
+		} finally {
+			file.close();
+		}
+	}
+	
+	/**
+	 * Segments a fragmented MP4 stream containing a single track, as written by ffmpeg with
+	 * -movflags empty_moov+default_base_moof+frag_keyframe: the moov box already describes the fragments
+	 * and each fragment starts on a random access point. The fragments are copied unchanged, their data
+	 * offsets being relative to their moof box; a new segment starts with the first fragment after the
+	 * segment boundary.
+	 * @param path Path of the stream
+	 * @throws IOException
+	 */
+	public void segmentStream(String path) throws IOException {
+		String id = new File(path).getName().replaceFirst("[.][^.]+$", "");
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(path), K.streamBuffer));
+		FileOutputStream output = null;
+		try {
+			byte[] ftyp = null;
+			ByteBuffer moov = null;
+			long timescale = 0;
+			long segmentDuration = 0;
+			long defaultDuration = 0;
+			long time = 0;
+			long segmentStart = 0;
+			long longest = 0;
+			long longestSample = 0;
+			int number = 0;
+			byte[] buffer = new byte[K.streamBuffer];
+			while(true) {
+				long size;
+				try {
+					size = input.readInt() & 0xFFFFFFFFL;
+				} catch (EOFException e) {
+					break;
+				}
+				String type = new String(new byte[] {input.readByte(), input.readByte(), input.readByte(), input.readByte()}, "ISO-8859-1");
+				int header = 8;
+				if(size==1) {
+					size = input.readLong();
+					header = 16;
+				}
+				
+				if(type.equals("mdat") && output!=null) {
+					//Copying the samples to the current segment
+					output.write(IsoBmff.int32(header==16 ? 1 : size));
+					output.write(IsoBmff.fourcc(type));
+					if(header==16)
+						output.write(IsoBmff.int64(size));
+					long remaining = size-header;
+					while(remaining>0) {
+						int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+						if(read<0)
+							throw new IOException("Truncated stream "+path+"!");
+						output.write(buffer, 0, read);
+						remaining -= read;
+					}
+					continue;
+				}
+				if(size==0 || size-header>Integer.MAX_VALUE)
+					throw new IOException("Unsupported "+type+" box in "+path+"!");
+				
+				//Reading the whole box
+				byte[] box = new byte[(int) size];
+				ByteBuffer.wrap(box).putInt(header==16 ? 1 : (int) size).put(IsoBmff.fourcc(type));
+				if(header==16)
+					ByteBuffer.wrap(box, 8, 8).putLong(size);
+				input.readFully(box, header, box.length-header);
+				
+				if(type.equals("ftyp")) {
+					ftyp = box;
+				} else if(type.equals("moov")) {
+					moov = ByteBuffer.wrap(box);
+					long trak = findTrack(moov, null);
+					if(trak<0)
+						throw new IOException("Missing track in "+path+"!");
+					long mdhd = IsoBmff.child(moov, trak, "mdia", "mdhd");
+					timescale = moov.getInt((int) mdhd+12+(moov.get((int) mdhd+8)==1 ? 16 : 8)) & 0xFFFFFFFFL;
+					segmentDuration = (long) segment*timescale/1000;
+					long trex = IsoBmff.child(moov, 0, "mvex", "trex");
+					if(trex>=0)
+						defaultDuration = moov.getInt((int) trex+20) & 0xFFFFFFFFL;
+					FileOutputStream init = new FileOutputStream(new File(directory, id+K.dashInitSuffix));
+					try {
+						if(ftyp!=null)
+							init.write(ftyp);
+						init.write(box);
+					} finally {
+						init.close();
+					}
+				} else if(type.equals("moof")) {
+					if(moov==null)
+						throw new IOException("Fragment before the moov box in "+path+"!");
+					ByteBuffer moof = ByteBuffer.wrap(box);
+					long decodeTime = IsoBmff.decodeTime(moof, 0);
+					if(decodeTime>=0)
+						time = decodeTime;
+					//The fragment starts on a random access point: starting a new segment if the boundary is reached
+					if(output==null || time>=number*segmentDuration) {
+						if(output!=null) {
+							output.close();
+							longest = Math.max(longest, time-segmentStart);
+						}
+						segmentStart = time;
+						number++;
+						output = new FileOutputStream(new File(directory, id+"_"+number+K.dashSegmentExtension));
+						output.write(IsoBmff.box("styp", IsoBmff.fourcc("msdh"), IsoBmff.int32(0),
+								IsoBmff.fourcc("msdh"), IsoBmff.fourcc("msix")));
+					}
+					output.write(box);
+					long fragmentDuration = IsoBmff.fragmentDuration(moof, 0, defaultDuration);
+					long trun = IsoBmff.child(moof, 0, "traf", "trun");
+					long sampleCount = trun>=0 ? moof.getInt((int) trun+12) & 0xFFFFFFFFL : 0;
+					if(sampleCount>0)
+						longestSample = Math.max(longestSample, (fragmentDuration+sampleCount-1)/sampleCount);
+					time += fragmentDuration;
+				}
+				//Other boxes (free, sidx, mfra) are not copied
+			}
+			if(moov==null)
+				throw new IOException("Missing moov box in "+path+"!");
+			checkDuration(id, Math.max(longest, time-segmentStart), longestSample, timescale);
+		} finally {
+			if(output!=null)
+				output.close();
+			input.close();
+		}
+	}
+	
+	/**
+	 * Looks for the first track with the given handler
+	 * @param moov Buffer containing the moov box
+	 * @param handler Handler type (vide or soun) or null for the first track
+	 * @return Position of the trak box or -1 if not found
+	 */
+	private long findTrack(ByteBuffer moov, String handler) {
+		long end = IsoBmff.size(moov, 0, moov.limit());
+		long trak = IsoBmff.find(moov, IsoBmff.headerSize(moov, 0), end, "trak");
+		while(trak>=0) {
+			long hdlr = IsoBmff.child(moov, trak, "mdia", "hdlr");
+			//Full box header and pre_defined field precede the handler type (read as the type of a box at hdlr+12)
+			if(handler==null || (hdlr>=0 && IsoBmff.type(moov, hdlr+12).equals(handler)))
+				return trak;
+			trak = IsoBmff.find(moov, trak+IsoBmff.size(moov, trak, end), end, "trak");
+		}
+		return -1;
+	}
+	
+	/**
+	 * Writes the initialization segment: the moov box restricted to the track, with empty
+	 * sample tables and a mvex box announcing the fragments
+	 * @param moov Buffer containing the moov box
+	 * @param trak Position of the trak box
+	 * @param track Track information
+	 * @param id Name of the segmented file
+	 * @throws IOException
+	 */
+	private void writeInit(ByteBuffer moov, long trak, Track track, String id) throws IOException {
+		long end = IsoBmff.size(moov, 0, moov.limit());
+		long mvhd = IsoBmff.find(moov, IsoBmff.headerSize(moov, 0), end, "mvhd");
+		if(mvhd<0)
+			throw new IOException("Missing mvhd box in "+id+"!");
+		byte[] ftyp = IsoBmff.box("ftyp", IsoBmff.fourcc("iso5"), IsoBmff.int32(0),
+				IsoBmff.fourcc("iso5"), IsoBmff.fourcc("iso6"), IsoBmff.fourcc("mp41"));
+		byte[] mvex = IsoBmff.box("mvex", IsoBmff.fullBox("trex", 0, 0, IsoBmff.int32(track.id),
+				IsoBmff.int32(1), IsoBmff.int32(0), IsoBmff.int32(0), IsoBmff.int32(0)));
+		byte[] init = IsoBmff.box("moov", IsoBmff.copy(moov, mvhd, end), rebuild(moov, trak, end), mvex);
+		
+		FileOutputStream output = new FileOutputStream(new File(directory, id+K.dashInitSuffix));
+		try {
+			output.write(ftyp);
+			output.write(init);
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Copies a box of the track replacing the sample tables with empty ones
+	 * @param moov Buffer containing the moov box
+	 * @param box Position of the box
+	 * @param end End of the parent box
+	 * @return Copied box
+	 */
+	private byte[] rebuild(ByteBuffer moov, long box, long end) {
+		String type = IsoBmff.type(moov, box);
+		long boxEnd = box+IsoBmff.size(moov, box, end);
+		if(type.equals("stbl")) {
+			long stsd = IsoBmff.child(moov, box, "stsd");
+			return IsoBmff.box("stbl", IsoBmff.copy(moov, stsd, boxEnd),
+					IsoBmff.fullBox("stts", 0, 0, IsoBmff.int32(0)),
+					IsoBmff.fullBox("stsc", 0, 0, IsoBmff.int32(0)),
+					IsoBmff.fullBox("stsz", 0, 0, IsoBmff.int32(0), IsoBmff.int32(0)),
+					IsoBmff.fullBox("stco", 0, 0, IsoBmff.int32(0)));
+		}
+		if(!type.equals("trak") && !type.equals("mdia") && !type.equals("minf"))
+			return IsoBmff.copy(moov, box, end);
+		ArrayList<byte[]> children = new ArrayList<>();
+		long child = box+IsoBmff.headerSize(moov, box);
+		while(child+8<=boxEnd) {
+			children.add(rebuild(moov, child, boxEnd));
+			child += IsoBmff.size(moov, child, boxEnd);
+		}
+		return IsoBmff.box(type, children.toArray(new byte[0][]));
+	}
+	
+	/**
+	 * Writes the media segments: each one is a moof box describing its samples and
+	 * a mdat box containing them
+	 * @param channel Channel of the segmented file
+	 * @param track Track information
+	 * @param id Name of the segmented file
+	 * @throws IOException
+	 */
+	private void writeSegments(FileChannel channel, Track track, String id) throws IOException {
+		long segmentDuration = (long) segment*track.timescale/1000;
+		int number = 1;
+		int first = 0;
+		long firstTime = 0;
+		long time = 0;
+		long longest = 0;
+		long longestSample = 0;
+		for(int s=0; s<track.sizes.length; s++) {
+			//A new segment starts on the first random access point after the segment boundary
+			if(s>first && track.isSync(s) && time>=number*segmentDuration) {
+				writeSegment(channel, track, id, number, first, s, firstTime);
+				longest = Math.max(longest, time-firstTime);
+				number++;
+				first = s;
+				firstTime = time;
+			}
+			time += track.durations[s];
+			longestSample = Math.max(longestSample, track.durations[s]);
+		}
+		writeSegment(channel, track, id, number, first, track.sizes.length, firstTime);
+		checkDuration(id, Math.max(longest, time-firstTime), longestSample, track.timescale);
+	}
+	
+	/**
+	 * Reports segments longer than the segment duration by more than a sample: the segments being cut on
+	 * keyframes, they then follow the keyframe interval of the encoder (the manifest still gives their actual durations)
+	 * @param id Name of the segmented file
+	 * @param longest Duration of the longest segment in the timescale of the track
+	 * @param longestSample Duration of the longest sample in the timescale of the track
+	 * @param timescale Timescale of the track
+	 */
+	private void checkDuration(String id, long longest, long longestSample, long timescale) {
+		if(timescale<=0 || longest<=(long) segment*timescale/1000+longestSample)
+			return;
+		System.err.println("Segments of "+id+" last up to "+longest*1000/timescale+" ms instead of "+segment
+				+" ms: the keyframes are not forced on the segment boundaries");
+	}
+	
+	/**
+	 * Writes a media segment
+	 * @param channel Channel of the segmented file
+	 * @param track Track information
+	 * @param id Name of the segmented file
+	 * @param number Segment number
+	 * @param first First sample of the segment
+	 * @param last Sample following the last one of the segment
+	 * @param decodeTime Decoding time of the first sample
+	 * @throws IOException
+	 */
+	private void writeSegment(FileChannel channel, Track track, String id, int number, int first, int last, long decodeTime) throws IOException {
+		long mdatSize = 8;
+		for(int s=first; s<last; s++) {
+			mdatSize += track.sizes[s];
+		}
+		boolean largeMdat = mdatSize>0xFFFFFFFFL;
+		if(largeMdat)
+			mdatSize += 8;
+		
+		//The data offset, relative to the moof box, depends on the size of the moof box itself
+		byte[] moof = moof(track, number, first, last, decodeTime, 0);
+		moof = moof(track, number, first, last, decodeTime, moof.length+(largeMdat ? 16 : 8));
+		byte[] styp = IsoBmff.box("styp", IsoBmff.fourcc("msdh"), IsoBmff.int32(0),
+				IsoBmff.fourcc("msdh"), IsoBmff.fourcc("msix"));
+		ByteBuffer mdatHeader = ByteBuffer.allocate(largeMdat ? 16 : 8);
+		mdatHeader.putInt(largeMdat ? 1 : (int) mdatSize).put(IsoBmff.fourcc("mdat"));
+		if(largeMdat)
+			mdatHeader.putLong(mdatSize);
+		mdatHeader.flip();
+		
+		FileOutputStream output = new FileOutputStream(new File(directory, id+"_"+number+K.dashSegmentExtension));
+		try {
+			FileChannel segmentChannel = output.getChannel();
+			write(segmentChannel, ByteBuffer.wrap(styp));
+			write(segmentChannel, ByteBuffer.wrap(moof));
+			write(segmentChannel, mdatHeader);
+			//Copying the samples, contiguous samples at once
+			int s = first;
+			while(s<last) {
+				long position = track.offsets[s];
+				long count = track.sizes[s];
+				s++;
+				while(s<last && track.offsets[s]==position+count) {
+					count += track.sizes[s];
+					s++;
+				}
+				while(count>0) {
+					long transferred = channel.transferTo(position, count, segmentChannel);
+					if(transferred<=0)
+						throw new IOException("Truncated file "+id+"!");
+					position += transferred;
+					count -= transferred;
+				}
+			}
+		} finally {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Builds the moof box of a segment
+	 * @param track Track information
+	 * @param number Segment number
+	 * @param first First sample of the segment
+	 * @param last Sample following the last one of the segment
+	 * @param decodeTime Decoding time of the first sample
+	 * @param dataOffset Position of the first sample relative to the moof box
+	 * @return moof box
+	 */
+	private byte[] moof(Track track, int number, int first, int last, long decodeTime, int dataOffset) {
+		boolean composition = track.compositionOffsets!=null;
+		ByteBuffer samples = ByteBuffer.allocate(8+(last-first)*(composition ? 16 : 12));
+		samples.putInt(last-first).putInt(dataOffset);
+		for(int s=first; s<last; s++) {
+			samples.putInt(track.durations[s]).putInt(track.sizes[s]).putInt(track.isSync(s) ? syncSampleFlags : nonSyncSampleFlags);
+			if(composition)
+				samples.putInt(track.compositionOffsets[s]);
+		}
+		//trun flags: data offset, sample duration, size, flags and composition time offset
+		int trunFlags = 0x000001|0x000100|0x000200|0x000400|(composition ? 0x000800 : 0);
+		return IsoBmff.box("moof",
+				IsoBmff.fullBox("mfhd", 0, 0, IsoBmff.int32(number)),
+				IsoBmff.box("traf",
+						//Default base is moof
+						IsoBmff.fullBox("tfhd", 0, 0x020000, IsoBmff.int32(track.id)),
+						IsoBmff.fullBox("tfdt", 1, 0, IsoBmff.int64(decodeTime)),
+						IsoBmff.fullBox("trun", composition ? 1 : 0, trunFlags, samples.array())));
+	}
+	
+	private void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+	
+	/**
+	 * Samples of a track read from its sample tables
+	 */
+	private static class Track {
+		long id;
+		long timescale;
+		long[] offsets;
+		int[] sizes;
+		int[] durations;
+		int[] compositionOffsets; //null if the composition times are the decoding times
+		boolean[] sync; //null if all the samples are sync samples
+		
+		Track(ByteBuffer moov, long trak) throws IOException {
+			long tkhd = IsoBmff.child(moov, trak, "tkhd");
+			long mdhd = IsoBmff.child(moov, trak, "mdia", "mdhd");
+			long stbl = IsoBmff.child(moov, trak, "mdia", "minf", "stbl");
+			if(tkhd<0 || mdhd<0 || stbl<0)
+				throw new IOException("Incomplete track!");
+			//Creation and modification times are 32 or 64 bits according to the box version
+			id = uint32(moov, tkhd+12+(moov.get((int) tkhd+8)==1 ? 16 : 8));
+			timescale = uint32(moov, mdhd+12+(moov.get((int) mdhd+8)==1 ? 16 : 8));
+			
+			//Sample sizes
+			long stsz = IsoBmff.child(moov, stbl, "stsz");
+			if(stsz<0)
+				throw new IOException("Missing stsz box!");
+			int sampleSize = (int) uint32(moov, stsz+12);
+			int sampleCount = (int) uint32(moov, stsz+16);
+			sizes = new int[sampleCount];
+			for(int s=0; s<sampleCount; s++) {
+				sizes[s] = sampleSize!=0 ? sampleSize : (int) uint32(moov, stsz+20+4L*s);
+			}
+			
+			//Sample durations
+			durations = new int[sampleCount];
+			long stts = IsoBmff.child(moov, stbl, "stts");
+			int s = 0;
+			for(long e=0, entries=uint32(moov, stts+12); e<entries; e++) {
+				long count = uint32(moov, stts+16+8*e);
+				int delta = (int) uint32(moov, stts+20+8*e);
+				for(long c=0; c<count && s<sampleCount; c++) {
+					durations[s++] = delta;
+				}
+			}
+			
+			//Composition offsets
+			long ctts = IsoBmff.child(moov, stbl, "ctts");
+			if(ctts>=0) {
+				compositionOffsets = new int[sampleCount];
+				s = 0;
+				for(long e=0, entries=uint32(moov, ctts+12); e<entries; e++) {
+					long count = uint32(moov, ctts+16+8*e);
+					int offset = moov.getInt((int) (ctts+20+8*e));
+					for(long c=0; c<count && s<sampleCount; c++) {
+						compositionOffsets[s++] = offset;
+					}
+				}
+			}
+			
+			//Sync samples (numbered from 1)
+			long stss = IsoBmff.child(moov, stbl, "stss");
+			if(stss>=0) {
+				sync = new boolean[sampleCount];
+				for(long e=0, entries=uint32(moov, stss+12); e<entries; e++) {
+					long sample = uint32(moov, stss+16+4*e);
+					if(sample>=1 && sample<=sampleCount)
+						sync[(int) sample-1] = true;
+				}
+			}
+			
+			//Sample offsets from the chunk offsets and the sample-to-chunk table
+			long stco = IsoBmff.child(moov, stbl, "stco");
+			long co64 = IsoBmff.child(moov, stbl, "co64");
+			long stsc = IsoBmff.child(moov, stbl, "stsc");
+			if((stco<0 && co64<0) || stsc<0)
+				throw new IOException("Missing chunk tables!");
+			long chunkTable = stco>=0 ? stco : co64;
+			long chunkCount = uint32(moov, chunkTable+12);
+			long stscEntries = uint32(moov, stsc+12);
+			offsets = new long[sampleCount];
+			s = 0;
+			for(long e=0; e<stscEntries; e++) {
+				long firstChunk = uint32(moov, stsc+16+12*e);
+				long samplesPerChunk = uint32(moov, stsc+20+12*e);
+				long lastChunk = e+1<stscEntries ? uint32(moov, stsc+16+12*(e+1)) : chunkCount+1;
+				for(long chunk=firstChunk; chunk<lastChunk; chunk++) {
+					long offset = stco>=0 ? uint32(moov, stco+16+4*(chunk-1)) : moov.getLong((int) (co64+16+8*(chunk-1)));
+					for(long c=0; c<samplesPerChunk && s<sampleCount; c++) {
+						offsets[s] = offset;
+						offset += sizes[s++];
+					}
+				}
+			}
+		}
+		
+		boolean isSync(int sample) {
+			return sync==null || sync[sample];
+		}
+		
+		private static long uint32(ByteBuffer buffer, long position) {
+			return buffer.getInt((int) position) & 0xFFFFFFFFL;
+		}
+	}
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage of the intermediate files of the jobs (the files they produce in the temporary directory
+ * in which their fingerprints are recorded: transcoded versions, tiles, chunks, audio).
+ * When a job is launched locally, its intermediate files can be staged on a RAM disk: each of them is written
+ * through a symbolic link left at its usual path, so that the commands and the fingerprints don't change.
+ * A file is staged only if its estimated size fits both the RAM budget and the space left on the RAM disk,
+ * otherwise it is written on disk; a job failing while writing on the RAM disk is executed again on disk.
+ * The intermediate files on disk don't exceed the disk budget: the job pool admits a job only once the estimated
+ * size of its files fits the budget, the budget being exceeded only if no job could free any space.
+ * With the cleanup, an intermediate file is deleted as soon as all the jobs reading it are successfully terminated.
+ */
+public class TempStorage {
+	
+	private Path ramDirectory; //Directory on a RAM disk in which the intermediate files are staged (null if not staged)
+	private long ramBudget; //Maximum bytes of the intermediate files staged on the RAM disk
+	private long ramUsed; //Bytes of the intermediate files staged on the RAM disk
+	private long ramPending; //Estimated bytes of the staged files being written
+	private long diskBudget; //Maximum bytes of the intermediate files on disk (0 if unlimited)
+	private long diskUsed; //Bytes of the intermediate files on disk
+	private boolean cleanup; //True to delete the intermediate files once they have been read
+	private long nextFile; //Number of the next file staged on the RAM disk, so that the staged files never collide
+	private HashMap<String,Long> ramFiles; //Bytes of the staged files, by their path in the temporary directory
+	private HashMap<String,Long> diskFiles; //Bytes of the files on disk, by their path
+	private HashSet<Job> spilled; //Jobs that failed on the RAM disk, whose files are written on disk
+	private Runnable freed; //Called once some space has been freed (null if nobody waits for space)
+	
+	/**
+	 * @param ramDirectory Directory on a RAM disk in which the intermediate files are staged (null if not staged)
+	 * @param ramBudget Maximum bytes staged on the RAM disk
+	 * @param diskBudget Maximum bytes of the intermediate files on disk (0 if unlimited)
+	 * @param cleanup True to delete each intermediate file once all the jobs reading it are terminated
+	 * @throws IOException if the staging directory cannot be created
+	 * @throws IllegalArgumentException if a disk budget is given without the cleanup: the files would never be freed
+	 */
+	public TempStorage(String ramDirectory, long ramBudget, long diskBudget, boolean cleanup) throws IOException {
+		if(diskBudget>0 && !cleanup)
+			throw new IllegalArgumentException("The disk budget needs the cleanup ("+K.cleanupProperty+"=true)!");
+		if(ramDirectory!=null) {
+			Files.createDirectories(Paths.get(ramDirectory));
+			this.ramDirectory = Files.createTempDirectory(Paths.get(ramDirectory), "preprocessing");
+		}
+		this.ramBudget = ramBudget;
+		this.diskBudget = diskBudget;
+		this.cleanup = cleanup;
+		this.ramFiles = new HashMap<>();
+		this.diskFiles = new HashMap<>();
+		this.spilled = new HashSet<>();
+	}
+	
+	/**
+	 * Creates the storage from the system properties K.ramTempProperty, K.ramTempBudgetProperty,
+	 * K.diskBudgetProperty and K.cleanupProperty. If the RAM budget is not set, half of the space
+	 * available on the RAM disk is used.
+	 * @return Storage of the intermediate files
+	 * @throws IOException if the staging directory cannot be created
+	 * @throws IllegalArgumentException if a budget is not a number or a disk budget is given without the cleanup
+	 */
+	public static TempStorage fromProperties() throws IOException {
+		String ramDirectory = System.getProperty(K.ramTempProperty);
+		String ramBudget = System.getProperty(K.ramTempBudgetProperty);
+		long ramBytes = 0;
+		if(ramBudget!=null)
+			ramBytes = Long.parseLong(ramBudget)*1024*1024;
+		else if(ramDirectory!=null) {
+			File ram = new File(ramDirectory);
+			ram.mkdirs();
+			ramBytes = ram.getUsableSpace()/2;
+		}
+		long diskBytes = Long.parseLong(System.getProperty(K.diskBudgetProperty, "0"))*1024*1024;
+		return new TempStorage(ramDirectory, ramBytes, diskBytes, Boolean.getBoolean(K.cleanupProperty));
+	}
+	
+	/**
+	 * @return Description of the storage printed when the processing starts (empty if nothing is managed)
+	 */
+	public String describe() {
+		String description = "";
+		if(ramDirectory!=null)
+			description += ", "+ramBudget/(1024*1024)+"MB staged in "+ramDirectory;
+		if(diskBudget>0)
+			description += ", "+diskBudget/(1024*1024)+"MB disk budget";
+		if(cleanup)
+			description += ", cleanup";
+		return description;
+	}
+	
+	/**
+	 * @param freed Called (without holding the lock of the storage) each time some space is freed,
+	 * so that the jobs waiting for the disk budget can be admitted again
+	 */
+	public void setFreed(Runnable freed) {
+		this.freed = freed;
+	}
+	
+	/**
+	 * Places the intermediate files of a job about to be launched: each file is staged on the RAM disk if it fits
+	 * the RAM budget and the space left on the RAM disk, otherwise it is written on disk if it fits the disk budget.
+	 * Nothing is reserved if the files on disk don't fit the budget.
+	 * @param job Job about to be launched, whose command has not been executed with the same fingerprint
+	 * @param force True to exceed the disk budget (when no job could free any space)
+	 * @return true if the files have been placed, false if the job must wait for some space
+	 */
+	public synchronized boolean tryAcquire(Job job, boolean force) {
+		List<String> outputs = job.getTemporaryOutputs();
+		if(outputs.isEmpty())
+			return true;
+		long bytes = job.getOutputBytes()/outputs.size();
+		long ramSpace = ramDirectory!=null && !spilled.contains(job) ? ramDirectory.toFile().getUsableSpace()-ramPending : 0;
+		ArrayList<String> staged = new ArrayList<>();
+		ArrayList<String> spilledOutputs = new ArrayList<>();
+		for(String output : outputs) {
+			if(ramUsed+bytes*(staged.size()+1)<=ramBudget && bytes*(staged.size()+1)<=ramSpace)
+				staged.add(output);
+			else
+				spilledOutputs.add(output);
+		}
+		long diskBytes = bytes*spilledOutputs.size();
+		if(!force && diskBudget>0 && diskBytes>0 && diskUsed+diskBytes>diskBudget)
+			return false;
+		for(String output : outputs)
+			forget(output);
+		for(String output : staged)
+			ramFiles.put(output, bytes);
+		for(String output : spilledOutputs)
+			diskFiles.put(output, bytes);
+		ramUsed += bytes*staged.size();
+		ramPending += bytes*staged.size();
+		diskUsed += diskBytes;
+		return true;
+	}
+	
+	/**
+	 * Creates the links of the intermediate files of an admitted job staged on the RAM disk
+	 * and removes the links left by a previous run to the files now written on disk
+	 * @param job Job admitted by tryAcquire()
+	 * @throws IOException if a symbolic link cannot be created
+	 */
+	public void stage(Job job) throws IOException {
+		for(String output : job.getTemporaryOutputs()) {
+			Path link = Paths.get(output);
+			boolean staged;
+			synchronized (this) {
+				staged = ramFiles.containsKey(output);
+			}
+			if(staged) {
+				Files.deleteIfExists(link);
+				Files.createSymbolicLink(link, ramDirectory.resolve(stagedName(link)));
+			} else if(Files.isSymbolicLink(link))
+				Files.delete(link);
+		}
+	}
+	
+	/**
+	 * @param link Path of an intermediate file in the temporary directory
+	 * @return Name of the file staged on the RAM disk
+	 */
+	private synchronized String stagedName(Path link) {
+		return (nextFile++)+"-"+link.getFileName();
+	}
+	
+	/**
+	 * Replaces the estimated sizes of the intermediate files of a terminated job with their actual sizes
+	 * @param job Terminated job admitted by tryAcquire()
+	 */
+	public void release(Job job) {
+		List<String> outputs = job.getTemporaryOutputs();
+		if(outputs.isEmpty())
+			return;
+		synchronized (this) {
+			for(String output : outputs) {
+				long bytes = new File(output).length();
+				if(ramFiles.containsKey(output)) {
+					long estimated = ramFiles.put(output, bytes);
+					ramUsed += bytes-estimated;
+					ramPending -= estimated;
+				} else if(diskFiles.containsKey(output))
+					diskUsed += bytes-diskFiles.put(output, bytes);
+			}
+		}
+		freed();
+	}
+	
+	/**
+	 * Moves the intermediate files of a job that failed while writing on the RAM disk (e.g. because a file
+	 * outgrew its estimated size and filled the RAM disk) to the disk: the staged files are deleted
+	 * and the job is placed on disk when it is admitted again
+	 * @param job Failed job, released
+	 * @return true if the job had files staged on the RAM disk and can be executed again on disk
+	 */
+	public boolean spill(Job job) {
+		boolean staged = false;
+		for(String output : job.getTemporaryOutputs()) {
+			synchronized (this) {
+				if(!ramFiles.containsKey(output))
+					continue;
+				forget(output);
+				staged = true;
+			}
+			try {
+				deleteFile(Paths.get(output));
+			} catch (IOException e) {
+				System.err.println("Unable to delete "+output+": "+e.getMessage());
+			}
+		}
+		if(!staged)
+			return false;
+		synchronized (this) {
+			if(!spilled.add(job))
+				return false;
+		}
+		freed();
+		return true;
+	}
+	
+	/**
+	 * Accounts the intermediate files of a job that doesn't need to be executed again: they are kept on disk
+	 * until they are read
+	 * @param job Job already executed with the same fingerprint
+	 */
+	public synchronized void register(Job job) {
+		for(String output : job.getTemporaryOutputs()) {
+			if(ramFiles.containsKey(output) || diskFiles.containsKey(output) || Files.isSymbolicLink(Paths.get(output)))
+				continue;
+			long bytes = new File(output).length();
+			diskFiles.put(output, bytes);
+			diskUsed += bytes;
+		}
+	}
+	
+	/**
+	 * Deletes the intermediate files of a job once all the jobs reading them are successfully terminated
+	 * (only if the cleanup is enabled)
+	 * @param job Job whose files have been read
+	 */
+	public void delete(Job job) {
+		if(!cleanup)
+			return;
+		for(String output : job.getTemporaryOutputs()) {
+			try {
+				deleteFile(Paths.get(output));
+			} catch (IOException e) {
+				System.err.println("Unable to delete "+output+": "+e.getMessage());
+			}
+			synchronized (this) {
+				forget(output);
+			}
+		}
+		freed();
+	}
+	
+	/**
+	 * Tells the waiting jobs that some space has been freed
+	 */
+	private void freed() {
+		if(freed!=null)
+			freed.run();
+	}
+	
+	/**
+	 * Deletes a file and, if it is a link to a file staged on the RAM disk, the staged file
+	 * @param file File to be deleted
+	 * @throws IOException
+	 */
+	private void deleteFile(Path file) throws IOException {
+		if(Files.isSymbolicLink(file)) {
+			Path target = Files.readSymbolicLink(file);
+			if(ramDirectory!=null && target.startsWith(ramDirectory))
+				Files.deleteIfExists(target);
+		}
+		Files.deleteIfExists(file);
+	}
+	
+	/**
+	 * Stops accounting an intermediate file
+	 * @param output Path of the file in the temporary directory
+	 */
+	private void forget(String output) {
+		Long bytes = ramFiles.remove(output);
+		if(bytes!=null)
+			ramUsed -= bytes;
+		bytes = diskFiles.remove(output);
+		if(bytes!=null)
+			diskUsed -= bytes;
+	}
+	
+	/**
+	 * Frees the RAM disk once all the jobs are terminated: the staged files still there and their links are deleted,
+	 * the jobs producing them will be executed again by a later run if their files are still needed
+	 */
+	public synchronized void shutdown() {
+		if(ramDirectory==null)
+			return;
+		for(Map.Entry<String,Long> staged : ramFiles.entrySet()) {
+			try {
+				deleteFile(Paths.get(staged.getKey()));
+			} catch (IOException e) {
+				System.err.println("Unable to delete "+staged.getKey()+": "+e.getMessage());
+			}
+		}
+		ramFiles.clear();
+		ramUsed = 0;
+		File[] left = ramDirectory.toFile().listFiles();
+		if(left!=null) {
+			for(File file : left)
+				file.delete();
+		}
+		ramDirectory.toFile().delete();
+	}
+}
@@ -15,6 +15,8 @@
  */
 package preprocessing;
 
+import java.util.ArrayList;
+
 public class Tile {
 	
 	private int x; //x position in the grid
@@ -25,6 +27,7 @@ public class Tile {
 	private float startYPerc; //y-Percentage of the original video where the tiling must begin
 	private float endXPerc; //x-Percentage of the original video where the tiling must end
 	private float endYPerc; //y-Percentage of the original video where the tiling must end
+	private double widthScale = 1; //Factor applied to the cropped width before the encoding
 	
 	public Tile(int x, int y, int w, int h, float startXPerc, float startYPerc, float endXPerc, float endYPerc) { 
 		this.x = x;
@@ -37,17 +40,58 @@ public class Tile {
 		this.endYPerc = endYPerc;
 	}
 	
-	//Used for default tiling: we are sure the provided string contains 8 values
-	public Tile(String tileDescription) { 
-		String[] pieces = tileDescription.split(",");
-		this.x = Integer.parseInt(pieces[0]);
-		this.y = Integer.parseInt(pieces[1]);
-		this.w = Integer.parseInt(pieces[2]);
-		this.h = Integer.parseInt(pieces[3]);
-		this.startXPerc = Float.parseFloat(pieces[4]);
-		this.startYPerc = Float.parseFloat(pieces[5]);
-		this.endXPerc = Float.parseFloat(pieces[6]);
-		this.endYPerc = Float.parseFloat(pieces[7]);
+	public Tile(int x, int y, int w, int h, float startXPerc, float startYPerc, float endXPerc, float endYPerc, double widthScale) { 
+		this(x, y, w, h, startXPerc, startYPerc, endXPerc, endYPerc);
+		this.widthScale = widthScale;
+	}
+	
+	/**
+	 * Generates the tiles of a regular grid
+	 * @param columns Number of columns of the grid
+	 * @param rows Number of rows of the grid
+	 * @return Tiles of the grid, row by row
+	 */
+	public static ArrayList<Tile> grid(int columns, int rows) {
+		ArrayList<Tile> tiles = new ArrayList<>();
+		for(int y=0; y<rows; y++) {
+			for(int x=0; x<columns; x++) {
+				tiles.add(new Tile(x, y, 1, 1, (float) x/columns, (float) y/rows, (float) (x+1)/columns, (float) (y+1)/rows));
+			}
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Generates the tiles of an equirectangular video, whose rows are oversampled horizontally by 1/cos(latitude):
+	 * each row of the grid keeps as many columns as needed by its angular resolution at the latitude the closest to
+	 * the equator, rounded up to a divisor of the number of columns so that the SRD positions remain in the grid,
+	 * and the width of its tiles is scaled down by the cosine of this latitude. The rows near the poles then have
+	 * fewer, wider tiles, encoding fewer pixels for the same angular resolution.
+	 * @param columns Number of columns of the grid
+	 * @param rows Number of rows of the grid, covering the latitudes from 90° to -90°
+	 * @return Tiles of the grid, row by row
+	 */
+	public static ArrayList<Tile> equirectangular(int columns, int rows) {
+		ArrayList<Tile> tiles = new ArrayList<>();
+		for(int y=0; y<rows; y++) {
+			double top = 90-180.0*y/rows;
+			double bottom = 90-180.0*(y+1)/rows;
+			double scale = top>0 && bottom<0 ? 1 : Math.cos(Math.toRadians(Math.min(Math.abs(top), Math.abs(bottom))));
+			//Smallest divisor of the columns giving at least the angular resolution of the row
+			int rowColumns = columns;
+			for(int divisor=1; divisor<=columns; divisor++) {
+				if(columns%divisor==0 && divisor>=columns*scale-1e-6) {
+					rowColumns = divisor;
+					break;
+				}
+			}
+			int span = columns/rowColumns;
+			for(int x=0; x<rowColumns; x++) {
+				tiles.add(new Tile(x*span, y, span, 1, (float) x/rowColumns, (float) y/rows, (float) (x+1)/rowColumns, (float) (y+1)/rows,
+						scale));
+			}
+		}
+		return tiles;
 	}
 	
 	/**
@@ -57,13 +101,92 @@ public class Tile {
 	 * @return String containing the crop filter description to properly tile the video
 	 */
 	public String generateCommandPortion(int width, int height) {
-		int startWpixel= (int) (width*startXPerc);
-		int startHpixel= (int) (height*startYPerc);
-		int endWpixel= (int) (width*endXPerc);
-		int endHpixel= (int) (height*endYPerc);
-		int areaWidth= endWpixel-startWpixel;
-		int areaHeight= endHpixel-startHpixel;
-		return " -filter:v crop="+areaWidth+":"+areaHeight+":"+startWpixel+":"+startHpixel+" ";
+		return " -filter:v "+generateCropFilter(width,height)+" ";
+	}
+	
+	/**
+	 * Generates the crop filter to be used inside a filter graph, followed by a scale filter if the tile is downscaled
+	 * @param width of the video to be tiled
+	 * @param height of the video to be tiled
+	 * @return String with the crop filter in the format crop=w:h:x:y[,scale=w:h]
+	 */
+	public String generateCropFilter(int width, int height) {
+		String filter = "crop="+cropWidth(width)+":"+cropHeight(height)+":"+cropX(width)+":"+cropY(height);
+		if(outputWidth(width)!=cropWidth(width))
+			filter += ",scale="+outputWidth(width)+":"+cropHeight(height);
+		return filter;
+	}
+	
+	/**
+	 * Converts a percentage of the video size to the pixel of a tile edge: the edge is rounded to the nearest
+	 * multiple of K.tileAlignment, the block size of the encoders, and the edge of the video is rounded down
+	 * to an even value, as required by the 4:2:0 chroma subsampling (it is never rounded to a multiple of
+	 * K.tileAlignment, which could leave a strip uncovered). The tiles sharing an edge compute it
+	 * from the same percentage, so they cover the video without gaps nor overlaps.
+	 * @param size Width or height of the video to be tiled
+	 * @param perc Percentage of the size
+	 * @return Pixel of the edge
+	 */
+	private static int edge(int size, float perc) {
+		if(perc>=1)
+			return size & ~1;
+		return Math.min(Math.round(size*perc/K.tileAlignment)*K.tileAlignment, size & ~1);
+	}
+	
+	/**
+	 * Computes the left edge of the tile in pixels
+	 * @param width of the video to be tiled
+	 * @return Horizontal position of the cropped area
+	 */
+	public int cropX(int width) {
+		return edge(width, startXPerc);
+	}
+	
+	/**
+	 * Computes the top edge of the tile in pixels
+	 * @param height of the video to be tiled
+	 * @return Vertical position of the cropped area
+	 */
+	public int cropY(int height) {
+		return edge(height, startYPerc);
+	}
+	
+	/**
+	 * Computes the width of the tile in pixels
+	 * @param width of the video to be tiled
+	 * @return Width of the cropped area (below K.tileAlignment, possibly 0, if the tile is narrower than a block)
+	 */
+	public int cropWidth(int width) {
+		return edge(width, endXPerc)-edge(width, startXPerc);
+	}
+	
+	/**
+	 * Computes the height of the tile in pixels
+	 * @param height of the video to be tiled
+	 * @return Height of the cropped area (below K.tileAlignment, possibly 0, if the tile is shorter than a block)
+	 */
+	public int cropHeight(int height) {
+		return edge(height, endYPerc)-edge(height, startYPerc);
+	}
+	
+	/**
+	 * Computes the width of the encoded tile in pixels, once its width is scaled (aligned on the blocks of the encoder)
+	 * @param width of the video to be tiled
+	 * @return Width of the encoded tile
+	 */
+	public int outputWidth(int width) {
+		int cropWidth = cropWidth(width);
+		if(widthScale>=1)
+			return cropWidth;
+		return Math.min(cropWidth, Math.max(K.tileAlignment, (int) Math.round(cropWidth*widthScale/K.tileAlignment)*K.tileAlignment));
+	}
+	
+	/**
+	 * Computes the fraction of the video pixels encoded in the tile, once its width is scaled
+	 * @return Value between 0 and 1
+	 */
+	public float areaFraction() { 
+		return (float) ((endXPerc-startXPerc)*(endYPerc-startYPerc)*Math.min(1, widthScale));
 	}
 	
 	/**
@@ -27,6 +27,10 @@ public class Version {
 		this.bitrate = bitrate;
 	}
 	
+	public int getBitrate() {
+		return bitrate;
+	}
+	
 	/**
 	 * Generates the scale filter description according to which the encoding must be performed
 	 * @return String containing the scale filter description to properly encode the video
@@ -40,6 +44,30 @@ public class Version {
 		return commandPortion;
 	}
 	
+	/**
+	 * Generates the scale filter to be used inside a filter graph
+	 * @return String with the scale filter or an empty string if the resolution is not changed
+	 */
+	public String generateScaleFilter() { 
+		if(width>0 && height>0)
+			return "scale="+width+":"+height;
+		return "";
+	}
+	
+	/**
+	 * Generates the bitrate description of a tile directly cropped from this version:
+	 * the bitrate of the version is shared among the tiles according to their area
+	 * @param areaFraction Fraction of the video area covered by the tile
+	 * @return String containing the bitrate description of the tile
+	 */
+	public String generateTileCommandPortion(float areaFraction) { 
+		if(bitrate>0) {
+			int tileBitrate = Math.max(1, Math.round(bitrate*areaFraction));
+			return " -b:v "+tileBitrate+"k -bufsize "+tileBitrate+"k ";
+		}
+		return " ";
+	}
+	
 	/**
 	 * Creates a suffix to be added to the file according to the encoding version
 	 * @return String with the suffix
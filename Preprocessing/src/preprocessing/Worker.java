@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+/**
+ * Worker of the distributed mode: it pulls the jobs from the Coordinator, executes them
+ * and reports their exit values, with the end of the standard error of the failed jobs. Several jobs can be executed at the same time.
+ * The worker can be launched from the shell as follow:
+ * java preprocessing.Worker http://coordinator:port [slots]
+ */
+public class Worker {
+	
+	private String coordinator; //Base URL of the coordinator
+	private String id; //Unique id of the worker
+	private int threads; //Threads given to the encoders of each slot
+	
+	public Worker(String coordinator) {
+		this.coordinator = coordinator;
+		this.id = UUID.randomUUID().toString();
+	}
+	
+	public static void main(String[] args) throws InterruptedException {
+		if(args.length<1) {
+			System.err.println("Usage: java preprocessing.Worker http://coordinator:port [slots]");
+			return;
+		}
+		int slots = args.length>1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		Worker worker = new Worker(args[0]);
+		worker.threads = Math.max(1, Runtime.getRuntime().availableProcessors()/slots);
+		System.out.println("Worker "+worker.id+" pulling jobs from "+args[0]+" with "+slots+" slots");
+		
+		//Heartbeats letting the coordinator know that the running jobs are not lost
+		Thread heartbeat = new Thread(() -> {
+			while(true) {
+				try {
+					worker.request("POST", "/heartbeat?worker="+worker.id);
+				} catch (IOException e) {
+					System.err.println("Coordinator unreachable: "+e.getMessage());
+				}
+				try {
+					Thread.sleep(K.workerHeartbeat);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		
+		Thread[] threads = new Thread[slots];
+		for(int i=0; i<slots; i++) {
+			threads[i] = new Thread(worker::pull);
+			threads[i].start();
+		}
+		for(Thread thread : threads) {
+			thread.join();
+		}
+	}
+	
+	/**
+	 * Pulls and executes jobs until the coordinator is stopped
+	 */
+	private void pull() {
+		while(true) {
+			String response;
+			try {
+				response = request("GET", "/job?worker="+id);
+			} catch (IOException e) {
+				System.out.println("Coordinator unreachable: stopping");
+				return;
+			}
+			if(response==null) {
+				//No job available
+				try {
+					Thread.sleep(K.workerPoll);
+				} catch (InterruptedException e) {
+					return;
+				}
+				continue;
+			}
+			int newLine = response.indexOf('\n');
+			String job = response.substring(0, newLine);
+			String command = response.substring(newLine+1);
+			//The cores are shared among the slots, and among the encoders of a job
+			int encoders = command.split(Pattern.quote(K.threadsPlaceholder), -1).length-1;
+			command = Job.threadsCommand(command, Math.max(1, threads/Math.max(1, encoders)));
+			int exitValue;
+			String errorTail = null;
+			try {
+				System.out.println("Job "+job+" started: "+command);
+				ProcessResult result = ProcessRunner.run(command, null, null).get();
+				exitValue = result.exitValue;
+				if(!result.succeeded())
+					errorTail = result.errorTail;
+			} catch (ExecutionException e) {
+				errorTail = e.getCause().getMessage();
+				exitValue = -1;
+			} catch (InterruptedException e) {
+				return;
+			}
+			if(errorTail!=null)
+				System.err.println(errorTail);
+			System.out.println("Job "+job+" terminated with exit value "+exitValue);
+			try {
+				request("POST", "/result?worker="+id+"&job="+job+"&exit="+exitValue, errorTail);
+			} catch (IOException e) {
+				//The coordinator will give the job to another worker
+				System.err.println("Unable to report the result of job "+job+": "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Sends a request without body to the coordinator
+	 * @param method HTTP method
+	 * @param path Path and query string
+	 * @return Response body or null if the response has no content
+	 * @throws IOException
+	 */
+	private String request(String method, String path) throws IOException {
+		return request(method, path, null);
+	}
+	
+	/**
+	 * Sends a request to the coordinator
+	 * @param method HTTP method
+	 * @param path Path and query string
+	 * @param content Body of a POST request (can be null)
+	 * @return Response body or null if the response has no content
+	 * @throws IOException
+	 */
+	private String request(String method, String path, String content) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(coordinator+path).openConnection();
+		connection.setRequestMethod(method);
+		if(method.equals("POST")) {
+			connection.setDoOutput(true);
+			OutputStream output = connection.getOutputStream();
+			if(content!=null)
+				output.write(content.getBytes(StandardCharsets.UTF_8));
+			output.close();
+		}
+		int status = connection.getResponseCode();
+		if(status==HttpURLConnection.HTTP_NO_CONTENT) {
+			connection.disconnect();
+			return null;
+		}
+		if(status!=HttpURLConnection.HTTP_OK)
+			throw new IOException("Unexpected response "+status);
+		StringBuilder body = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if(body.length()>0)
+				body.append("\n");
+			body.append(line);
+		}
+		reader.close();
+		return body.toString();
+	}
+}
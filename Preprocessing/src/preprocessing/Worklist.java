@@ -21,6 +21,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Worklist {
 	private String videoPath;
@@ -29,6 +34,7 @@ public class Worklist {
 	
 	private ArrayList<Version> versions;
 	private TranscodedVersion[] transcodedVersions;
+	private MediaInfo mediaInfo;
 	private String audio;
 	
 	private ArrayList<Tile> tiles;
@@ -44,9 +50,36 @@ public class Worklist {
 	private int bigW;
 	private int bigH;
 	
+	private JobPool jobPool;
+	private String cropMode;
+	private double chunkDuration;
+	private String segmenter;
+	private boolean stream;
+	
+	//Jobs queued in the job pool
+	private CompletableFuture<Integer> audioJob;
+	private ArrayList<CompletableFuture<Integer>> transcodeJobs;
+	private ArrayList<CompletableFuture<Integer>> allJobs;
+	private HashSet<String> streamedOutputs;
+	private HashMap<String,CompletableFuture<Integer>> producerJobs; //Job producing each file
+	private HashMap<String,String> producerFingerprints; //Fingerprint of the job producing each file
+	
+	//Fingerprints of the inputs and of the queued jobs
+	private String videoFingerprint;
+	private ArrayList<String> transcodeFingerprints;
+	private ArrayList<String> allFingerprints;
+	private CompletableFuture<Integer> segmentJob;
+	
 	public Worklist() { 
 		this.versions = new ArrayList<>();
 		this.tiles = new ArrayList<>();
+		this.cropMode = K.cropModeSeparate;
+		this.segmenter = K.segmenterBuiltin;
+		this.allJobs = new ArrayList<>();
+		this.allFingerprints = new ArrayList<>();
+		this.streamedOutputs = new HashSet<>();
+		this.producerJobs = new HashMap<>();
+		this.producerFingerprints = new HashMap<>();
 	}
 	
 	public void setVideoPath(String videoPath) {
@@ -61,6 +94,14 @@ public class Worklist {
 		this.bigH = bigH;
 	}
 	
+	public int getBigW() {
+		return bigW;
+	}
+	
+	public int getBigH() {
+		return bigH;
+	}
+	
 	
 	public void addVersion(Version version) {
 		versions.add(version);
@@ -78,6 +119,26 @@ public class Worklist {
 		this.segment = segment;
 	}
 	
+	public void setJobPool(JobPool jobPool) {
+		this.jobPool = jobPool;
+	}
+	
+	public void setCropMode(String cropMode) {
+		this.cropMode = cropMode;
+	}
+	
+	public void setChunkDuration(double chunkDuration) {
+		this.chunkDuration = chunkDuration;
+	}
+	
+	public void setSegmenter(String segmenter) {
+		this.segmenter = segmenter;
+	}
+	
+	public void setStream(boolean stream) {
+		this.stream = stream;
+	}
+	
 	/**
 	 * Check if the video file provided in input exists
 	 * @throws FileNotFoundException
@@ -114,194 +175,655 @@ public class Worklist {
 	}
 	
 	/**
-	 * This method retrieves the video width and the video height and these parameters are set
-	 * as internal variables.
+	 * This method retrieves the video information with a single ffprobe call (or from the probe cache):
+	 * the video width and the video height are set as internal variables.
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
-	public void videoDimensions() throws IOException, InterruptedException {
-		//TODO: check the buffer exception
-		Runtime runTime = Runtime.getRuntime();
-		
-		//Preparing the commands to be launched
-		//Width
-		String widthCommand = "ffprobe -v error -of flat=s=_ -select_streams v:0 -show_entries stream=width "+videoPath;
-		//Height
-		String heightCommand = "ffprobe -v error -of flat=s=_ -select_streams v:0 -show_entries stream=height "+videoPath;		
-		
-		//Width
-		Process widthProcess = runTime.exec(widthCommand);
-		ProcessGetDimensions widthOutput = new ProcessGetDimensions(widthProcess.getInputStream());
-		widthOutput.start();
-		widthProcess.waitFor();
-		//videoWidth = widthOutput.returnValue();
-		widthProcess.destroy();
-		
-		//Height
-		Process heightProcess = runTime.exec(heightCommand);	
-		ProcessGetDimensions heightOutput = new ProcessGetDimensions(heightProcess.getInputStream());
-		heightOutput.start();
-		heightProcess.waitFor();
-		videoHeight = heightOutput.returnValue();
-		heightProcess.destroy();
-		
+	public void probe() throws IOException, InterruptedException {
+		MediaProbe mediaProbe = new MediaProbe(MediaProbe.defaultCacheDirectory());
+		mediaInfo = mediaProbe.probe(videoPath);
+		videoWidth = mediaInfo.width;
+		videoHeight = mediaInfo.height;
+		videoFingerprint = Fingerprint.of(new File(videoPath));
 	}
 	
 	/**
-	 * Extracts the audio from the video and puts it in the temporary directory 
-	 * @throws IOException
-	 * @throws InterruptedException
+	 * Queues the extraction of the audio from the video: the audio is put in the temporary directory.
+	 * If the audio is already encoded with a codec suitable for DASH it is just copied,
+	 * otherwise it is transcoded. If the video has no audio nothing is queued.
+	 * The extraction does not depend on any other job, so it overlaps the video jobs.
 	 */
-	public void extractAudio() throws IOException, InterruptedException {
-		Runtime runTime = Runtime.getRuntime();
-		Process worker;
-		ProcessOutputStream outputStream;
+	public void extractAudio() {
+		if(!mediaInfo.hasAudio())
+			return;
 		//Saving the audio filepath for the last phase
 		audio = outputTemp+"/"+outputName+"-audio.mp4";
-		String command = "ffmpeg -y -i "+videoPath+" -vn -loglevel 16 -hide_banner "+audio;
-		worker = runTime.exec(command);	
-		outputStream = new ProcessOutputStream(worker.getErrorStream());
-		outputStream.start();
-		worker.waitFor();
-		worker.destroy();
-		
+		String codecPortion = mediaInfo.audioCodec.equals(K.dashAudioCodec) ? " -c:a copy " : " -c:a "+K.dashAudioCodec+" ";
+		String command = "ffmpeg -y -i "+ProcessRunner.quote(videoPath)+" -vn"+codecPortion+"-loglevel 16 -hide_banner "+ProcessRunner.quote(audio);
+		Job job = new Job(command,log("\tAudio extraction"),outputTemp,new String[] {audio},videoFingerprint);
+		job.setMemory(K.encoderBaseMemory);
+		job.setWork(mediaInfo.duration);
+		job.setOutputBytes(Math.round(mediaInfo.duration*K.audioBitrate*1000/8));
+		job.setPhase(K.phaseAudio);
+		audioJob = queue(job);
 	}
 	
 	/**
-	 * For each version in the XML file an encoding process is launched.
-	 * If no versions have been specified, the input filename is just saved to be used in the next phase 
+	 * Checks that each tile covers at least one block of the encoder in each version, since the tile edges
+	 * are aligned on the blocks. The check is done once the video is probed, before any job of the video is queued.
+	 * @throws IOException if a tile is smaller than a block in a version
+	 */
+	public void checkTiling() throws IOException {
+		for(int i=0; i<Math.max(1, versions.size()); i++) {
+			TranscodedVersion version = versions.isEmpty() ? new TranscodedVersion(videoPath,videoWidth,videoHeight)
+					: versions.get(i).generateTranscoded(outputName+versions.get(i).generateFileSuffix(),videoWidth,videoHeight);
+			for(Tile tile : tiles) {
+				if(tile.cropWidth(version.width)<K.tileAlignment || tile.cropHeight(version.height)<K.tileAlignment)
+					throw new IOException("The tile "+tile.generateSRDProperty()+" is smaller than the "+K.tileAlignment+"x"
+							+K.tileAlignment+" blocks of the encoder in "+version.fileName+"!");
+			}
+		}
+	}
+	
+	/**
+	 * For each version in the XML file an encoding process is queued in the job pool.
+	 * If no versions have been specified, the input filename is just saved to be used in the next phase.
+	 * In the direct crop mode the full-frame versions are produced only if no tiles have been specified:
+	 * otherwise the tiles are directly obtained from the original video in the next phase.
 	 * @throws IOException
-	 * @throws InterruptedException
 	 */
-	public void transcode() throws IOException, InterruptedException {
-		Runtime runTime = Runtime.getRuntime();
-		Process worker;
-		ProcessOutputStream outputStream;
-		String commandPrefix = "ffmpeg -y -i "+videoPath+ " -loglevel 16 -hide_banner -profile:v baseline";
+	public void transcode() throws IOException {
 		String commandPortion;
 		String commandSuffix;
 		String fileBasename;
 		Version currentVersion;
 		
 		int versionNumber = versions.size();
+		boolean direct = cropMode.equals(K.cropModeDirect) && tiles.size()>0;
 		if(versionNumber>0) {
 			//Versions have been specified: launching one encoding process for each version.
 			transcodedVersions = new TranscodedVersion[versionNumber];
+			transcodeJobs = new ArrayList<>();
+			transcodeFingerprints = new ArrayList<>();
 			for(int i=0; i<versionNumber; i++) {
 				currentVersion = versions.get(i);
-				System.out.print(currentVersion.generateLog()+"...");
 				fileBasename = outputTemp+"/"+outputName+versions.get(i).generateFileSuffix();
+				//Adding the current version for the next phase (same order as in the XML file)
+				transcodedVersions[i] = currentVersion.generateTranscoded(fileBasename,videoWidth,videoHeight);
 				commandSuffix = fileBasename+".mp4";
 				commandPortion = currentVersion.generateCommandPortion();
-				worker = runTime.exec(commandPrefix+commandPortion+commandSuffix);	
-				outputStream = new ProcessOutputStream(worker.getErrorStream());
-				outputStream.start();
-				worker.waitFor();
-				worker.destroy();
-				//Adding the current version for the next phase
-				transcodedVersions[i] = currentVersion.generateTranscoded(fileBasename,videoWidth,videoHeight);
-				System.out.println(" completed!");
+				if(direct) {
+					//Nothing to wait for: the tiles are obtained from the original video
+					transcodeJobs.add(CompletableFuture.completedFuture(0));
+					transcodeFingerprints.add(videoFingerprint);
+				} else {
+					transcodeJobs.add(queueEncoding(videoPath," -loglevel 16 -hide_banner -profile:v baseline"+commandPortion,commandSuffix,
+							log(currentVersion.generateLog()),K.phaseTranscode,
+							estimateMemory(videoWidth,videoHeight)+estimateMemory(transcodedVersions[i].width,transcodedVersions[i].height),
+							(long) transcodedVersions[i].width*transcodedVersions[i].height,
+							encodingWork((long) transcodedVersions[i].width*transcodedVersions[i].height,currentVersion.getBitrate()),
+							encodingBytes((long) transcodedVersions[i].width*transcodedVersions[i].height,currentVersion.getBitrate()),
+							videoFingerprint,transcodeFingerprints,tiles.isEmpty()));
+				}
 			}
 		} else {
 			//Versions have not been specified. Just copying the original video filename for the next phase
 			transcodedVersions = new TranscodedVersion[1];
 			String videoPathNoExt = videoPath.replaceFirst("[.][^.]+$", "");
 			transcodedVersions[0] = new TranscodedVersion(videoPathNoExt,videoWidth,videoHeight);
+			transcodeJobs = new ArrayList<>();
+			transcodeJobs.add(CompletableFuture.completedFuture(0));
+			transcodeFingerprints = new ArrayList<>();
+			transcodeFingerprints.add(videoFingerprint);
 		}
 		
 	}
 	
 	/**
 	 * For each tile specified in the XML file and for each video obtained in the previous phase,
-	 * a process is created to obtain the cropped video.
+	 * a process is queued in the job pool to obtain the cropped video.
+	 * The processes of a video depend only on the encoding of that video: they are launched
+	 * as soon as it terminates, without waiting for the other versions.
+	 * In the fused crop mode a single process is queued for each video: the video is decoded once
+	 * and all its tiles are emitted at the same time.
+	 * In the direct crop mode a single process is queued for each version: the original video
+	 * is scaled and cropped in one pass, without any intermediate full-frame video.
 	 * If no tiles have been specified, previous encoded filenames are saved
 	 * in order to be used in the next phase.
 	 * If no versions have been specified, the tiling is performed on the original video.
 	 * @throws IOException
-	 * @throws InterruptedException
 	 */
-	public void tile() throws IOException, InterruptedException {
-		Runtime runTime = Runtime.getRuntime();
-		Process worker;
-		ProcessOutputStream outputStream;
-		String commandPrefix = "ffmpeg -y ";
+	public void tile() throws IOException {
 		String commandPortion;
 		String commandSuffix;
 		String commandOutput;
+		CompletableFuture<Integer> transcodeJob;
+		String transcodeFingerprint;
+		String[] versionOutputs;
 		
 		int tileNumber = tiles.size();
 		//Checking if tiling is needed
 		if(tileNumber>0) {
 			//Tiling is needed
-			tiledVersions = new String[tileNumber*transcodedVersions.length+1];
+			tiledVersions = new String[tileNumber*transcodedVersions.length+audioNumber()];
 			//For each video
 			for(int i=0; i<transcodedVersions.length;i++) {
-				System.out.println("\tCropping the file "+transcodedVersions[i].filePath+".mp4");
+				transcodeJob = transcodeJobs.get(i);
+				transcodeFingerprint = transcodeFingerprints.get(i);
+				versionOutputs = new String[tileNumber];
+				for(int j=0; j<tileNumber; j++) {
+					versionOutputs[j] = outputTemp+"/"+transcodedVersions[i].fileName+tiles.get(j).generateFileSuffix()+".mp4";
+				}
+				if(cropMode.equals(K.cropModeDirect)) {
+					//A single process scaling the original video and emitting all the tiles
+					Job job = newJob(directCropCommand(i),log("\t\tTiling all the tiles of "+transcodedVersions[i].fileName),
+							versionOutputs,true,transcodeFingerprint);
+					job.setMemory(estimateMemory(videoWidth,videoHeight)+estimateMemory(transcodedVersions[i].width,transcodedVersions[i].height));
+					job.setPixels((long) transcodedVersions[i].width*transcodedVersions[i].height, tileNumber);
+					job.setWork(encodingWork((long) transcodedVersions[i].width*transcodedVersions[i].height,
+							versions.isEmpty() ? 0 : versions.get(i).getBitrate()));
+					job.setOutputBytes(encodingBytes((long) transcodedVersions[i].width*transcodedVersions[i].height,
+							versions.isEmpty() ? 0 : versions.get(i).getBitrate()));
+					job.setPhase(K.phaseTile);
+					queue(job);
+				} else if(cropMode.equals(K.cropModeFused)) {
+					//A single process emitting all the tiles
+					Job job = newJob(fusedCropCommand(transcodedVersions[i]),log("\t\tTiling all the tiles of "+transcodedVersions[i].fileName),
+							versionOutputs,true,transcodeFingerprint);
+					job.setMemory(2*estimateMemory(transcodedVersions[i].width,transcodedVersions[i].height));
+					job.setPixels((long) transcodedVersions[i].width*transcodedVersions[i].height, tileNumber);
+					job.setWork(encodingWork((long) transcodedVersions[i].width*transcodedVersions[i].height,0));
+					job.setOutputBytes(encodingBytes((long) transcodedVersions[i].width*transcodedVersions[i].height,0));
+					job.setPhase(K.phaseTile);
+					queue(job, transcodeJob);
+				}
 				//For each tile
 				for(int j=0; j<tileNumber; j++) {
-					System.out.print(tiles.get(j).generateLog()+"...");
-					commandSuffix = "-loglevel 16 -hide_banner -an -profile:v baseline ";
-					commandOutput = outputTemp+"/"+transcodedVersions[i].fileName+tiles.get(j).generateFileSuffix()+".mp4";
-					commandPortion = "-i "+transcodedVersions[i].filePath+".mp4 "+tiles.get(j).generateCommandPortion(transcodedVersions[i].width,transcodedVersions[i].height);
-					worker = runTime.exec(commandPrefix+commandPortion+commandSuffix+commandOutput);	
-					outputStream = new ProcessOutputStream(worker.getErrorStream());
-					outputStream.start();
-					worker.waitFor();
-					worker.destroy();
-					//Storing the current tile for the next phase 
-					tiledVersions[(i*tileNumber)+j] = commandOutput
-							+"#video:desc_as='<SupplementalProperty schemeIdUri=\"urn:mpeg:dash:srd:2014\""
-							+ " value=\"0,"+tiles.get(j).generateSRDProperty()+","+bigW+","+bigH+"\"/>'";
-							
-					System.out.println(" completed!");
+					commandOutput = versionOutputs[j];
+					if(cropMode.equals(K.cropModeSeparate)) {
+						commandSuffix = "-loglevel 16 -hide_banner -an -profile:v baseline ";
+						commandPortion = tiles.get(j).generateCommandPortion(transcodedVersions[i].width,transcodedVersions[i].height);
+						queueEncoding(transcodedVersions[i].filePath+".mp4",commandPortion+commandSuffix,commandOutput,
+								log(tiles.get(j).generateLog()+" of "+transcodedVersions[i].fileName),K.phaseTile,
+								estimateMemory(transcodedVersions[i].width,transcodedVersions[i].height)
+								+Math.round(tiles.get(j).areaFraction()*estimateMemory(transcodedVersions[i].width,transcodedVersions[i].height)),
+								Math.round(tiles.get(j).areaFraction()*transcodedVersions[i].width*transcodedVersions[i].height),
+								encodingWork(Math.round(tiles.get(j).areaFraction()*transcodedVersions[i].width*transcodedVersions[i].height),0),
+								encodingBytes(Math.round(tiles.get(j).areaFraction()*transcodedVersions[i].width*transcodedVersions[i].height),0),
+								transcodeFingerprint,null,true,transcodeJob);
+					}
+					//Storing the current tile for the next phase: its SRD property is written by the MpdWriter
+					tiledVersions[(i*tileNumber)+j] = commandOutput+"#video";
 				}
-				System.out.println("\t Work finished on the file "+transcodedVersions[i].filePath+".mp4");
 			}
-		tiledVersions[tiledVersions.length-1] = audio+"#audio";
+		if(audio!=null)
+			tiledVersions[tiledVersions.length-1] = audio+"#audio";
 		} else { 
 			//No tiling is needed. Just copying the video paths and the audio for the last phase
-			tiledVersions = new String[transcodedVersions.length+1];
+			tiledVersions = new String[transcodedVersions.length+audioNumber()];
 			for(int i=0; i<transcodedVersions.length;i++) {
 				tiledVersions[i] = transcodedVersions[i].filePath+".mp4#video";
 			}
-			tiledVersions[transcodedVersions.length] = audio+"#audio";
+			if(audio!=null)
+				tiledVersions[transcodedVersions.length] = audio+"#audio";
 		}
 	}
 	
 	/**
-	 * All the versions and all the tiles are grouped to generate segments together with the MPD file.
+	 * Queues the encoding of a video producing a single output.
+	 * If the chunk duration is set and the video is longer than a chunk, the video is split
+	 * in time ranges encoded in parallel, then the chunks are concatenated without re-encoding.
+	 * The chunk boundaries are multiples of the segment duration. In both cases a keyframe is forced
+	 * at each segment boundary, so that the segments line up with the segment duration.
+	 * @param input Video to be encoded
+	 * @param options Encoding options put between the input and the output
+	 * @param output Encoded video
+	 * @param log Message printed once the encoding terminates
+	 * @param phase Phase of the encoding in the metrics
+	 * @param memory Memory in MB estimated for each encoding process
+	 * @param pixels Pixels of a frame of the encoded video, giving the encoding its share of the threads
+	 * @param work Work of the encoding of the whole video in the cost model
+	 * @param bytes Estimated size in bytes of the encoded video
+	 * @param inputFingerprint Fingerprint of the input
+	 * @param fingerprints List to which the fingerprint of the encoded video is added (can be null)
+	 * @param segmented True if the encoded video is segmented (it can then be streamed to the segmenter)
+	 * @param dependencies Jobs that must terminate before launching the encoding
+	 * @return Future terminating once the encoded video is available
 	 * @throws IOException
-	 * @throws InterruptedException
 	 */
-	public void segment() throws IOException, InterruptedException {
-		Runtime runTime = Runtime.getRuntime();
-		Process worker;
-		ProcessOutputStream outputStream;
-		String command = "MP4Box -dash "+segment+" -segment-name %s_ -rap -out "+outputDashSRD+"/manifest.mpd ";
+	private CompletableFuture<Integer> queueEncoding(String input, String options, String output, String log, String phase, int memory,
+			long pixels, double work, long bytes, String inputFingerprint, ArrayList<String> fingerprints, boolean segmented, CompletableFuture<?>... dependencies) throws IOException {
+		double[] boundaries = chunkBoundaries();
+		if(boundaries.length<=2) {
+			//A single process encoding the whole video
+			Job job = newJob("ffmpeg -y -i "+ProcessRunner.quote(input)+options+forceKeyFrames()+K.threadsPlaceholder+" "+ProcessRunner.quote(output),
+					log,new String[] {output},segmented,inputFingerprint);
+			job.setMemory(memory);
+			job.setPixels(pixels, 1);
+			job.setWork(work);
+			job.setOutputBytes(bytes);
+			job.setPhase(phase);
+			if(fingerprints!=null)
+				fingerprints.add(job.getFingerprint());
+			return queue(job, dependencies);
+		}
+		
+		//One process for each chunk
+		String outputNoExt = output.replaceFirst("[.][^.]+$", "");
+		String[] chunkFingerprints = new String[boundaries.length-1];
+		CompletableFuture<?>[] chunkJobs = new CompletableFuture<?>[boundaries.length-1];
+		String chunkList = outputNoExt+"-chunks.txt";
+		PrintStream writer = new PrintStream(new FileOutputStream(chunkList));
+		for(int c=0; c<boundaries.length-1; c++) {
+			String chunkOutput = outputNoExt+"-chunk"+c+".mp4";
+			String range = " -ss "+boundaries[c]+(c<boundaries.length-2 ? " -t "+(boundaries[c+1]-boundaries[c]) : "");
+			Job chunkJob = new Job("ffmpeg -y"+range+" -i "+ProcessRunner.quote(input)+options+" -an"+forceKeyFrames()+K.threadsPlaceholder+" "+ProcessRunner.quote(chunkOutput),
+					log+" (chunk "+(c+1)+"/"+(boundaries.length-1)+")",outputTemp,new String[] {chunkOutput},inputFingerprint);
+			chunkJob.setMemory(memory);
+			chunkJob.setPixels(pixels, 1);
+			chunkJob.setWork(work*(boundaries[c+1]-boundaries[c])/mediaInfo.duration);
+			chunkJob.setOutputBytes(Math.round(bytes*(boundaries[c+1]-boundaries[c])/mediaInfo.duration));
+			chunkJob.setPhase(phase);
+			chunkFingerprints[c] = chunkJob.getFingerprint();
+			chunkJobs[c] = queue(chunkJob, dependencies);
+			writer.println("file '"+new File(chunkOutput).getName().replace("'", "'\\''")+"'");
+		}
+		writer.close();
+		
+		//Concatenating the chunks without re-encoding
+		Job concatJob = newJob("ffmpeg -y -f concat -safe 0 -i "+ProcessRunner.quote(chunkList)+" -loglevel 16 -hide_banner -c copy "+ProcessRunner.quote(output),
+				log,new String[] {output},segmented,chunkFingerprints);
+		concatJob.setMemory(K.encoderBaseMemory);
+		concatJob.setWork(mediaInfo.duration);
+		concatJob.setOutputBytes(bytes);
+		concatJob.setPhase(K.phaseConcat);
+		if(fingerprints!=null)
+			fingerprints.add(concatJob.getFingerprint());
+		return queue(concatJob, chunkJobs);
+	}
+	
+	/**
+	 * Computes the time ranges in which a video is split when it is encoded in parallel.
+	 * Each boundary is a multiple of the segment duration: among the multiples close to the chunk
+	 * duration, a multiple on which the original video has a keyframe is preferred, so that no frames
+	 * before the boundary need to be decoded.
+	 * @return Boundaries in seconds, the first one is 0 and the last one is the video duration
+	 */
+	private double[] chunkBoundaries() {
+		double duration = mediaInfo.duration;
+		if(chunkDuration<=0 || duration<=chunkDuration)
+			return new double[] {0, duration};
+		double segmentSeconds = segment/1000.0;
+		double tolerance = mediaInfo.frameRate>0 ? 0.5/mediaInfo.frameRate : 0.001;
+		long segmentsPerChunk = Math.max(1, Math.round(chunkDuration/segmentSeconds));
+		
+		ArrayList<Double> boundaries = new ArrayList<>();
+		boundaries.add(0.0);
+		double start = 0;
+		int keyframe = 0;
+		while(true) {
+			double target = start+segmentsPerChunk*segmentSeconds;
+			if(target>=duration-segmentSeconds)
+				break;
+			//Looking for a keyframe on a segment boundary within half a chunk from the target
+			double boundary = target;
+			double limit = target+(segmentsPerChunk/2)*segmentSeconds;
+			while(keyframe<mediaInfo.keyframes.length && mediaInfo.keyframes[keyframe]<target-tolerance) {
+				keyframe++;
+			}
+			for(int k=keyframe; k<mediaInfo.keyframes.length && mediaInfo.keyframes[k]<=limit+tolerance; k++) {
+				double multiple = Math.round(mediaInfo.keyframes[k]/segmentSeconds)*segmentSeconds;
+				if(Math.abs(multiple-mediaInfo.keyframes[k])<=tolerance && multiple>=target-tolerance) {
+					boundary = multiple;
+					break;
+				}
+			}
+			if(boundary>=duration-segmentSeconds)
+				break;
+			boundaries.add(boundary);
+			start = boundary;
+		}
+		boundaries.add(duration);
+		
+		double[] result = new double[boundaries.size()];
+		for(int i=0; i<result.length; i++) {
+			result[i] = boundaries.get(i);
+		}
+		return result;
+	}
+	
+	/**
+	 * Creates the job of an ffmpeg command.
+	 * In streaming mode, the segmented outputs are not written in the temp folder: ffmpeg writes fragmented MP4
+	 * to a named pipe for each output, read by a Segmenter writing the DASH segments on the fly.
+	 * The command is then launched through a script starting the segmenters; the outputs of the job are
+	 * the initialization segments.
+	 * @param command ffmpeg command
+	 * @param log Message printed once the command terminates
+	 * @param outputs Files written by the command
+	 * @param segmented True if the outputs are segmented
+	 * @param inputs Fingerprints of the inputs
+	 * @return Job to be queued
+	 * @throws IOException
+	 */
+	private Job newJob(String command, String log, String[] outputs, boolean segmented, String... inputs) throws IOException {
+		if(!stream || !segmented)
+			return new Job(command,log,outputTemp,outputs,inputs);
 		
-		//Putting each tile/version as input for MP4Box 
-		for(int i=0; i<tiledVersions.length; i++) {
-			command += tiledVersions[i]+" ";
+		String script = "#!/bin/sh\n";
+		String[] initSegments = new String[outputs.length];
+		String pipes = "";
+		String processes = "";
+		for(int i=0; i<outputs.length; i++) {
+			String pipe = outputs[i].replaceFirst("[.][^.]+$", "")+".fifo";
+			command = command.replace(ProcessRunner.quote(outputs[i]), "-f mp4 -movflags empty_moov+default_base_moof+frag_keyframe "+ProcessRunner.quote(pipe));
+			initSegments[i] = initSegment(outputs[i]);
+			pipes += " "+ProcessRunner.quote(pipe);
+			processes += " $p"+i;
+			script += "rm -f "+ProcessRunner.quote(pipe)+" && mkfifo "+ProcessRunner.quote(pipe)+" || exit 1\n"
+					+segmenterCommand()+" -stream "+segment+" "+ProcessRunner.quote(outputDashSRD)+" "+ProcessRunner.quote(pipe)+" &\n"
+					+"p"+i+"=$!\n";
+			streamedOutputs.add(outputs[i]);
 		}
+		//The thread options are given as arguments of the script
+		//Stopping the segmenters if ffmpeg fails, they could be waiting for their pipe to be opened
+		script += ProcessRunner.shellCommand(Job.progressCommand(command, Job.progressFile(outputTemp, initSegments[0])))
+					.replace(ProcessRunner.quote(K.threadsPlaceholder), "\"$@\"")+"\n"
+				+"e=$?\n"
+				+"[ $e -ne 0 ] && kill"+processes+" 2>/dev/null\n"
+				+"for p in"+processes+"; do wait $p || e=1; done\n"
+				+"rm -f"+pipes+"\n"
+				+"exit $e\n";
 		
-		//Creating a temporary script
-		String tempDashFilename = outputTemp+"/dash.sh";   
-		PrintStream writer = new PrintStream(new FileOutputStream(tempDashFilename));
-		writer.println(command);
+		String scriptFilename = outputs[0].replaceFirst("[.][^.]+$", "")+"-stream.sh";
+		writeScript(scriptFilename, script);
+		String[] scriptInputs = Arrays.copyOf(inputs, inputs.length+1);
+		scriptInputs[inputs.length] = script;
+		return new Job(ProcessRunner.quote(scriptFilename)+" "+K.threadsPlaceholder,log,outputTemp,initSegments,scriptInputs);
+	}
+	
+	/**
+	 * @return Command launching the Segmenter in its own JVM
+	 */
+	private String segmenterCommand() {
+		return ProcessRunner.quote(System.getProperty("java.home")+"/bin/java")+" -Xmx"+K.segmenterMemory+"m"
+				+" -cp "+ProcessRunner.quote(System.getProperty("java.class.path"))+" preprocessing.Segmenter";
+	}
+	
+	/**
+	 * Writes a shell script with execution privileges
+	 * @param filename Path of the script
+	 * @param content Content of the script
+	 * @throws IOException
+	 */
+	private void writeScript(String filename, String content) throws IOException {
+		PrintStream writer = new PrintStream(new FileOutputStream(filename));
+		writer.print(content);
 		writer.close();
 		
-		//Adding execution privileges 
-		worker = runTime.exec("chmod 777 "+tempDashFilename);	 
-		outputStream = new ProcessOutputStream(worker.getErrorStream());
-		outputStream.start();
-		worker.waitFor();
-		worker.destroy();
+		//Adding execution privileges (as chmod 777)
+		File script = new File(filename);
+		if(!script.setReadable(true, false) || !script.setWritable(true, false) || !script.setExecutable(true, false))
+			throw new IOException("Unable to make "+filename+" executable!");
+	}
+	
+	/**
+	 * Queues a job in the job pool keeping track of it for the segmentation
+	 * @param job Job to be queued
+	 * @param dependencies Jobs that must terminate before launching this one
+	 * @return Future holding the exit value of the command
+	 */
+	private CompletableFuture<Integer> queue(Job job, CompletableFuture<?>... dependencies) {
+		CompletableFuture<Integer> future = jobPool.submit(job, dependencies);
+		allJobs.add(future);
+		allFingerprints.add(job.getFingerprint());
+		if(job.getOutputs()!=null) {
+			for(String output : job.getOutputs()) {
+				producerJobs.put(output, future);
+				producerFingerprints.put(output, job.getFingerprint());
+			}
+		}
+		return future;
+	}
+	
+	/**
+	 * Estimates the work of the encoding of the whole video in the cost model: the pixels of all the frames
+	 * plus the encoded bits, weighted by K.bitWork
+	 * @param pixels Pixels of a frame of the encoded video
+	 * @param bitrate Bitrate in kbit/s of the encoded video (0 or negative if not specified)
+	 * @return Work of the encoding
+	 */
+	private double encodingWork(long pixels, int bitrate) {
+		double frameRate = mediaInfo.frameRate>0 ? mediaInfo.frameRate : K.defaultFrameRate;
+		return mediaInfo.duration*(frameRate*pixels+K.bitWork*Math.max(0, bitrate)*1000);
+	}
+	
+	/**
+	 * Estimates the size of an encoded video, used to place it in the temporary storage
+	 * @param pixels Pixels of a frame of the encoded video
+	 * @param bitrate Bitrate in kbit/s of the encoding (0 if not set: K.bitsPerPixel bits for each encoded pixel)
+	 * @return Estimated bytes of the encoded video
+	 */
+	private long encodingBytes(long pixels, int bitrate) {
+		double frameRate = mediaInfo.frameRate>0 ? mediaInfo.frameRate : K.defaultFrameRate;
+		double bits = bitrate>0 ? bitrate*1000.0 : frameRate*pixels*K.bitsPerPixel;
+		return Math.round(mediaInfo.duration*bits/8);
+	}
+	
+	/**
+	 * Estimates the memory used by ffmpeg to decode or encode a video: a fixed part
+	 * plus the frames kept in memory by the codec (YUV 4:2:0, 1.5 bytes per pixel)
+	 * @param width Video width
+	 * @param height Video height
+	 * @return Memory in MB
+	 */
+	private int estimateMemory(int width, int height) {
+		long frame = (long) width*height*3/2;
+		return K.encoderBaseMemory+(int) (frame*K.encoderBufferedFrames/(1024*1024));
+	}
+	
+	/**
+	 * Generates the option forcing a keyframe at each segment boundary: the segmenters cut the segments
+	 * on keyframes, so without it the segments would follow the keyframe interval of the encoder
+	 * instead of the segment duration
+	 * @return Option to be put before the output of an encoding
+	 */
+	private String forceKeyFrames() {
+		return " -force_key_frames expr:gte(t,n_forced*"+(segment/1000.0)+") ";
+	}
+	
+	/**
+	 * Prefixes a log message with the name of the video, since several videos are processed at the same time
+	 * @param message Message to be prefixed
+	 * @return Prefixed message
+	 */
+	private String log(String message) {
+		return "["+outputName+"]"+message;
+	}
+	
+	/**
+	 * @return Number of audio files to be segmented (0 if the video has no audio)
+	 */
+	private int audioNumber() {
+		return audio!=null ? 1 : 0;
+	}
+	
+	/**
+	 * Generates the command cropping all the tiles of a video with a single decoding.
+	 * The filter graph splits the decoded video in as many streams as the tiles,
+	 * each stream is cropped and mapped to its own output file.
+	 * @param transcodedVersion Video to be tiled
+	 * @return Command emitting all the tiles of the video
+	 */
+	private String fusedCropCommand(TranscodedVersion transcodedVersion) {
+		int tileNumber = tiles.size();
+		String filterGraph = "[0:v]split="+tileNumber;
+		for(int j=0; j<tileNumber; j++) {
+			filterGraph += "[s"+j+"]";
+		}
+		String outputs = "";
+		for(int j=0; j<tileNumber; j++) {
+			filterGraph += ";[s"+j+"]"+tiles.get(j).generateCropFilter(transcodedVersion.width,transcodedVersion.height)+"[t"+j+"]";
+			outputs += " -map [t"+j+"] -an -profile:v baseline"+forceKeyFrames()+K.threadsPlaceholder+" "
+					+ProcessRunner.quote(outputTemp+"/"+transcodedVersion.fileName+tiles.get(j).generateFileSuffix()+".mp4");
+		}
+		return "ffmpeg -y -i "+ProcessRunner.quote(transcodedVersion.filePath+".mp4")+" -loglevel 16 -hide_banner -filter_complex "+filterGraph+outputs;
+	}
+	
+	/**
+	 * Generates the command obtaining all the tiles of a version directly from the original video.
+	 * The filter graph scales the original video to the version resolution, then splits it
+	 * in as many streams as the tiles and each stream is cropped and mapped to its own output file.
+	 * The version bitrate is shared among the tiles according to their area.
+	 * @param versionIndex Index of the version among the transcoded versions
+	 * @return Command emitting all the tiles of the version
+	 */
+	private String directCropCommand(int versionIndex) {
+		TranscodedVersion transcodedVersion = transcodedVersions[versionIndex];
+		Version version = versions.isEmpty() ? null : versions.get(versionIndex);
+		int tileNumber = tiles.size();
+		String filterGraph = "[0:v]";
+		if(version!=null && !version.generateScaleFilter().isEmpty())
+			filterGraph += version.generateScaleFilter()+",";
+		filterGraph += "split="+tileNumber;
+		for(int j=0; j<tileNumber; j++) {
+			filterGraph += "[s"+j+"]";
+		}
+		String outputs = "";
+		for(int j=0; j<tileNumber; j++) {
+			filterGraph += ";[s"+j+"]"+tiles.get(j).generateCropFilter(transcodedVersion.width,transcodedVersion.height)+"[t"+j+"]";
+			outputs += " -map [t"+j+"] -an -profile:v baseline"
+					+(version!=null ? version.generateTileCommandPortion(tiles.get(j).areaFraction()) : "")
+					+forceKeyFrames()+K.threadsPlaceholder+" "+ProcessRunner.quote(outputTemp+"/"+transcodedVersion.fileName+tiles.get(j).generateFileSuffix()+".mp4");
+		}
+		return "ffmpeg -y -i "+ProcessRunner.quote(videoPath)+" -loglevel 16 -hide_banner -filter_complex "+filterGraph+outputs;
+	}
+	
+	/**
+	 * Segments all the versions and all the tiles, then writes the MPD file.
+	 * By default each file is segmented by its own job, launching the Segmenter in its own JVM like the other
+	 * commands so that it can run on a worker: the job is queued as soon as the file is produced and the files
+	 * are segmented in parallel. In streaming mode, only the files that were not streamed (the audio) are left
+	 * to be segmented.
+	 * With the K.segmenterMP4Box segmenter, all the files are grouped in a single MP4Box command, queued
+	 * once all the previous jobs are terminated.
+	 * The manifest is then written by the MpdWriter once all the files are segmented, carrying the SRD
+	 * properties: since they are not part of the segmentation commands, changing them only rewrites the manifest.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void segment() throws IOException, InterruptedException {
+		if(segmenter.equals(K.segmenterMP4Box)) {
+			String command = "MP4Box -dash "+segment+" -segment-name %s_ -rap -out "+ProcessRunner.quote(outputDashSRD+"/manifest.mpd")+" ";
+			
+			//Putting each tile/version as input for MP4Box, whose outputs are the initialization segments
+			String[] outputs = new String[tiledVersions.length];
+			for(int i=0; i<tiledVersions.length; i++) {
+				command += ProcessRunner.quote(tiledVersions[i])+" ";
+				outputs[i] = initSegment(tiledVersions[i]);
+			}
+			
+			//Creating a temporary script
+			String tempDashFilename = outputTemp+"/dash.sh";
+			writeScript(tempDashFilename, ProcessRunner.shellCommand(command)+"\n");
+			
+			//Queueing the script: it is fingerprinted from the MP4Box command and all the previous jobs
+			ArrayList<String> inputs = new ArrayList<>(allFingerprints);
+			inputs.add(videoFingerprint);
+			inputs.add(command);
+			Job job = new Job(ProcessRunner.quote(tempDashFilename),log("\tSegmentation"),outputTemp,outputs,inputs.toArray(new String[0]));
+			job.setWork(mediaInfo.duration*tiledVersions.length);
+			job.setPhase(K.phaseSegment);
+			queue(job, allJobs.toArray(new CompletableFuture<?>[0]));
+		} else {
+			//One job for each file not streamed, launched once the file is produced
+			for(int i=0; i<tiledVersions.length; i++) {
+				String file = tiledVersions[i].replaceFirst("#.*$", "");
+				if(streamedOutputs.contains(file))
+					continue;
+				CompletableFuture<Integer> producer = producerJobs.get(file);
+				String inputFingerprint = producer!=null ? producerFingerprints.get(file) : videoFingerprint;
+				Job job = new Job(segmenterCommand()+" "+segment+" "+ProcessRunner.quote(outputDashSRD)+" "+ProcessRunner.quote(tiledVersions[i]),
+						log("\tSegmentation of "+new File(file).getName()),outputTemp,new String[] {initSegment(tiledVersions[i])},
+						inputFingerprint);
+				job.setMemory(K.segmenterMemory);
+				job.setWork(mediaInfo.duration);
+				job.setPhase(K.phaseSegment);
+				if(producer!=null)
+					queue(job, producer);
+				else
+					queue(job);
+			}
+		}
+		
+		segmentJob = CompletableFuture.allOf(allJobs.toArray(new CompletableFuture<?>[0])).thenApply(result -> {
+			try {
+				writeManifest();
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+			return 0;
+		});
 		
-		//Executing the script
-		worker = runTime.exec(tempDashFilename);	 
-		outputStream = new ProcessOutputStream(worker.getErrorStream());
-		outputStream.start();
-		worker.waitFor();
-		worker.destroy();	
+		//All the jobs reading the intermediate files of the video are queued: the files can be deleted once read
+		jobPool.planned(allJobs);
+	}
+	
+	/**
+	 * @param tiledVersion File to be segmented, followed by the track selector
+	 * @return Path of the initialization segment of the file
+	 */
+	private String initSegment(String tiledVersion) {
+		String file = tiledVersion.replaceFirst("#.*$", "");
+		return outputDashSRD+"/"+new File(file).getName().replaceFirst("[.][^.]+$", "")+K.dashInitSuffix;
+	}
+	
+	/**
+	 * Writes the DASH-SRD manifest of the segmented files: one adaptation set for each tile
+	 * (or a single one if the video is not tiled) with one representation for each version,
+	 * plus an adaptation set for the audio
+	 * @throws IOException
+	 */
+	private void writeManifest() throws IOException {
+		MpdWriter mpdWriter = new MpdWriter(outputDashSRD, segment, mediaInfo.duration);
+		int tileNumber = tiles.size();
+		if(tileNumber>0) {
+			for(int j=0; j<tileNumber; j++) {
+				Tile tile = tiles.get(j);
+				mpdWriter.addAdaptationSet("video/mp4", "0,"+tile.generateSRDProperty()+","+bigW+","+bigH);
+				for(int i=0; i<transcodedVersions.length; i++) {
+					mpdWriter.addVideoRepresentation(transcodedVersions[i].fileName+tile.generateFileSuffix(),
+							tile.outputWidth(transcodedVersions[i].width), tile.cropHeight(transcodedVersions[i].height));
+				}
+			}
+		} else {
+			mpdWriter.addAdaptationSet("video/mp4", null);
+			for(int i=0; i<transcodedVersions.length; i++) {
+				mpdWriter.addVideoRepresentation(transcodedVersions[i].fileName, transcodedVersions[i].width, transcodedVersions[i].height);
+			}
+		}
+		if(audio!=null) {
+			mpdWriter.addAdaptationSet("audio/mp4", null);
+			mpdWriter.addAudioRepresentation(new File(audio).getName().replaceFirst("[.][^.]+$", ""),
+					mediaInfo.audioSampleRate, mediaInfo.audioChannels);
+		}
+		mpdWriter.write("manifest.mpd");
+		System.out.println(log("\tManifest")+"... completed!");
+	}
+	
+	/**
+	 * @return Future completed once all the queued jobs are terminated and the manifest is written
+	 */
+	public CompletableFuture<Integer> getCompletion() {
+		return segmentJob;
+	}
+	
+	/**
+	 * Cancels the jobs already queued, so that a video that cannot be completely planned leaves no job behind
+	 */
+	public void cancel() {
+		if(jobPool!=null)
+			jobPool.cancel(allJobs);
 	}
 }
@@ -15,22 +15,58 @@
  */
 package preprocessing;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.ParserConfigurationException;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.xml.sax.SAXException;
 
-import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 
+/**
+ * Parser of the XML files describing the videos to be processed: a file holds either a single video
+ * (a <video> root) or a catalogue of videos (a <videos> root containing <video> elements).
+ * The file is read in a single pass by a StAX stream reader: the values of the tags of the video, of each
+ * version and of each tile are collected while reading, so that no DOM is built, then they are checked
+ * in the same order as the tags are described. As with a DOM, the tags are looked up at any depth inside
+ * their element (e.g. the width of a version). The videos of a catalogue are given to a VideoHandler as soon
+ * as each one is read, so that only one video is held in memory by the parser.
+ */
 public class XmlParser { 
 	
+	/**
+	 * Receives the videos of a file as soon as each one is read
+	 */
+	public interface VideoHandler {
+		
+		/**
+		 * @param name Name of the video: the file name, followed by #index (from 1) for the videos of a catalogue
+		 * @param worklist List of work to do containing versions and tiles desired
+		 */
+		void video(String name, Worklist worklist);
+		
+		/**
+		 * @param name Name of the invalid video of a catalogue, the other videos being still read
+		 * @param e Error found in the video element
+		 */
+		void invalid(String name, SAXException e);
+	}
+	
+	//Stream readers can be created concurrently once the factory is configured
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+	static {
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+	}
+	
 	private String filename;
 	
 	public XmlParser(String filename) {
@@ -38,242 +74,204 @@ public class XmlParser {
 	}
 	
 	/**
-	 * In this function the DOM of the XML file is obtained: if the file has errors
-	 * in the XML structure an exception is thrown.
-	 * If the DOM is correctly retrieved the DOM object is passed to the "parseVideo" method
-	 * in order to perform a second parsing related to the file content.
+	 * In this function the XML file is read: if the file has errors in the XML structure an exception is thrown.
+	 * The root element is passed to the "readVideo" method in order to check the file content while reading it.
 	 * @return List of work to do containing versions and tiles desired
-	 * @throws ParserConfigurationException
 	 * @throws SAXException
 	 * @throws IOException
 	 */
-	public Worklist parseXml() throws ParserConfigurationException, SAXException, IOException  {
-		File xmlFile = new File(filename);
-		DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-		//Check if the XML is syntactically corrected
-		Document doc = dBuilder.parse(xmlFile);
-		Element videoElement = doc.getDocumentElement();
-		videoElement.normalize();
-		//Check if the XML is semantically corrected
-		return parseVideo(videoElement);
-	}
-	
-	/**
-	 * Checks whether the root name has the proper tag value
-	 * @param Video element to be parsed
-	 * @throws SAXException
-	 */
-	private void parseRootNodeName(Element video) throws SAXException { 
-		if(!(video.getNodeName().equals(K.videoTag))) { 
-			throw new SAXException("The root XML tag must be '"+K.videoTag+"'!");
-		}
-	}
-	
-	/**
-	 * Checks whether the video path has been specified just once
-	 * @param Video element to be parsed
-	 * @param Worklist in which the video path attribute will be set
-	 * @throws SAXException
-	 */
-	private void parseVideoPath(Element video, Worklist worklist) throws SAXException { 
-		NodeList paths = video.getElementsByTagName(K.videoPathTag);
-		int pathLenght = paths.getLength();
-		if(pathLenght==0) {
-			//Attribute is mandatory
-			throw new SAXException("The video path has not been specified in the '"+K.videoPathTag+"' tag!");
-		} else if (pathLenght>1) {
-			//Illegal length
-			throw new SAXException("It is not possible to specify more than one path for a single video!");
-		} else {
-			//Add the path
-			worklist.setVideoPath(paths.item(0).getTextContent());
+	public Worklist parseXml() throws SAXException, IOException  {
+		InputStream input = new BufferedInputStream(new FileInputStream(filename));
+		try {
+			XMLStreamReader reader = factory.createXMLStreamReader(input);
+			try {
+				//Check if the XML is syntactically corrected
+				reader.nextTag();
+				//Check if the XML is semantically corrected
+				parseRootNodeName(reader);
+				Worklist worklist = readVideo(reader);
+				while(reader.hasNext()) {
+					reader.next();
+				}
+				return worklist;
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new SAXException(filename+": "+e.getMessage(), e);
+		} finally {
+			input.close();
 		}
 	}
 	
 	/**
-	 * Checks whether the video width has been specified just once
-	 * @param Video element to be parsed
-	 * @param Worklist in which the video width attribute will be set
+	 * Reads the file, a single video or a catalogue of videos, giving each video to the handler as soon as it is read.
+	 * An invalid video of a catalogue doesn't stop the reading of the next ones, unlike an error in the XML structure.
+	 * @param handler Handler receiving the videos
 	 * @throws SAXException
+	 * @throws IOException
 	 */
-	private void parseBigW(Element video, Worklist worklist) throws SAXException { 
-		NodeList bigWs = video.getElementsByTagName(K.bigWTag);
-		int bigWLenght = bigWs.getLength();
-		if(bigWLenght==0) {
-			//Attribute is mandatory
-			throw new SAXException("The video W (big W) has not been specified in the '"+K.bigWTag+"' tag!");
-		} else if (bigWLenght>1) {
-			//Illegal length
-			throw new SAXException("It is not possible to specify more than one W (big W) for a single video!");
-		} else {
-			//Add the width
-			worklist.setBigW(Integer.parseInt(bigWs.item(0).getTextContent()));
+	public void parse(VideoHandler handler) throws SAXException, IOException {
+		InputStream input = new BufferedInputStream(new FileInputStream(filename));
+		try {
+			XMLStreamReader reader = factory.createXMLStreamReader(input);
+			try {
+				reader.nextTag();
+				if(reader.getLocalName().equals(K.videoTag)) {
+					//Single video: its errors are errors of the file
+					Worklist worklist = readVideo(reader);
+					handler.video(filename, worklist);
+				} else if(reader.getLocalName().equals(K.videosTag)) {
+					parseCatalogue(reader, handler);
+				} else {
+					throw new SAXException("The root XML tag must be '"+K.videoTag+"' or '"+K.videosTag+"'!");
+				}
+				while(reader.hasNext()) {
+					reader.next();
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (XMLStreamException e) {
+			throw new SAXException(filename+": "+e.getMessage(), e);
+		} finally {
+			input.close();
 		}
 	}
 	
 	/**
-	 * Checks whether the video height has been specified just once
-	 * @param Video element to be parsed
-	 * @param Worklist in which the video height attribute will be set
+	 * Reads the videos of a catalogue one by one
+	 * @param reader Reader positioned on the start of the catalogue element, moved to its end
+	 * @param handler Handler receiving the videos
 	 * @throws SAXException
+	 * @throws XMLStreamException
 	 */
-	private void parseBigH(Element video, Worklist worklist) throws SAXException { 
-		NodeList bigHs = video.getElementsByTagName(K.bigHTag);
-		int bigHLenght = bigHs.getLength();
-		if(bigHLenght==0) {
-			//Attribute is mandatory
-			throw new SAXException("The video H (big H) has not been specified in the '"+K.bigHTag+"' tag!");
-		} else if (bigHLenght>1) {
-			//Illegal length
-			throw new SAXException("It is not possible to specify more than one H (big H) for a single video!");
-		} else {
-			//Add the height
-			worklist.setBigH(Integer.parseInt(bigHs.item(0).getTextContent()));
+	private void parseCatalogue(XMLStreamReader reader, VideoHandler handler) throws SAXException, XMLStreamException {
+		int index = 0;
+		while(reader.nextTag()==XMLStreamConstants.START_ELEMENT) {
+			if(!reader.getLocalName().equals(K.videoTag))
+				throw new SAXException("The '"+K.videosTag+"' tag can only contain '"+K.videoTag+"' tags!");
+			index++;
+			String name = filename+"#"+index;
+			Worklist worklist;
+			try {
+				worklist = readVideo(reader);
+			} catch (SAXException e) {
+				handler.invalid(name, e);
+				continue;
+			}
+			handler.video(name, worklist);
 		}
 	}
 	
 	/**
-	 * Checks whether the output folder has been specified just once
-	 * @param Video element to be parsed
-	 * @param Worklist in which the output-folder attribute will be set
+	 * Checks whether the root name has the proper tag value
+	 * @param reader Reader positioned on the root element
 	 * @throws SAXException
 	 */
-	private void parseOutput(Element video, Worklist worklist) throws SAXException { 
-		NodeList outputs = video.getElementsByTagName(K.outputTag);
-		int outputLenght = outputs.getLength();
-		if(outputLenght==0) {
-			//Attribute is mandatory
-			throw new SAXException("The output folder has not been specified in the '"+K.outputTag+"' tag!");
-		} else if (outputLenght>1) {
-			//Illegal length
-			throw new SAXException("It is not possible to specify more than one output folder for a single video!");
-		} else {
-			//Add the output folder
-			worklist.setOutput(outputs.item(0).getTextContent());
+	private void parseRootNodeName(XMLStreamReader reader) throws SAXException { 
+		if(!(reader.getLocalName().equals(K.videoTag))) { 
+			throw new SAXException("The root XML tag must be '"+K.videoTag+"'!");
 		}
 	}
 	
 	/**
-	 * Checks whether the segment duration has been specified
-	 * also ensuring that it is specified just once.
-	 * If the segment duration hasn't been specified a default value is set.
-	 * @param Video element to be parsed
-	 * @param Worklist in which the segment length attribute will be set
-	 * @throws SAXException
+	 * Reads the text of the current element, including the text of its children, and moves the reader
+	 * to the end of the element
+	 * @param reader Reader positioned on the start of an element
+	 * @return Text content of the element
+	 * @throws XMLStreamException
 	 */
-	private void parseSegment(Element video, Worklist worklist) throws SAXException { 
-		NodeList segments = video.getElementsByTagName(K.segmentTag);
-		int segmentLenght = segments.getLength();
-		if(segmentLenght==0) {
-			//Setting the default value
-			worklist.setSegment(K.segmentDefault);
-		} else if (segmentLenght>1) {
-			//Illegal length
-			throw new SAXException("It is not possible to specify more than one segment length for a single video!");
-		} else {
-			//Add the segment length
-			worklist.setSegment(Integer.parseInt(segments.item(0).getTextContent()));
+	private static String readText(XMLStreamReader reader) throws XMLStreamException {
+		StringBuilder text = new StringBuilder();
+		int depth = 1;
+		while(depth>0) {
+			switch(reader.next()) {
+				case XMLStreamConstants.START_ELEMENT: depth++; break;
+				case XMLStreamConstants.END_ELEMENT: depth--; break;
+				case XMLStreamConstants.CHARACTERS:
+				case XMLStreamConstants.CDATA:
+				case XMLStreamConstants.SPACE:
+					text.append(reader.getText());
+					break;
+				default:
+			}
 		}
+		return text.toString();
 	}
 	
 	/**
-	 * If specified, version are added to the worklist.
-	 * A single version leads to a different encoding of the video.
-	 * @param Video element to be parsed
-	 * @param Worklist in which the versions will be saved
-	 * @throws SAXException
+	 * Reads the current element up to its end, collecting the text of the wanted tags found at any depth
+	 * @param reader Reader positioned on the start of an element
+	 * @param tags Wanted tags
+	 * @return Texts of each wanted tag, in the order of the file
+	 * @throws XMLStreamException
 	 */
-	private void parseVersions(Element video, Worklist worklist) throws SAXException {
-		NodeList versions = video.getElementsByTagName(K.versionTag);
-		for (int i = 0; i < versions.getLength(); i++) {
-			worklist.addVersion(parseVersion((Element)versions.item(i)));
+	private static HashMap<String,List<String>> readFields(XMLStreamReader reader, String... tags) throws XMLStreamException {
+		HashMap<String,List<String>> fields = new HashMap<>();
+		for(String tag : tags) {
+			fields.put(tag, new ArrayList<>());
 		}
-	}
-	
-	/**
-	 * Checks if the version has a bitrate attribute specified.
-	 * If the attribute is specified, checks if the bitrate is a positive value
-	 * and it has been specified just once.
-	 * @param Version whose bitrate has to be checked
-	 * @return Bitrate value or -1 if bitrate has not been specified
-	 * @throws SAXException
-	 */
-	private int parseBitRate(Element version) throws SAXException {
-		NodeList bitrates = version.getElementsByTagName(K.versionBitrateTag);
-		int bitrateLength = bitrates.getLength();
-		if (bitrateLength==1) {
-			int bitrate = Integer.parseInt(bitrates.item(0).getTextContent());
-			if(bitrate<1) {
-				//Illegal value
-				throw new SAXException("The bitrate value must be positive!");
-			} else {
-				//Add the value
-				return bitrate;
+		int depth = 1;
+		while(depth>0) {
+			int event = reader.next();
+			if(event==XMLStreamConstants.START_ELEMENT) {
+				List<String> values = fields.get(reader.getLocalName());
+				if(values!=null)
+					values.add(readText(reader));
+				else
+					depth++;
+			} else if(event==XMLStreamConstants.END_ELEMENT) {
+				depth--;
 			}
-		} else if(bitrateLength>1) {
-			//Illegal length
-			throw new SAXException("It's possible to specify a single bitrate value for a single version!");
-		} else {
-			//Bitrate not specified
-			return -1;
 		}
+		return fields;
 	}
 	
 	/**
-	 * Checks if the version has a width attribute specified.
-	 * If the attribute is specified, checks if the width is a positive value
-	 * and it has been specified just once.
-	 * @param Version whose width has to be checked
-	 * @return Width value or -1 if width has not been specified
+	 * Checks whether a mandatory video attribute has been specified just once
+	 * @param values Values of the attribute found in the video element
+	 * @param missing Message if the attribute is missing
+	 * @param multiple Message if the attribute is specified more than once
+	 * @return Value of the attribute
 	 * @throws SAXException
 	 */
-	private int parseWidth(Element version) throws SAXException {
-		NodeList widths = version.getElementsByTagName(K.versionWidthTag);
-		int widthLength = widths.getLength();
-		if (widthLength==1) {
-			int width = Integer.parseInt(widths.item(0).getTextContent());
-			if(width<1) {
-				//Illegal width
-				throw new SAXException("The width value must be positive!");
-			} else {
-				//Add the width
-				return width;
-			}
-		} else if(widthLength>1) {
+	private static String single(List<String> values, String missing, String multiple) throws SAXException {
+		if(values.size()==0) {
+			//Attribute is mandatory
+			throw new SAXException(missing);
+		} else if (values.size()>1) {
 			//Illegal length
-			throw new SAXException("It's possible to specify a single width value for a single version!");
+			throw new SAXException(multiple);
 		} else {
-			//Width not specified
-			return -1;
+			return values.get(0);
 		}
 	}
 	
 	/**
-	 * Checks if the version has a height attribute specified.
-	 * If the attribute is specified, checks if the height is a positive value
+	 * Checks if the version has an optional attribute specified.
+	 * If the attribute is specified, checks if its value is positive
 	 * and it has been specified just once.
-	 * @param Version whose height has to be checked
-	 * @return Height value or -1 if height has not been specified
+	 * @param values Values of the attribute found in the version element
+	 * @param name Name of the attribute in the messages
+	 * @return Value or -1 if the attribute has not been specified
 	 * @throws SAXException
 	 */
-	private int parseHeight(Element version) throws SAXException {
-		NodeList heights = version.getElementsByTagName(K.versionHeightTag);
-		int heightLength = heights.getLength();
-		if (heightLength==1) {
-			int height = Integer.parseInt(heights.item(0).getTextContent());
-			if(height<1) {
-				//Illegal height
-				throw new SAXException("The height value must be positive!");
+	private static int parsePositive(List<String> values, String name) throws SAXException {
+		if (values.size()==1) {
+			int value = Integer.parseInt(values.get(0));
+			if(value<1) {
+				//Illegal value
+				throw new SAXException("The "+name+" value must be positive!");
 			} else {
 				//Add the value
-				return height;
+				return value;
 			}
-		} else if(heightLength>1) {
+		} else if(values.size()>1) {
 			//Illegal length
-			throw new SAXException("It's possible to specify a single height value for a single version!");
+			throw new SAXException("It's possible to specify a single "+name+" value for a single version!");
 		} else {
-			//Height not specified
+			//Not specified
 			return -1;
 		}
 	}
@@ -281,20 +279,19 @@ public class XmlParser {
 	/**
 	 * Checks the correctness of the version: in particular at least an attribute must be set
 	 * and the width and the height must be set at the same time.
-	 * @param Version to be parsed
+	 * @param fields Values of the tags read in the version element
 	 * @return Version with all the attribute set
 	 * @throws SAXException
 	 */
-	private Version parseVersion(Element version) throws SAXException {
-
+	private Version parseVersion(HashMap<String,List<String>> fields) throws SAXException {
 		//Parse bit-rate
-		int bitrate = parseBitRate(version);
+		int bitrate = parsePositive(fields.get(K.versionBitrateTag), "bitrate");
 		
 		//Parse width
-		int width = parseWidth(version);
+		int width = parsePositive(fields.get(K.versionWidthTag), "width");
 		
 		//Parse height
-		int height = parseHeight(version);
+		int height = parsePositive(fields.get(K.versionHeightTag), "height");
 		
 		//No parameters specified
 		if((width == -1) && (height == -1) && (bitrate == -1))
@@ -307,217 +304,170 @@ public class XmlParser {
 	}
 	
 	/**
-	 * Checks if a default tiling scheme has been specified.
-	 * If yes, checks if it has been specified just once
-	 * and fills the working list with all the tiles. 
-	 * @param Video element to be parsed
-	 * @param Worklist in which the tiles will be added
-	 * @return true if a default tiling scheme has been specified, false otherwise
+	 * Checks that a tile percentage has been specified just once and ranges between 0 and 1
+	 * @param values Values found in the tile element
+	 * @param name Name of the percentage in the messages
+	 * @param rangeName Name of the percentage in the message of the illegal values
+	 * @return Percentage
 	 * @throws SAXException
 	 */
-	private boolean parseDefaultTiling(Element video, Worklist worklist) throws SAXException {
-		NodeList defaultTilings = video.getElementsByTagName(K.tileDefaultTag);
-		int defaultTilingLenght = defaultTilings.getLength();
-		if(defaultTilingLenght==1) {
-			String defaultTilingName = defaultTilings.item(0).getTextContent();
-			if(K.defaultTiling.containsKey(defaultTilingName)) {
-				String[] defaultTiles = K.defaultTiling.get(defaultTilingName);
-				//Setting the default tiling
-				for(int i=0; i<defaultTiles.length; i++) {
-					worklist.addTile(new Tile(defaultTiles[i])); 
-				}
-				return true;
-			} else {
-				//Default tiling key not available
-				throw new SAXException("Wrong default tiling specification");
-			}	
-			
-		} else if (defaultTilingLenght>1) {
+	private static float parsePercentage(List<String> values, String name, String rangeName) throws SAXException {
+		if(values.size()!=1) {
 			//Illegal length
-			throw new SAXException("It is not possible to specify more than one default tiling for a single video!");
-		} else {
-			//No defalut tiling
-			return false;
+			throw new SAXException("It's mandatory to specify a single "+name+" percentage!");
 		}
+		float percentage = Float.parseFloat(values.get(0));
+		if(percentage<0 || percentage>1)
+			//Illegal value
+			throw new SAXException("The "+rangeName+" percentage value must range between 0 and 1!");
+		return percentage;
 	}
 	
 	/**
-	 * Parses a tile element checking that x,y,h,w and the percentage for tiling have been specified.
-	 * If a default tiling scheme has been already specified the method throws an exception.
-	 * @param Video element to be parsed
-	 * @param Worklist in which the tiles will be added
-	 * @param isDefaultTiling used to check if a default tiling has been already specified
+	 * Checks that a tile position or size has been specified just once and is not negative
+	 * @param values Values found in the tile element
+	 * @param name Name of the value in the messages
+	 * @return Value
 	 * @throws SAXException
 	 */
-	private void parseTiling(Element video, Worklist worklist, boolean isDefaultTiling) throws SAXException {
-		NodeList tilings = video.getElementsByTagName(K.tileTag);
-		int tilingLenght = tilings.getLength();
-		if(tilingLenght>0) {
-			if(isDefaultTiling) {
-				//Default tiling has been already specified: why also manual tiling?
-				throw new SAXException("The default tiling is already specified: it is not possible to define other tiles");
-			} else {
-				//Add tile after parsing
-				for(int i=0; i<tilingLenght; i++) {
-					worklist.addTile(parseTile((Element)tilings.item(i))); 
-				}
-			}		
+	private static int parseCoordinate(List<String> values, String name) throws SAXException {
+		if(values.size()!=1) {
+			//Illegal length
+			throw new SAXException("It's mandatory to specify a single "+name+"!");
 		}
+		int value = Integer.parseInt(values.get(0));
+		if(value<0)
+			//Illegal value
+			throw new SAXException("The "+name+" value must be greater than 0!");
+		return value;
 	}
 	
 	/**
 	 * Checks if all the attribute related to the tile have been specified in the correct way.
-	 * @param Tile to be parsed
+	 * @param fields Values of the tags read in the tile element
 	 * @return Tile object
 	 * @throws SAXException
 	 */
-		
-	private Tile parseTile(Element tile) throws SAXException {	
-		//Initializing variables
-		float tileStartXPerc;
-		float tileStartYPerc;
-		float tileEndXPerc;
-		float tileEndYPerc;
-		int tileX;
-		int tileY;
-		int tileW;
-		int tileH;
-		
-		//Parsing Tile start X percentage
-		NodeList tileStartXPercs = tile.getElementsByTagName(K.tileStartXPercTag);
-		if(tileStartXPercs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single start X percentage!");
-		} else {
-			tileStartXPerc = Float.parseFloat(tileStartXPercs.item(0).getTextContent());
-			if(tileStartXPerc<0 || tileStartXPerc>1)
-				//Illegal value
-				throw new SAXException("The start X percentage value must range between 0 and 1!");
-		}
-		
-		//Parsing Tile start Y percentage
-		NodeList tileStartYPercs = tile.getElementsByTagName(K.tileStartYPercTag);
-		if(tileStartYPercs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single start Y percentage!");
-		} else {
-			tileStartYPerc = Float.parseFloat(tileStartYPercs.item(0).getTextContent());
-			if(tileStartYPerc<0 || tileStartYPerc>1)
-				//Illegal value
-				throw new SAXException("The start Y percentage value must range between 0 and 1!");
-		}
-		
-		//Parsing Tile end X percentage
-		NodeList tileEndXPercs = tile.getElementsByTagName(K.tileEndXPercTag);
-		if(tileEndXPercs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single end X percentage!");
-		} else {
-			tileEndXPerc = Float.parseFloat(tileEndXPercs.item(0).getTextContent());
-			if(tileEndXPerc<0 || tileEndXPerc>1)
-				//Illegal value
-				throw new SAXException("The end X percentage value must range between 0 and 1!");
-		}
-		
-		//Parsing Tile end Y percentage
-		NodeList tileEndYPercs = tile.getElementsByTagName(K.tileEndYPercTag);
-		if(tileEndYPercs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single end Y percentage!");
-		} else {
-			tileEndYPerc = Float.parseFloat(tileEndYPercs.item(0).getTextContent());
-			if(tileEndYPerc<0 || tileEndYPerc>1)
-				//Illegal value
-				throw new SAXException("The start Y percentage value must range between 0 and 1!");
-		}
-		
-		//Parsing Tile x
-		NodeList tileXs = tile.getElementsByTagName(K.tileXTag);
-		if(tileXs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single x!");
-		} else {
-			tileX = Integer.parseInt(tileXs.item(0).getTextContent());
-			if(tileX<0)
-				//Illegal value
-				throw new SAXException("The x value must be greater than 0!");
-		}
-		
-		//Parsing Tile y
-		NodeList tileYs = tile.getElementsByTagName(K.tileYTag);
-		if(tileYs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single y!");
-		} else {
-			tileY = Integer.parseInt(tileYs.item(0).getTextContent());
-			if(tileY<0)
-				//Illegal value
-				throw new SAXException("The y value must be greater than 0!");
-		}
-		
-		//Parsing Tile w
-		NodeList tileWs = tile.getElementsByTagName(K.tileWTag);
-		if(tileWs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single w!");
-		} else {
-			tileW = Integer.parseInt(tileWs.item(0).getTextContent());
-			if(tileW<0)
-				//Illegal value
-				throw new SAXException("The w value must be greater than 0!");
-		}
-		
-		//Parsing Tile h
-		NodeList tileHs = tile.getElementsByTagName(K.tileHTag);
-		if(tileHs.getLength()!=1) {
-			//Illegal length
-			throw new SAXException("It's mandatory to specify a single h!");
-		} else {
-			tileH = Integer.parseInt(tileHs.item(0).getTextContent());
-			if(tileH<0)
-				//Illegal value
-				throw new SAXException("The h value must be greater than 0!");
-		}
+	private Tile parseTile(HashMap<String,List<String>> fields) throws SAXException {
+		float tileStartXPerc = parsePercentage(fields.get(K.tileStartXPercTag), "start X", "start X");
+		float tileStartYPerc = parsePercentage(fields.get(K.tileStartYPercTag), "start Y", "start Y");
+		float tileEndXPerc = parsePercentage(fields.get(K.tileEndXPercTag), "end X", "end X");
+		float tileEndYPerc = parsePercentage(fields.get(K.tileEndYPercTag), "end Y", "start Y");
+		int tileX = parseCoordinate(fields.get(K.tileXTag), "x");
+		int tileY = parseCoordinate(fields.get(K.tileYTag), "y");
+		int tileW = parseCoordinate(fields.get(K.tileWTag), "w");
+		int tileH = parseCoordinate(fields.get(K.tileHTag), "h");
 		return new Tile(tileX, tileY, tileW, tileH, tileStartXPerc, tileStartYPerc, tileEndXPerc,tileEndYPerc);
-	}	
+	}
 	
 	/**
-	 * In this method the content of the XML file is checked in order to ensure
-	 * that all the mandatory parameters are present and all of them are correctly inserted. 
-	 * @param Video element to be parsed
+	 * Reads a video element, reporting the illegal numbers as errors of the XML content
+	 * @param reader Reader positioned on the start of the video element, moved to its end
 	 * @return List of work to do containing versions and tiles desired
 	 * @throws SAXException
+	 * @throws XMLStreamException
 	 */
-	private Worklist parseVideo(Element video) throws SAXException {
-		Worklist worklist = new Worklist();
+	private Worklist readVideo(XMLStreamReader reader) throws SAXException, XMLStreamException {
+		try {
+			return parseVideo(reader);
+		} catch (NumberFormatException e) {
+			throw new SAXException("Illegal number: "+e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * In this method the content of a video element is read and checked in order to ensure
+	 * that all the mandatory parameters are present and all of them are correctly inserted.
+	 * @param reader Reader positioned on the start of the video element, moved to its end
+	 * @return List of work to do containing versions and tiles desired
+	 * @throws SAXException
+	 * @throws XMLStreamException
+	 */
+	private Worklist parseVideo(XMLStreamReader reader) throws SAXException, XMLStreamException {
+		HashMap<String,List<String>> fields = new HashMap<>();
+		for(String tag : Arrays.asList(K.videoPathTag, K.bigWTag, K.bigHTag, K.outputTag, K.segmentTag, K.tileDefaultTag)) {
+			fields.put(tag, new ArrayList<>());
+		}
+		ArrayList<HashMap<String,List<String>>> versions = new ArrayList<>();
+		ArrayList<HashMap<String,List<String>>> tiles = new ArrayList<>();
 		
-		//STEP 1 - Checking if the root node has the right tag
-		parseRootNodeName(video);
+		//Single pass on the element
+		int depth = 1;
+		while(depth>0) {
+			int event = reader.next();
+			if(event==XMLStreamConstants.START_ELEMENT) {
+				String tag = reader.getLocalName();
+				if(tag.equals(K.versionTag)) {
+					versions.add(readFields(reader, K.versionBitrateTag, K.versionWidthTag, K.versionHeightTag));
+				} else if(tag.equals(K.tileTag)) {
+					tiles.add(readFields(reader, K.tileStartXPercTag, K.tileStartYPercTag, K.tileEndXPercTag,
+							K.tileEndYPercTag, K.tileXTag, K.tileYTag, K.tileWTag, K.tileHTag));
+				} else if(fields.containsKey(tag)) {
+					fields.get(tag).add(readText(reader));
+				} else {
+					depth++;
+				}
+			} else if(event==XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
 		
-		//STEP 2 - Checking if the video path is defined
-		parseVideoPath(video,worklist);
+		Worklist worklist = new Worklist();
 		
-		//STEP 3 - Checking if the W (big W) is defined
-		parseBigW(video,worklist);
+		//Checking if the video path is defined
+		worklist.setVideoPath(single(fields.get(K.videoPathTag),
+				"The video path has not been specified in the '"+K.videoPathTag+"' tag!",
+				"It is not possible to specify more than one path for a single video!"));
 		
-		//STEP 4 - Checking if the H (big H) is defined
-		parseBigH(video,worklist);
+		//Checking if the W (big W) is defined
+		worklist.setBigW(Integer.parseInt(single(fields.get(K.bigWTag),
+				"The video W (big W) has not been specified in the '"+K.bigWTag+"' tag!",
+				"It is not possible to specify more than one W (big W) for a single video!")));
 		
-		//STEP 5 - Checking if the output folder is defined
-		parseOutput(video,worklist);
+		//Checking if the H (big H) is defined
+		worklist.setBigH(Integer.parseInt(single(fields.get(K.bigHTag),
+				"The video H (big H) has not been specified in the '"+K.bigHTag+"' tag!",
+				"It is not possible to specify more than one H (big H) for a single video!")));
 		
-		//STEP 6 - Checking if the segment length is defined
-		parseSegment(video,worklist);
+		//Checking if the output folder is defined
+		worklist.setOutput(single(fields.get(K.outputTag),
+				"The output folder has not been specified in the '"+K.outputTag+"' tag!",
+				"It is not possible to specify more than one output folder for a single video!"));
 		
-		//STEP 7 - Checking the versions
-		parseVersions(video,worklist);
+		//Checking if the segment length is defined, else setting the default value
+		List<String> segments = fields.get(K.segmentTag);
+		if(segments.size()>1)
+			throw new SAXException("It is not possible to specify more than one segment length for a single video!");
+		worklist.setSegment(segments.isEmpty() ? K.segmentDefault : Integer.parseInt(segments.get(0)));
 		
-		//STEP 8 - Checking default tiling
-		boolean isDefaultTiling = false;
-		isDefaultTiling = parseDefaultTiling(video,worklist);
+		//Checking the versions
+		for(HashMap<String,List<String>> version : versions) {
+			worklist.addVersion(parseVersion(version));
+		}
+		
+		//Checking the default tiling: the manual tiles cannot be added to it
+		List<String> defaultTilings = fields.get(K.tileDefaultTag);
+		if(defaultTilings.size()>1) {
+			throw new SAXException("It is not possible to specify more than one default tiling for a single video!");
+		} else if(defaultTilings.size()==1) {
+			//Regular grid of the default tiling, or of W columns and H rows
+			String defaultTiling = defaultTilings.get(0);
+			int[] grid = K.defaultTiling.get(defaultTiling);
+			if(defaultTiling.equals(K.gridTiling) || defaultTiling.equals(K.equirectangularTiling))
+				grid = new int[] {worklist.getBigW(), worklist.getBigH()};
+			if(grid==null || grid[0]<1 || grid[1]<1)
+				throw new SAXException("Wrong default tiling specification");
+			if(!tiles.isEmpty())
+				throw new SAXException("The default tiling is already specified: it is not possible to define other tiles");
+			for(Tile tile : defaultTiling.equals(K.equirectangularTiling) ? Tile.equirectangular(grid[0], grid[1]) : Tile.grid(grid[0], grid[1])) {
+				worklist.addTile(tile); 
+			}
+		}
 		
-		//STEP 9 - Checking tiling
-		parseTiling(video,worklist,isDefaultTiling);
+		//Checking the tiles
+		for(HashMap<String,List<String>> tile : tiles) {
+			worklist.addTile(parseTile(tile));
+		}
 		
 		return worklist;
 	}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Round trips between the coordinator and workers emulated over HTTP on localhost
+ */
+public class CoordinatorTest {
+	
+	private static final long workerTimeout = 300; //Milliseconds, short enough to lose a worker during the test
+	
+	private Coordinator coordinator;
+	
+	@After
+	public void shutdown() {
+		if(coordinator!=null)
+			coordinator.shutdown();
+	}
+	
+	@Test
+	public void jobIsGivenToAWorkerAndCompletedByItsResult() throws Exception {
+		coordinator = new Coordinator(0, 60000);
+		CompletableFuture<Integer> future = coordinator.submit(new Job("echo round trip", "Round trip"));
+		
+		String[] job = request("GET", "/job?worker=w1", 200).split("\n");
+		assertEquals("echo round trip", job[1]);
+		request("GET", "/job?worker=w2", 204);
+		
+		request("POST", "/result?worker=w1&job="+job[0]+"&exit=0", 200);
+		assertEquals(Integer.valueOf(0), future.get(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void failedJobCompletesExceptionally() throws Exception {
+		coordinator = new Coordinator(0, 60000);
+		CompletableFuture<Integer> future = coordinator.submit(new Job("false", "Failing job"));
+		
+		String id = request("GET", "/job?worker=w1", 200).split("\n")[0];
+		request("POST", "/result?worker=w1&job="+id+"&exit=1", "Invalid option \u00e9", 200);
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("The job should have failed");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+			//The end of the standard error sent by the worker is reported
+			assertTrue(e.getCause().getMessage().endsWith("\nInvalid option \u00e9"));
+		}
+	}
+	
+	@Test
+	public void cancelledJobIsNotGivenToAWorker() throws Exception {
+		coordinator = new Coordinator(0, 60000);
+		CompletableFuture<Integer> cancelled = coordinator.submit(new Job("echo cancelled", "Cancelled"));
+		CompletableFuture<Integer> kept = coordinator.submit(new Job("echo kept", "Kept"));
+		cancelled.cancel(false);
+		
+		String[] job = request("GET", "/job?worker=w1", 200).split("\n");
+		assertEquals("echo kept", job[1]);
+		request("GET", "/job?worker=w1", 204);
+		
+		request("POST", "/result?worker=w1&job="+job[0]+"&exit=0", 200);
+		assertEquals(Integer.valueOf(0), kept.get(5, TimeUnit.SECONDS));
+	}
+	
+	@Test
+	public void jobOfALostWorkerIsQueuedAgain() throws Exception {
+		coordinator = new Coordinator(0, workerTimeout);
+		CompletableFuture<Integer> future = coordinator.submit(new Job("echo requeue", "Requeue"));
+		
+		String id = request("GET", "/job?worker=lost", 200).split("\n")[0];
+		
+		//The lost worker sends no heartbeat: the job is given to another worker once the timeout has elapsed
+		String[] job = null;
+		long deadline = System.currentTimeMillis()+10*workerTimeout;
+		while(job==null && System.currentTimeMillis()<deadline) {
+			Thread.sleep(workerTimeout/4);
+			String body = request("GET", "/job?worker=w2", -1);
+			if(body!=null)
+				job = body.split("\n");
+		}
+		if(job==null)
+			fail("The job of the lost worker has not been queued again");
+		assertEquals(id, job[0]);
+		
+		//The late result of the lost worker is ignored
+		request("POST", "/result?worker=lost&job="+id+"&exit=1", 200);
+		assertFalse(future.isDone());
+		
+		request("POST", "/result?worker=w2&job="+id+"&exit=0", 200);
+		assertEquals(Integer.valueOf(0), future.get(5, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * Sends a request without body to the coordinator
+	 * @param method HTTP method
+	 * @param path Path and query string
+	 * @param status Expected HTTP status (-1 to accept 200 and 204)
+	 * @return Response body (null if the status is 204)
+	 * @throws IOException
+	 */
+	private String request(String method, String path, int status) throws IOException {
+		return request(method, path, null, status);
+	}
+	
+	/**
+	 * Sends a request to the coordinator
+	 * @param method HTTP method
+	 * @param path Path and query string
+	 * @param content Request body (can be null)
+	 * @param status Expected HTTP status (-1 to accept 200 and 204)
+	 * @return Response body (null if the status is 204)
+	 * @throws IOException
+	 */
+	private String request(String method, String path, String content, int status) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:"+coordinator.getPort()+path).openConnection();
+		connection.setRequestMethod(method);
+		if(content!=null) {
+			connection.setDoOutput(true);
+			OutputStream output = connection.getOutputStream();
+			output.write(content.getBytes(StandardCharsets.UTF_8));
+			output.close();
+		}
+		int code = connection.getResponseCode();
+		if(status>=0)
+			assertEquals(status, code);
+		else
+			assertTrue(code==200 || code==204);
+		if(code==204)
+			return null;
+		InputStream input = connection.getInputStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while((read = input.read(buffer))!=-1) {
+			body.write(buffer, 0, read);
+		}
+		input.close();
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+}
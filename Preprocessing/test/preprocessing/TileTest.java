@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Pixel edges of the tiles: aligned on the blocks of the encoder inside the frame, even sizes,
+ * and an exact cover of the frame
+ */
+public class TileTest {
+	
+	@Test
+	public void threeByThreeGridOnFullHd() {
+		ArrayList<Tile> tiles = Tile.grid(3, 3);
+		checkCover(tiles, 1920, 1080);
+		//1080/3 = 360 is not a multiple of 16: the inner edges are rounded to the nearest multiple
+		int[] rowTops = {0, 368, 720};
+		int[] rowHeights = {368, 352, 360};
+		for(int i=0; i<tiles.size(); i++) {
+			Tile tile = tiles.get(i);
+			assertEquals(640*(i%3), tile.cropX(1920));
+			assertEquals(640, tile.cropWidth(1920));
+			assertEquals(rowTops[i/3], tile.cropY(1080));
+			assertEquals(rowHeights[i/3], tile.cropHeight(1080));
+		}
+	}
+	
+	@Test
+	public void oddFrameSizes() {
+		checkCover(Tile.grid(3, 3), 1281, 721);
+		checkCover(Tile.grid(4, 3), 1001, 563);
+		checkCover(Tile.grid(2, 2), 641, 361);
+		//The last column and row end on the frame rounded down to an even size
+		Tile last = Tile.grid(2, 2).get(3);
+		assertEquals(640, last.cropX(641)+last.cropWidth(641));
+		assertEquals(360, last.cropY(361)+last.cropHeight(361));
+	}
+	
+	@Test
+	public void equirectangularGridCoversTheFrame() {
+		checkCover(Tile.equirectangular(8, 4), 3841, 1921);
+	}
+	
+	/**
+	 * Checks the edges of the tiles and that they cover the frame without gaps nor overlaps:
+	 * since no two tiles overlap, they cover the frame if their areas add up to the area of the frame
+	 * @param tiles Tiles of the frame
+	 * @param width Frame width
+	 * @param height Frame height
+	 */
+	private static void checkCover(ArrayList<Tile> tiles, int width, int height) {
+		int right = width & ~1;
+		int bottom = height & ~1;
+		long area = 0;
+		for(Tile tile : tiles) {
+			int x = tile.cropX(width);
+			int y = tile.cropY(height);
+			int w = tile.cropWidth(width);
+			int h = tile.cropHeight(height);
+			assertTrue("Empty tile", w>0 && h>0);
+			assertEquals("Odd width "+w, 0, w%2);
+			assertEquals("Odd height "+h, 0, h%2);
+			//The inner edges are multiples of the block size, the outer ones are the edges of the frame
+			assertEquals("Left edge "+x, 0, x%K.tileAlignment);
+			assertEquals("Top edge "+y, 0, y%K.tileAlignment);
+			assertTrue("Right edge "+(x+w), x+w==right || (x+w)%K.tileAlignment==0);
+			assertTrue("Bottom edge "+(y+h), y+h==bottom || (y+h)%K.tileAlignment==0);
+			assertTrue("Tile outside the frame", x+w<=right && y+h<=bottom);
+			area += (long) w*h;
+		}
+		for(int i=0; i<tiles.size(); i++) {
+			for(int j=i+1; j<tiles.size(); j++) {
+				Tile a = tiles.get(i);
+				Tile b = tiles.get(j);
+				boolean separated = a.cropX(width)+a.cropWidth(width)<=b.cropX(width) || b.cropX(width)+b.cropWidth(width)<=a.cropX(width)
+						|| a.cropY(height)+a.cropHeight(height)<=b.cropY(height) || b.cropY(height)+b.cropHeight(height)<=a.cropY(height);
+				assertTrue("Tiles "+i+" and "+j+" overlap", separated);
+			}
+		}
+		assertEquals("Gap between the tiles", (long) right*bottom, area);
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 Université Nice Sophia Antipolis (member of Université Côte d'Azur), CNRS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package preprocessing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xml.sax.SAXException;
+
+/**
+ * Validation rules and messages of the XML files, read from small files written for each test
+ */
+public class XmlParserTest {
+	
+	private static final String path = "<path>/videos/in.mp4</path>";
+	private static final String bigW = "<W>3</W>";
+	private static final String bigH = "<H>2</H>";
+	private static final String output = "<output>/videos/out</output>";
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+	
+	@Test
+	public void validVideoIsParsed() throws Exception {
+		Worklist worklist = new XmlParser(write(video(path, bigW, bigH, output, "<segment>1500</segment>",
+				"<version><width>1280</width><height>720</height><bitrate>2000</bitrate></version>",
+				"<defaultTiling>threeByThree</defaultTiling>"))).parseXml();
+		assertEquals(3, worklist.getBigW());
+		assertEquals(2, worklist.getBigH());
+	}
+	
+	@Test
+	public void mandatoryFieldsMustBePresent() throws Exception {
+		assertEquals("The video path has not been specified in the 'path' tag!", error(video(bigW, bigH, output)));
+		assertEquals("The video W (big W) has not been specified in the 'W' tag!", error(video(path, bigH, output)));
+		assertEquals("The video H (big H) has not been specified in the 'H' tag!", error(video(path, bigW, output)));
+		assertEquals("The output folder has not been specified in the 'output' tag!", error(video(path, bigW, bigH)));
+	}
+	
+	@Test
+	public void mandatoryFieldsMustBeUnique() throws Exception {
+		assertEquals("It is not possible to specify more than one path for a single video!",
+				error(video(path, path, bigW, bigH, output)));
+		assertEquals("It is not possible to specify more than one W (big W) for a single video!",
+				error(video(path, bigW, bigW, bigH, output)));
+		assertEquals("It is not possible to specify more than one H (big H) for a single video!",
+				error(video(path, bigW, bigH, bigH, output)));
+		assertEquals("It is not possible to specify more than one output folder for a single video!",
+				error(video(path, bigW, bigH, output, output)));
+	}
+	
+	@Test
+	public void versionNeedsBothWidthAndHeight() throws Exception {
+		assertEquals("Width and Height must be either both specified or not specified!",
+				error(video(path, bigW, bigH, output, "<version><width>1280</width></version>")));
+		assertEquals("Width and Height must be either both specified or not specified!",
+				error(video(path, bigW, bigH, output, "<version><height>720</height><bitrate>500</bitrate></version>")));
+		assertEquals("The version in missing parameters!", error(video(path, bigW, bigH, output, "<version></version>")));
+	}
+	
+	@Test
+	public void defaultTilingExcludesExplicitTiles() throws Exception {
+		String tile = "<tile><startXPerc>0</startXPerc><startYPerc>0</startYPerc><endXPerc>1</endXPerc><endYPerc>1</endYPerc>"
+				+"<x>0</x><y>0</y><w>1</w><h>1</h></tile>";
+		assertEquals("The default tiling is already specified: it is not possible to define other tiles",
+				error(video(path, bigW, bigH, output, "<defaultTiling>twoByTwo</defaultTiling>", tile)));
+		assertEquals("Wrong default tiling specification",
+				error(video(path, bigW, bigH, output, "<defaultTiling>fourByFour</defaultTiling>")));
+	}
+	
+	@Test
+	public void illegalNumberIsAnXmlError() throws Exception {
+		assertEquals("Illegal number: For input string: \"x\"", error(video(path, "<W>x</W>", bigH, output)));
+	}
+	
+	@Test
+	public void rootMustBeAVideoOrACatalogue() throws Exception {
+		try {
+			new XmlParser(write("<?xml version=\"1.0\"?>\n<movie>"+path+"</movie>")).parse(new Handler());
+			fail("The root should have been rejected");
+		} catch (SAXException e) {
+			assertEquals("The root XML tag must be 'video' or 'videos'!", e.getMessage());
+		}
+	}
+	
+	@Test
+	public void catalogueReportsEachInvalidVideoAndGoesOn() throws Exception {
+		String xml = "<?xml version=\"1.0\"?>\n<videos>\n"
+				+videoElement(path, bigW, bigH, output)
+				+videoElement(path, bigH, output)
+				+videoElement(path, "<W>x</W>", bigH, output)
+				+videoElement(path, bigW, bigH, output)
+				+"</videos>\n";
+		String file = write(xml);
+		Handler handler = new Handler();
+		new XmlParser(file).parse(handler);
+		assertEquals(2, handler.videos.size());
+		assertEquals(file+"#1", handler.videos.get(0));
+		assertEquals(file+"#4", handler.videos.get(1));
+		assertEquals(2, handler.invalid.size());
+		assertEquals(file+"#2: The video W (big W) has not been specified in the 'W' tag!", handler.invalid.get(0));
+		assertTrue(handler.invalid.get(1).startsWith(file+"#3: Illegal number"));
+	}
+	
+	/**
+	 * Collects the videos and the errors reported by the parser
+	 */
+	private static class Handler implements XmlParser.VideoHandler {
+		ArrayList<String> videos = new ArrayList<>();
+		ArrayList<String> invalid = new ArrayList<>();
+		
+		@Override
+		public void video(String name, Worklist worklist) {
+			videos.add(name);
+		}
+		
+		@Override
+		public void invalid(String name, SAXException e) {
+			invalid.add(name+": "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * @param fields Elements of the video
+	 * @return XML file with a single video
+	 */
+	private static String video(String... fields) {
+		return "<?xml version=\"1.0\"?>\n"+videoElement(fields);
+	}
+	
+	/**
+	 * @param fields Elements of the video
+	 * @return Video element
+	 */
+	private static String videoElement(String... fields) {
+		return "<video>\n"+String.join("\n", fields)+"\n</video>\n";
+	}
+	
+	/**
+	 * Writes an XML file in the temporary folder
+	 * @param xml Content of the file
+	 * @return Path of the file
+	 * @throws IOException
+	 */
+	private String write(String xml) throws IOException {
+		File file = folder.newFile();
+		Files.write(file.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+		return file.getPath();
+	}
+	
+	/**
+	 * Parses a single video expected to be invalid
+	 * @param xml Content of the file
+	 * @return Message of the error
+	 * @throws IOException
+	 */
+	private String error(String xml) throws IOException {
+		try {
+			new XmlParser(write(xml)).parseXml();
+		} catch (SAXException e) {
+			return e.getMessage();
+		}
+		fail("The XML file should have been rejected");
+		return null;
+	}
+}